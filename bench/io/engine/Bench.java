@@ -0,0 +1,117 @@
+package io.engine;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * A minimal benchmark harness. Runs an operation for a warmup period, then
+ * measures time and allocated bytes per operation over several iterations.
+ * Reports the mean and standard deviation of the iterations. Timing can be
+ * changed with the system properties <code>bench.warmup</code> and
+ * <code>bench.time</code> in milliseconds and <code>bench.iterations</code>,
+ * <code>bench.filter</code> restricts the run to benchmarks whose name
+ * contains it.
+ */
+final class Bench {
+	interface Op {
+		void run() throws Exception;
+	}
+
+	private static final long WARMUP_NANOS = Long.getLong("bench.warmup",
+			1000) * 1000000L;
+	private static final long ITERATION_NANOS = Long.getLong("bench.time",
+			500) * 1000000L;
+	private static final int ITERATIONS = Integer.getInteger(
+			"bench.iterations", 5);
+	private static final String FILTER = System.getProperty("bench.filter",
+			"");
+
+	/** Defeats dead code elimination. */
+	static volatile long sink;
+
+	private Bench() {
+	}
+
+	static void header() {
+		System.out.printf("%-40s %14s %10s %14s%n", "benchmark", "ns/op",
+				"error", "bytes/op");
+	}
+
+	/**
+	 * Prints what the results depend on.
+	 */
+	static void environment() {
+		System.out.printf("# %s %s, %s %s %s, %d cpus%n",
+				System.getProperty("java.vm.name"),
+				System.getProperty("java.version"),
+				System.getProperty("os.name"),
+				System.getProperty("os.version"),
+				System.getProperty("os.arch"), Runtime.getRuntime()
+						.availableProcessors());
+		System.out.printf("# warmup %d ms, %d iterations of %d ms%n",
+				WARMUP_NANOS / 1000000, ITERATIONS, ITERATION_NANOS / 1000000);
+	}
+
+	/**
+	 * Measures op. Every call of op counts as opsPerCall operations. Returns
+	 * how often op was called, including the warmup, or 0 if the filter
+	 * skipped it.
+	 */
+	static long measure(String name, long opsPerCall, Op op) throws Exception {
+		if (!name.contains(FILTER))
+			return 0;
+		long total = loop(op, WARMUP_NANOS);
+		double[] perOp = new double[ITERATIONS];
+		double bytes = 0;
+		long ops = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			long calls = loop(op, ITERATION_NANOS);
+			total += calls;
+			perOp[i] = (double) (System.nanoTime() - start)
+					/ (calls * opsPerCall);
+			bytes += allocatedBytes() - allocated;
+			ops += calls * opsPerCall;
+		}
+		double mean = 0;
+		for (double value : perOp)
+			mean += value / ITERATIONS;
+		double variance = 0;
+		for (double value : perOp)
+			variance += (value - mean) * (value - mean) / ITERATIONS;
+		System.out.printf("%-40s %14.1f %10.1f %14.1f%n", name, mean,
+				Math.sqrt(variance), bytes / ops);
+		return total;
+	}
+
+	/**
+	 * Fails the run if a benchmark did not take the path it measures, so a
+	 * change of the code under test cannot turn it into a no-op unnoticed.
+	 */
+	static void check(String name, boolean ran) {
+		if (ran)
+			return;
+		// exits, as threads of the engines under test would keep it running
+		System.err.println(name + ": the measured path did not run");
+		System.exit(1);
+	}
+
+	private static long loop(Op op, long duration) throws Exception {
+		long end = System.nanoTime() + duration;
+		long calls = 0;
+		do {
+			op.run();
+			calls++;
+		} while (System.nanoTime() < end);
+		return calls;
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+}
@@ -0,0 +1,28 @@
+package io.engine;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory {@link TestTransport} which only counts the packets it is
+ * handed, so benchmarks see the cost of the send path itself.
+ */
+class CountingTransport extends TestTransport {
+	final AtomicLong sent = new AtomicLong();
+
+	CountingTransport() {
+		super("polling");
+	}
+
+	@Override
+	protected void send(Iterator<Packet> packets) throws Exception {
+		long count = 0;
+		while (packets.hasNext()) {
+			Packet packet = packets.next();
+			packets.remove();
+			written(packet);
+			count++;
+		}
+		sent.addAndGet(count);
+	}
+}
@@ -0,0 +1,158 @@
+package io.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The benchmark suite of the hot paths: payload decoding, payload encoding
+ * as done for a POST, packet dispatch, handshake parsing and sending through
+ * an in-memory transport. Inputs are fixed, so runs on the same machine and
+ * JVM are comparable. Run with a fixed heap, for example
+ * <code>-Xms1g -Xmx1g</code>, and compare the error column before trusting a
+ * difference. See {@link Bench} for the options.
+ *
+ * Usage: EngineIOBenchmarks
+ */
+public class EngineIOBenchmarks {
+	// held, as the log manager only references loggers weakly
+	private static final Logger LOGGER = Logger.getLogger("engine.io");
+	private static final int PACKETS = 100;
+	private static final String MESSAGE = "{\"id\":42,\"text\":\"message \u263A\",\"values\":[1,2,3]}";
+	private static final String SID = "lv8pIOBkMcH5eGdBAAAA";
+	private static final String HANDSHAKE = "{\"sid\":\"" + SID + "\","
+			+ "\"upgrades\":[],\"pingInterval\":25000,\"pingTimeout\":60000}";
+
+	// what the measured paths did, checked against the number of calls
+	private static long decoded;
+	private static long encoded;
+	private static long opened;
+	private static long messages;
+
+	public static void main(String[] args) throws Exception {
+		LOGGER.setLevel(Level.OFF);
+		Bench.environment();
+		Bench.header();
+		decode();
+		encode();
+		dispatch();
+		handshake();
+		send();
+		System.exit(0);
+	}
+
+	private static void decode() throws Exception {
+		final ByteBuffer buffer = ByteBuffer.wrap(PayloadDecoderBenchmark
+				.payload(PACKETS));
+		final PayloadDecoder decoder = new PayloadDecoder(
+				new PayloadDecoder.Listener() {
+					@Override
+					public void packet(char type, String data) {
+						Bench.sink += type + data.length();
+						decoded++;
+					}
+
+					@Override
+					public void binary(char type, ByteBuffer data) {
+						Bench.sink += type + data.remaining();
+						decoded++;
+					}
+
+					@Override
+					public void largePacket(char type, CharBuffer data) {
+						Bench.sink += type + data.remaining();
+						decoded++;
+					}
+				});
+		long calls = Bench.measure("decode, per packet", PACKETS,
+				new Bench.Op() {
+					@Override
+					public void run() throws Exception {
+						buffer.clear();
+						decoder.decode(buffer);
+					}
+				});
+		Bench.check("decode", decoded == calls * PACKETS);
+	}
+
+	private static void encode() throws Exception {
+		final PayloadEncoder encoder = new PayloadEncoder();
+		// the length in chars, ':', the type and the UTF-8 of every message
+		final int length = PACKETS
+				* (Integer.toString(MESSAGE.length() + 1).length() + 2 + MESSAGE
+						.getBytes("UTF-8").length);
+		long calls = Bench.measure("encode, per packet", PACKETS,
+				new Bench.Op() {
+					@Override
+					public void run() throws Exception {
+						encoder.begin();
+						for (int i = 0; i < PACKETS; i++)
+							encoder.append('4', MESSAGE);
+						if (encoder.finish().remaining() == length)
+							encoded++;
+					}
+				});
+		Bench.check("encode", encoded == calls);
+	}
+
+	private static EngineIO engine() {
+		EngineIO engine = new EngineIO() {
+			@Override
+			public void onOpen() {
+				opened++;
+			}
+
+			@Override
+			public void onMessage(String message) {
+				Bench.sink += message.length();
+				messages++;
+			}
+		};
+		return engine.pingTimeout(Integer.MAX_VALUE);
+	}
+
+	private static void dispatch() throws Exception {
+		final EngineIO engine = engine();
+		final IOTransport transport = new CountingTransport();
+		long calls = Bench.measure("dispatch message", 1, new Bench.Op() {
+			@Override
+			public void run() throws Exception {
+				engine.transportPacket(transport, '4', MESSAGE);
+			}
+		});
+		Bench.check("dispatch message", messages == calls);
+	}
+
+	private static void handshake() throws Exception {
+		// only the transport the engine opened with may handshake
+		final IOTransport transport = new CountingTransport();
+		final EngineIO engine = engine().transports(transport);
+		engine.open();
+		long calls = Bench.measure("dispatch handshake", 1, new Bench.Op() {
+			@Override
+			public void run() throws Exception {
+				engine.transportPacket(transport, '0', HANDSHAKE);
+			}
+		});
+		Bench.check("dispatch handshake", opened == calls
+				&& (calls == 0 || SID.equals(engine.getSid())));
+		engine.close();
+	}
+
+	private static void send() throws Exception {
+		CountingTransport transport = new CountingTransport();
+		final EngineIO engine = engine().transports(transport);
+		engine.open();
+		transport.allowSend(true);
+		long calls = Bench.measure("send, in-memory transport", 1,
+				new Bench.Op() {
+					@Override
+					public void run() throws Exception {
+						engine.send(MESSAGE);
+					}
+				});
+		Bench.check("send", transport.sent.get() == calls);
+		engine.close();
+	}
+}
@@ -0,0 +1,104 @@
+package io.engine;
+
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends one message to 10,000 in-memory sessions, once by
+ * {@link EngineIO#send(String)} to every session and once prepared by
+ * {@link EngineIO#prepare(String)} and sent as {@link PreparedMessage}.
+ * Every session encodes what it is handed into a polling payload like
+ * {@link PollingTransport} does. Reports the time and allocation per session
+ * and message, see {@link Bench} for the options.
+ *
+ * Usage: FanOutBenchmark [sessions]
+ */
+public class FanOutBenchmark {
+	// held, as the log manager only references loggers weakly
+	private static final Logger LOGGER = Logger.getLogger("engine.io");
+	private static final String HANDSHAKE = "{\"sid\":\"lv8pIOBkMcH5eGdBAAAA\","
+			+ "\"upgrades\":[],\"pingInterval\":25000,\"pingTimeout\":60000}";
+
+	/**
+	 * Encodes every packet into a payload of its own, as a POST would.
+	 */
+	private static class EncodingTransport extends IOTransport {
+		private final PayloadEncoder encoder = new PayloadEncoder();
+
+		@Override
+		String getName() {
+			return PollingTransport.NAME;
+		}
+
+		@Override
+		protected void open() throws Exception {
+			packet("0" + HANDSHAKE);
+			setConnected(true);
+		}
+
+		@Override
+		protected void send(Iterator<Packet> packets) throws Exception {
+			while (packets.hasNext()) {
+				Packet packet = writing(packets.next());
+				packets.remove();
+				if (packet == null)
+					continue;
+				encoder.begin();
+				encoder.append(packet);
+				Bench.sink += encoder.finish().remaining();
+				written(packet);
+			}
+		}
+
+		@Override
+		protected void close() throws Exception {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		LOGGER.setLevel(Level.OFF);
+		final EngineIO[] engines = new EngineIO[sessions];
+		for (int i = 0; i < sessions; i++) {
+			engines[i] = new EngineIO().transports(new EncodingTransport())
+					.pingTimeout(Integer.MAX_VALUE);
+			engines[i].open();
+		}
+		Bench.environment();
+		Bench.header();
+		for (int length : new int[] { 100, 4096 }) {
+			final String message = message(length);
+			Bench.measure(String.format("fan-out %d B, send(String)", length),
+					sessions, new Bench.Op() {
+						@Override
+						public void run() throws Exception {
+							for (EngineIO engine : engines)
+								engine.send(message);
+						}
+					});
+			Bench.measure(String.format("fan-out %d B, prepared", length),
+					sessions, new Bench.Op() {
+						@Override
+						public void run() throws Exception {
+							PreparedMessage prepared = EngineIO.prepare(message);
+							for (EngineIO engine : engines)
+								engine.send(prepared);
+						}
+					});
+		}
+		for (EngineIO engine : engines)
+			engine.close();
+		System.exit(0);
+	}
+
+	/**
+	 * A JSON update of about length chars, with some non-ASCII text.
+	 */
+	static String message(int length) {
+		StringBuilder builder = new StringBuilder("{\"id\":42,\"values\":[");
+		for (int i = 0; builder.length() < length - 20; i++)
+			builder.append(i).append(i % 7 == 0 ? ",\"\u263A\u00E4\"," : ",");
+		return builder.append("0]}").toString();
+	}
+}
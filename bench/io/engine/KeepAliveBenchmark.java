@@ -0,0 +1,77 @@
+package io.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many polling sessions against a {@link LoopbackServer} with a short
+ * ping interval and lets every session send a few messages, spread evenly
+ * over time. Prints how many TCP connections were needed for the requests
+ * served. With <code>h2</code> the sessions use the
+ * {@link Http2PollingTransport}.
+ *
+ * Usage: KeepAliveBenchmark [sessions] [messages per session] [h2]
+ */
+public class KeepAliveBenchmark {
+	public static void main(String[] args) throws Exception {
+		int sessionCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		boolean http2 = args.length > 2 && args[2].equals("h2");
+		LoopbackServer server = new LoopbackServer().record(false)
+				.pingInterval(50).start();
+		EventLoopGroup group = new EventLoopGroup(2);
+		List<EngineIO> sessions = new ArrayList<EngineIO>();
+		final CountDownLatch opened = new CountDownLatch(sessionCount);
+		for (int i = 0; i < sessionCount; i++) {
+			EngineIO engine = new EngineIO() {
+				@Override
+				public void onOpen() {
+					opened.countDown();
+				}
+
+				@Override
+				public void onMessage(String message) {
+				}
+			};
+			engine.host("127.0.0.1").port(server.getPort()).upgrade(false)
+					.eventLoopGroup(group).transports(
+						http2 ? new Http2PollingTransport()
+								: new PollingTransport())
+					.open();
+			sessions.add(engine);
+			// spread the pings of the server
+			Thread.sleep(1);
+		}
+		if (!opened.await(60, TimeUnit.SECONDS))
+			throw new RuntimeException(opened.getCount()
+					+ " sessions did not open");
+
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			for (int j = 0; j < sessionCount; j++) {
+				sessions.get(j).send("message " + i);
+				if (j % 10 == 9)
+					Thread.sleep(2);
+			}
+		}
+		Thread.sleep(500);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		long served = group.getRequestsServed();
+		long connections = group.getConnectionsOpened();
+		System.out.printf("sessions %d, messages/session %d, %.1f s%n",
+				sessionCount, messages, seconds);
+		System.out.printf("requests served %d, connections opened %d, "
+				+ "server accepted %d, %.1f requests/connection%n", served,
+				connections, server.getConnections(), (double) served
+						/ connections);
+		for (EngineIO engine : sessions)
+			engine.close();
+		// let the sessions close before the server goes away
+		Thread.sleep(200);
+		server.stop();
+		System.exit(0);
+	}
+}
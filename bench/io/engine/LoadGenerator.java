@@ -0,0 +1,222 @@
+package io.engine;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Opens many sessions to an echo server, sends messages at a fixed total
+ * rate and reports round trip latency, throughput, threads and heap per
+ * session. Without host and port an in-process {@link LoopbackServer} echoes,
+ * its single thread and its sessions count into the figures.
+ *
+ * Usage: LoadGenerator [key=value]...
+ * <ul>
+ * <li>sessions=1000</li>
+ * <li>transport=polling, websocket, upgrade, h2 or legacy-websocket, the
+ * websocket transport running a thread per session</li>
+ * <li>rate=1000 messages per second over all sessions</li>
+ * <li>size=64 bytes per message</li>
+ * <li>duration=30 seconds</li>
+ * <li>host, port of an engine.io server echoing messages</li>
+ * </ul>
+ */
+public class LoadGenerator {
+	private static final long TICK_MILLIS = 10;
+
+	private final Histogram total = new Histogram();
+	private final AtomicReference<Histogram> interval = new AtomicReference<Histogram>(
+			new Histogram());
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final String padding;
+
+	private LoadGenerator(int size) {
+		StringBuilder padding = new StringBuilder();
+		while (padding.length() < size)
+			padding.append('x');
+		this.padding = padding.toString();
+	}
+
+	private class Session extends EngineIO {
+		private final CountDownLatch opened;
+
+		Session(CountDownLatch opened) {
+			this.opened = opened;
+		}
+
+		@Override
+		public void onOpen() {
+			opened.countDown();
+		}
+
+		@Override
+		public void onMessage(String message) {
+			int space = message.indexOf(' ');
+			if (space < 0)
+				return;
+			long latency = System.nanoTime()
+					- Long.parseLong(message.substring(0, space));
+			total.record(latency);
+			interval.get().record(latency);
+			received.incrementAndGet();
+		}
+
+		@Override
+		public void onClose() {
+		}
+
+		@Override
+		public void onError(EngineIOException exception) {
+			errors.incrementAndGet();
+		}
+
+		void ping() {
+			String message = System.nanoTime() + " " + padding;
+			send(message);
+		}
+	}
+
+	private static IOTransport[] transports(String transport) {
+		if (transport.equals("websocket"))
+			return new IOTransport[] { new NioWebsocketTransport() };
+		if (transport.equals("legacy-websocket"))
+			return new IOTransport[] { new WebsocketTransport() };
+		if (transport.equals("h2"))
+			return new IOTransport[] { new Http2PollingTransport() };
+		if (transport.equals("upgrade"))
+			return new IOTransport[] { new PollingTransport(),
+					new NioWebsocketTransport() };
+		if (transport.equals("polling"))
+			return new IOTransport[] { new PollingTransport() };
+		throw new IllegalArgumentException("Unknown transport " + transport);
+	}
+
+	private static long usedHeap() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	private static int threads() {
+		return ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Expected key=value: " + arg);
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		int sessionCount = Integer.parseInt(value(options, "sessions", "1000"));
+		String transport = value(options, "transport", "polling");
+		int rate = Integer.parseInt(value(options, "rate", "1000"));
+		int size = Integer.parseInt(value(options, "size", "64"));
+		int duration = Integer.parseInt(value(options, "duration", "30"));
+		String host = value(options, "host", null);
+		int port;
+		LoopbackServer server = null;
+		if (host == null) {
+			server = new LoopbackServer().record(false).echo(true).start();
+			host = "127.0.0.1";
+			port = server.getPort();
+		} else {
+			port = Integer.parseInt(value(options, "port", "80"));
+		}
+		new LoadGenerator(size).run(host, port, sessionCount, transport, rate,
+				duration);
+		if (server != null)
+			server.stop();
+		System.exit(0);
+	}
+
+	private static String value(Map<String, String> options, String key,
+			String fallback) {
+		String value = options.get(key);
+		return value == null ? fallback : value;
+	}
+
+	private void run(String host, int port, int sessionCount,
+			String transport, int rate, int duration) throws Exception {
+		long heapBefore = usedHeap();
+		int threadsBefore = threads();
+		CountDownLatch opened = new CountDownLatch(sessionCount);
+		List<Session> sessions = new ArrayList<Session>(sessionCount);
+		long start = System.nanoTime();
+		for (int i = 0; i < sessionCount; i++) {
+			Session session = new Session(opened);
+			session.host(host).port(port)
+					.upgrade(transport.equals("upgrade"))
+					.transports(transports(transport)).open();
+			sessions.add(session);
+		}
+		if (!opened.await(60 + sessionCount / 100, TimeUnit.SECONDS))
+			System.out.printf("%d sessions did not open%n", opened.getCount());
+		System.out.printf("%d %s sessions open after %.0f ms%n", sessionCount
+				- opened.getCount(), transport, millis(System.nanoTime()
+				- start));
+		// let upgrades finish before measuring
+		Thread.sleep(transport.equals("upgrade") ? 2000 : 200);
+		long heap = usedHeap() - heapBefore;
+		int threads = threads() - threadsBefore;
+		System.out.printf("%d threads, %.1f KiB heap per session%n", threads,
+				heap / 1024.0 / sessionCount);
+
+		double credit = 0;
+		long lastTick = System.nanoTime();
+		int next = 0;
+		long sent = 0;
+		long lastReport = System.nanoTime();
+		long lastReceived = 0;
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+		System.out.printf("%8s %10s %10s %10s %10s %10s%n", "seconds",
+				"msgs/s", "p50 ms", "p99 ms", "max ms", "errors");
+		while (System.nanoTime() < end) {
+			long tick = System.nanoTime();
+			credit += (tick - lastTick) * rate / 1e9;
+			lastTick = tick;
+			for (; credit >= 1; credit--) {
+				sessions.get(next).ping();
+				next = (next + 1) % sessionCount;
+				sent++;
+			}
+			Thread.sleep(TICK_MILLIS);
+			long now = System.nanoTime();
+			if (now - lastReport >= TimeUnit.SECONDS.toNanos(1)) {
+				Histogram last = interval.getAndSet(new Histogram());
+				long count = received.get();
+				System.out.printf("%8.0f %10.0f %10.2f %10.2f %10.2f %10d%n",
+						(now - start) / 1e9, (count - lastReceived) * 1e9
+								/ (now - lastReport),
+						millis(last.getPercentile(0.5)),
+						millis(last.getPercentile(0.99)),
+						millis(last.getMax()), errors.get());
+				lastReport = now;
+				lastReceived = count;
+			}
+		}
+		Thread.sleep(1000);
+		System.out.printf("sent %d, received %d, lost %d%n", sent,
+				received.get(), sent - received.get());
+		System.out.printf("latency p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, "
+				+ "max %.2f ms%n", millis(total.getPercentile(0.5)),
+				millis(total.getPercentile(0.99)),
+				millis(total.getPercentile(0.999)), millis(total.getMax()));
+		for (Session session : sessions)
+			session.close();
+	}
+}
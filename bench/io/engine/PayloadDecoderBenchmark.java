@@ -0,0 +1,102 @@
+package io.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Compares {@link PayloadDecoder} with the former Reader based
+ * IOTransport.stream() on payloads of 1, 100 and 10000 packets. Also
+ * compares decoding a 4M char message into a String with handing it over as
+ * a view.
+ */
+public class PayloadDecoderBenchmark {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static byte[] payload(int packets) {
+		StringBuilder payload = new StringBuilder();
+		for (int i = 0; i < packets; i++) {
+			String packet = "4{\"id\":" + i
+					+ ",\"text\":\"message \u263A\",\"values\":[1,2,3]}";
+			payload.append(packet.length()).append(':').append(packet);
+		}
+		return payload.toString().getBytes(UTF8);
+	}
+
+	/**
+	 * The decoding loop of the former IOTransport.stream(Reader) followed by
+	 * the substring done by EngineIO.transportPacket.
+	 */
+	static void legacyStream(Reader reader) throws Exception {
+		int c;
+		while ((c = reader.read()) > 0) {
+			StringBuilder sizeBuilder = new StringBuilder(4);
+			do {
+				sizeBuilder.append((char) c);
+			} while ((c = reader.read()) > 0 && ((char) c) != ':');
+
+			int left = Integer.parseInt(sizeBuilder.toString());
+			char[] buffer = new char[left];
+			while (left > 0)
+				left -= reader.read(buffer, buffer.length - left, left);
+			String data = new String(buffer);
+			Bench.sink += data.charAt(0)
+					+ data.subSequence(1, data.length()).toString().length();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Bench.header();
+		for (final int packets : new int[] { 1, 100, 10000 }) {
+			final byte[] payload = payload(packets);
+			Bench.measure("legacy stream(), " + packets + " packets", packets,
+					new Bench.Op() {
+						@Override
+						public void run() throws Exception {
+							legacyStream(new InputStreamReader(
+									new ByteArrayInputStream(payload), UTF8));
+						}
+					});
+			measure("PayloadDecoder, " + packets + " packets", payload,
+					packets, -1);
+		}
+		StringBuilder large = new StringBuilder("4");
+		while (large.length() < 4 * 1024 * 1024)
+			large.append("{\"id\":1,\"text\":\"message \u263A\"}");
+		byte[] payload = (large.length() + ":" + large).getBytes(UTF8);
+		measure("PayloadDecoder, 4M chars String", payload, 1, -1);
+		measure("PayloadDecoder, 4M chars view", payload, 1, 0);
+	}
+
+	private static void measure(String name, byte[] payload, int packets,
+			int largePackets) throws Exception {
+		final ByteBuffer buffer = ByteBuffer.wrap(payload);
+		final PayloadDecoder decoder = new PayloadDecoder(
+				new PayloadDecoder.Listener() {
+					@Override
+					public void packet(char type, String data) {
+						Bench.sink += type + data.length();
+					}
+
+					@Override
+					public void binary(char type, ByteBuffer data) {
+						Bench.sink += type + data.remaining();
+					}
+
+					@Override
+					public void largePacket(char type, CharBuffer data) {
+						Bench.sink += type + data.remaining();
+					}
+				}, largePackets);
+		Bench.measure(name, packets, new Bench.Op() {
+			@Override
+			public void run() throws Exception {
+				buffer.clear();
+				decoder.decode(buffer);
+			}
+		});
+	}
+}
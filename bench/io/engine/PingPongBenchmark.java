@@ -0,0 +1,78 @@
+package io.engine;
+
+import java.util.Arrays;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures round trip latency of messages echoed by a {@link LoopbackServer}
+ * over the polling transport. Every message is sent only after the previous
+ * echo arrived, so sending and receiving interleave on one session. Echoes
+ * missing for more than a second are counted as lost.
+ *
+ * Usage: PingPongBenchmark [roundtrips]
+ */
+public class PingPongBenchmark {
+	private static final long LOST_AFTER = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int roundtrips = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		LoopbackServer server = new LoopbackServer().record(false).echo(true)
+				.start();
+		final SynchronousQueue<String> echoes = new SynchronousQueue<String>();
+		EngineIO engine = new EngineIO() {
+			@Override
+			public void onOpen() {
+				echoes.offer("open");
+			}
+
+			@Override
+			public void onMessage(String message) {
+				try {
+					echoes.put(message);
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		engine.host("127.0.0.1").port(server.getPort()).upgrade(false)
+				.transports(new PollingTransport()).open();
+		if (echoes.poll(10, TimeUnit.SECONDS) == null)
+			throw new RuntimeException("Could not connect");
+
+		long[] latencies = new long[roundtrips];
+		int measured = 0;
+		int lost = 0;
+		long start = System.nanoTime();
+		for (int i = -roundtrips / 10; i < roundtrips; i++) {
+			String message = "ping " + i;
+			long sent = System.nanoTime();
+			engine.send(message);
+			String echo;
+			do {
+				echo = echoes.poll(LOST_AFTER, TimeUnit.MILLISECONDS);
+			} while (echo != null && !message.equals(echo));
+			if (echo == null)
+				lost++;
+			else if (i >= 0)
+				latencies[measured++] = System.nanoTime() - sent;
+			if (i == 0)
+				start = System.nanoTime();
+		}
+		long duration = System.nanoTime() - start;
+		engine.close();
+		server.stop();
+
+		latencies = Arrays.copyOf(latencies, measured);
+		Arrays.sort(latencies);
+		System.out.printf("roundtrips %d, lost %d, %.0f roundtrips/s%n",
+				roundtrips, lost, roundtrips * 1e9 / duration);
+		System.out.printf("p50 %.1f us, p90 %.1f us, p99 %.1f us, max %.1f us%n",
+				percentile(latencies, 0.5), percentile(latencies, 0.9),
+				percentile(latencies, 0.99), percentile(latencies, 1));
+		System.exit(0);
+	}
+
+	private static double percentile(long[] sorted, double percentile) {
+		return sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile)] / 1000.0;
+	}
+}
@@ -0,0 +1,78 @@
+package io.engine;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens a growing number of polling sessions against a {@link LoopbackServer}
+ * and prints thread count and heap usage for every step.
+ *
+ * Usage: PollingScaleBenchmark [sessions,sessions,...]
+ */
+public class PollingScaleBenchmark {
+	public static void main(String[] args) throws Exception {
+		String steps = args.length > 0 ? args[0] : "100,500,1000,2000,4000";
+		LoopbackServer server = new LoopbackServer().record(false)
+				.pingInterval(20000).start();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		List<EngineIO> sessions = new ArrayList<EngineIO>();
+		long baseHeap = usedHeap();
+
+		System.out.println("sessions\tthreads\tloop threads\theap MB\tKB/session");
+		for (String step : steps.split(",")) {
+			int target = Integer.parseInt(step.trim());
+			final CountDownLatch opened = new CountDownLatch(target
+					- sessions.size());
+			while (sessions.size() < target) {
+				EngineIO engine = new EngineIO() {
+					@Override
+					public void onOpen() {
+						opened.countDown();
+					}
+
+					@Override
+					public void onMessage(String message) {
+					}
+				};
+				engine.host("127.0.0.1").port(server.getPort()).upgrade(false)
+						.transports(new PollingTransport()).open();
+				sessions.add(engine);
+			}
+			if (!opened.await(60, TimeUnit.SECONDS))
+				System.err.println("not all sessions opened: "
+						+ opened.getCount() + " missing");
+			Thread.sleep(1000);
+			long heap = usedHeap() - baseHeap;
+			System.out.printf("%d\t%d\t%d\t%.1f\t%.2f%n", target,
+					threads.getThreadCount(), loopThreads(threads),
+					heap / 1048576.0, heap / 1024.0 / target);
+		}
+		for (EngineIO engine : sessions)
+			engine.close();
+		server.stop();
+		System.exit(0);
+	}
+
+	private static int loopThreads(ThreadMXBean threads) {
+		int count = 0;
+		for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info != null && info.getThreadName().startsWith("engine.io-loop"))
+				count++;
+		}
+		return count;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,124 @@
+package io.engine;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from {@link EngineIO#open()} to onOpen(), to the echo of
+ * a message sent right after open() and to running on websocket, against a
+ * {@link LoopbackServer}.
+ * Compares polling, polling upgrading to websocket, websocket only and
+ * racing polling against websocket. The server may delay every request by a
+ * latency to show the cost of the round trips each mode takes.
+ *
+ * Usage: RaceBenchmark [sessions per mode] [latency in ms]
+ */
+public class RaceBenchmark {
+	private static final String[] MODES = { "polling", "upgrade", "websocket",
+			"race" };
+
+	private static class Session extends EngineIO {
+		final CountDownLatch opened = new CountDownLatch(1);
+		final CountDownLatch echoed = new CountDownLatch(1);
+		volatile long openedAt;
+		volatile long echoedAt;
+
+		@Override
+		public void onOpen() {
+			openedAt = System.nanoTime();
+			opened.countDown();
+		}
+
+		@Override
+		public void onMessage(String message) {
+			echoedAt = System.nanoTime();
+			echoed.countDown();
+		}
+
+		@Override
+		public void onClose() {
+		}
+
+		@Override
+		public void onError(EngineIOException exception) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int latency = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		LoopbackServer server = new LoopbackServer().record(false).echo(true)
+				.latency(latency).start();
+		System.out.printf("%-10s %12s %12s %12s %12s %12s %9s %9s%n",
+				"mode", "open p50 ms", "open p99 ms", "first p50", "first p99",
+				"websocket p50", "requests", "conns");
+		for (String mode : MODES) {
+			// warm up
+			run(server, mode, sessions / 4);
+			Histogram open = new Histogram();
+			Histogram first = new Histogram();
+			Histogram websocket = new Histogram();
+			int requests = server.getRequests();
+			int connections = server.getConnections();
+			for (int i = 0; i < sessions; i++) {
+				long[] times = run(server, mode, 1);
+				open.record(times[0]);
+				first.record(times[1]);
+				if (times[2] > 0)
+					websocket.record(times[2]);
+			}
+			System.out.printf("%-10s %12.2f %12.2f %12.2f %12.2f %12.2f %9.1f %9.1f%n",
+					mode, open.getPercentile(0.5) / 1e6,
+					open.getPercentile(0.99) / 1e6,
+					first.getPercentile(0.5) / 1e6,
+					first.getPercentile(0.99) / 1e6,
+					websocket.getPercentile(0.5) / 1e6,
+					(double) (server.getRequests() - requests) / sessions,
+					(double) (server.getConnections() - connections)
+							/ sessions);
+		}
+		// let the last close packets out
+		Thread.sleep(200);
+		server.stop();
+		System.exit(0);
+	}
+
+	/**
+	 * Opens sessions one after another and returns the nanoseconds to the
+	 * open, to the echo and to running on websocket, 0 if it did not within
+	 * two seconds, of the last one.
+	 */
+	private static long[] run(LoopbackServer server, String mode, int sessions)
+			throws Exception {
+		long[] times = new long[3];
+		for (int i = 0; i < sessions; i++) {
+			Session session = new Session();
+			session.host("127.0.0.1").port(server.getPort());
+			if (mode.equals("polling"))
+				session.transports(new PollingTransport());
+			else if (mode.equals("websocket"))
+				session.transports(new NioWebsocketTransport());
+			else
+				session.race(mode.equals("race"));
+			long start = System.nanoTime();
+			session.open();
+			session.send("first");
+			if (!session.echoed.await(10, TimeUnit.SECONDS))
+				throw new IllegalStateException(mode + " did not echo");
+			times[0] = session.openedAt - start;
+			times[1] = session.echoedAt - start;
+			times[2] = 0;
+			while (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2)) {
+				if (session.getCurrentTransport().equals(WebsocketTransport.NAME)) {
+					times[2] = System.nanoTime() - start;
+					break;
+				}
+				if (mode.equals("polling"))
+					break;
+				Thread.sleep(1);
+			}
+			session.close();
+		}
+		return times;
+	}
+}
@@ -0,0 +1,70 @@
+package io.engine;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the throughput of {@link EngineIO#send(String)} with 1, 4, 16 and
+ * 64 threads publishing to one engine through a {@link CountingTransport}.
+ *
+ * Usage: SendBenchmark [messages per round] [rounds]
+ */
+public class SendBenchmark {
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int[] producers = { 1, 4, 16, 64 };
+		// warm up
+		for (int i = 0; i < 3; i++)
+			run(4, messages / 4);
+		for (int threads : producers) {
+			double best = 0;
+			for (int i = 0; i < rounds; i++)
+				best = Math.max(best, run(threads, messages));
+			System.out.printf("%2d producers: %,12.0f messages/s%n", threads,
+					best);
+		}
+		System.exit(0);
+	}
+
+	private static double run(int threads, int messages) throws Exception {
+		final CountingTransport transport = new CountingTransport();
+		final EngineIO engine = new EngineIO() {
+			@Override
+			public void onMessage(String message) {
+			}
+		};
+		engine.transports(transport).pingTimeout(Integer.MAX_VALUE)
+				.sendBufferWatermarks(Integer.MAX_VALUE, Integer.MAX_VALUE)
+				.sendBufferByteWatermarks(Long.MAX_VALUE, Long.MAX_VALUE);
+		engine.open();
+		transport.allowSend(true);
+
+		final int perThread = messages / threads;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < perThread; j++)
+						engine.send("message");
+					done.countDown();
+				}
+			}.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long total = (long) perThread * threads;
+		while (transport.sent.get() < total)
+			Thread.yield();
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		engine.close();
+		return total / seconds;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * engine.io Base64Codec.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.io.IOException;
+
+/**
+ * Base64 as used by polling for binary packets, encoding into and decoding
+ * from the buffers of the payload codecs without intermediate Strings.
+ */
+final class Base64Codec {
+	final private static char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+	final private static int[] VALUES = new int[128];
+
+	static {
+		for (int i = 0; i < VALUES.length; i++)
+			VALUES[i] = -1;
+		for (int i = 0; i < ALPHABET.length; i++)
+			VALUES[ALPHABET[i]] = i;
+	}
+
+	private Base64Codec() {
+	}
+
+	static int encodedLength(int length) {
+		return (length + 2) / 3 * 4;
+	}
+
+	/**
+	 * Encodes length bytes of in at offset into out at position, returns the
+	 * position after them.
+	 */
+	static int encode(byte[] in, int offset, int length, byte[] out,
+			int position) {
+		int end = offset + length;
+		int i = offset;
+		for (; i + 2 < end; i += 3) {
+			int bits = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8
+					| (in[i + 2] & 0xff);
+			out[position++] = (byte) ALPHABET[bits >>> 18];
+			out[position++] = (byte) ALPHABET[(bits >>> 12) & 0x3f];
+			out[position++] = (byte) ALPHABET[(bits >>> 6) & 0x3f];
+			out[position++] = (byte) ALPHABET[bits & 0x3f];
+		}
+		int rest = end - i;
+		if (rest > 0) {
+			int bits = (in[i] & 0xff) << 16
+					| (rest == 2 ? (in[i + 1] & 0xff) << 8 : 0);
+			out[position++] = (byte) ALPHABET[bits >>> 18];
+			out[position++] = (byte) ALPHABET[(bits >>> 12) & 0x3f];
+			out[position++] = rest == 2 ? (byte) ALPHABET[(bits >>> 6) & 0x3f]
+					: (byte) '=';
+			out[position++] = '=';
+		}
+		return position;
+	}
+
+	/**
+	 * Decodes the chars of in from offset to end.
+	 */
+	static byte[] decode(char[] in, int offset, int end) throws IOException {
+		int length = end - offset;
+		if (length % 4 != 0)
+			throw new IOException("Invalid base64 length");
+		int padding = 0;
+		if (length > 0 && in[end - 1] == '=')
+			padding = in[end - 2] == '=' ? 2 : 1;
+		byte[] out = new byte[length / 4 * 3 - padding];
+		int position = 0;
+		for (int i = offset; i < end; i += 4) {
+			int bits = value(in[i]) << 18 | value(in[i + 1]) << 12;
+			out[position++] = (byte) (bits >>> 16);
+			if (position == out.length)
+				break;
+			bits |= value(in[i + 2]) << 6;
+			out[position++] = (byte) (bits >>> 8);
+			if (position == out.length)
+				break;
+			bits |= value(in[i + 3]);
+			out[position++] = (byte) bits;
+		}
+		return out;
+	}
+
+	private static int value(char c) throws IOException {
+		int value = c < VALUES.length ? VALUES[c] : -1;
+		if (value < 0)
+			throw new IOException("Invalid base64 character");
+		return value;
+	}
+}
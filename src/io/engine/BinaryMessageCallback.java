@@ -0,0 +1,23 @@
+/*
+ * engine.io BinaryMessageCallback.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A callback which takes binary messages. Binary messages for other
+ * callbacks are logged and dropped.
+ */
+public interface BinaryMessageCallback extends EngineIOCallback {
+	/**
+	 * Called for a binary message. The buffer holds just the message and
+	 * belongs to the callback.
+	 */
+	void onBinaryMessage(ByteBuffer message);
+}
@@ -0,0 +1,63 @@
+/*
+ * engine.io BufferPool.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Recycles I/O buffers. Every {@link EventLoop} owns its pools, so they are
+ * not thread safe and must only be used from their loop.
+ */
+final class BufferPool {
+	final static int BUFFER_SIZE = 32 * 1024;
+	final private static int MAX_POOLED = 16;
+
+	private final int size;
+	private final boolean direct;
+	private final int maxPooled;
+	private final ArrayDeque<ByteBuffer> buffers;
+
+	/**
+	 * A pool of heap buffers of {@link #BUFFER_SIZE} bytes.
+	 */
+	BufferPool() {
+		this(BUFFER_SIZE, false, MAX_POOLED);
+	}
+
+	BufferPool(int size, boolean direct, int maxPooled) {
+		this.size = size;
+		this.direct = direct;
+		this.maxPooled = maxPooled;
+		this.buffers = new ArrayDeque<ByteBuffer>(maxPooled);
+	}
+
+	int getSize() {
+		return size;
+	}
+
+	ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null)
+			return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer
+					.allocate(size);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Takes back a buffer of this pool. Others are left to the garbage
+	 * collector.
+	 */
+	void release(ByteBuffer buffer) {
+		if (buffer.capacity() == size && buffer.isDirect() == direct
+				&& buffers.size() < maxPooled)
+			buffers.push(buffer);
+	}
+}
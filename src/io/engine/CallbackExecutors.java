@@ -0,0 +1,55 @@
+/*
+ * engine.io CallbackExecutors.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors for {@link EngineIO#callbackExecutor(Executor)}.
+ */
+public final class CallbackExecutors {
+	private static final Executor SAME_THREAD = new Executor() {
+		@Override
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
+
+	private CallbackExecutors() {
+	}
+
+	/**
+	 * Runs callbacks on the I/O thread receiving the packet. This has the
+	 * lowest latency, but a slow callback stalls the connection including
+	 * its pings.
+	 */
+	public static Executor sameThread() {
+		return SAME_THREAD;
+	}
+
+	/**
+	 * Starts a virtual thread for every message. Needs Java 21 or newer.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             if the JRE has no virtual threads
+	 */
+	public static Executor virtualThreadPerMessage() {
+		try {
+			return (Executor) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException(
+					"Virtual threads are not supported by this JRE");
+		} catch (Exception e) {
+			throw new UnsupportedOperationException(
+					"Cannot create virtual thread executor", e);
+		}
+	}
+}
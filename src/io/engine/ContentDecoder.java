@@ -0,0 +1,255 @@
+/*
+ * engine.io ContentDecoder.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates a gzip or deflate encoded response body arriving in arbitrary
+ * chunks. The inflaters and the output buffer are reused for every body, so
+ * decoding allocates nothing. {@link #close()} frees the inflaters.
+ */
+final class ContentDecoder {
+	interface Listener {
+		/**
+		 * Called with decoded bytes. The buffer has to be consumed
+		 * completely and is reused afterwards.
+		 */
+		void data(ByteBuffer data);
+	}
+
+	final private static int OUTPUT_SIZE = 8 * 1024;
+	// gzip header flags
+	final private static int FHCRC = 2;
+	final private static int FEXTRA = 4;
+	final private static int FNAME = 8;
+	final private static int FCOMMENT = 16;
+	// decoding states
+	final private static int HEADER = 0;
+	final private static int EXTRA_LENGTH = 1;
+	final private static int EXTRA = 2;
+	final private static int NAME = 3;
+	final private static int COMMENT = 4;
+	final private static int HEADER_CRC = 5;
+	final private static int BODY = 6;
+	final private static int TRAILER = 7;
+	final private static int DONE = 8;
+
+	private final Listener listener;
+	private Inflater gzipInflater = null;
+	private Inflater zlibInflater = null;
+	private Inflater inflater;
+	private final CRC32 crc = new CRC32();
+	private final byte[] output = new byte[OUTPUT_SIZE];
+	private final ByteBuffer outputBuffer = ByteBuffer.wrap(output);
+	/** Copies of direct input buffers, which the inflater cannot read. */
+	private byte[] input = null;
+	private boolean gzip;
+	private int state = DONE;
+	private int flags;
+	/** Bytes left of the current fixed size header field or trailer. */
+	private int needed;
+	private long field;
+
+	ContentDecoder(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns true for the Content-Encodings this can decode.
+	 */
+	static boolean isSupported(String encoding) {
+		return isGzip(encoding) || encoding.equalsIgnoreCase("deflate");
+	}
+
+	private static boolean isGzip(String encoding) {
+		return encoding.equalsIgnoreCase("gzip")
+				|| encoding.equalsIgnoreCase("x-gzip");
+	}
+
+	/**
+	 * Starts a body of a supported encoding.
+	 */
+	void begin(String encoding) {
+		gzip = isGzip(encoding);
+		if (gzip) {
+			if (gzipInflater == null)
+				gzipInflater = new Inflater(true);
+			inflater = gzipInflater;
+			crc.reset();
+			state = HEADER;
+			needed = 10;
+		} else {
+			if (zlibInflater == null)
+				zlibInflater = new Inflater();
+			inflater = zlibInflater;
+			state = BODY;
+		}
+		inflater.reset();
+	}
+
+	/**
+	 * Decodes all remaining bytes of data.
+	 */
+	void decode(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			switch (state) {
+			case BODY:
+				inflate(data);
+				break;
+			case EXTRA: {
+				int skip = Math.min(needed, data.remaining());
+				data.position(data.position() + skip);
+				needed -= skip;
+				if (needed == 0)
+					nextHeaderField();
+				break;
+			}
+			case DONE:
+				throw new IOException("Data after the compressed body");
+			default:
+				headerByte(data.get() & 0xff);
+			}
+		}
+	}
+
+	/**
+	 * Marks the end of the body.
+	 */
+	void end() throws IOException {
+		if (state != DONE)
+			throw new IOException("Compressed body ended early");
+	}
+
+	/**
+	 * Frees the inflaters. The decoder may be used again afterwards.
+	 */
+	void close() {
+		if (gzipInflater != null)
+			gzipInflater.end();
+		if (zlibInflater != null)
+			zlibInflater.end();
+		gzipInflater = zlibInflater = inflater = null;
+		state = DONE;
+	}
+
+	private void headerByte(int b) throws IOException {
+		switch (state) {
+		case HEADER:
+			int index = 10 - needed--;
+			if ((index == 0 && b != 0x1f) || (index == 1 && b != 0x8b)
+					|| (index == 2 && b != 8))
+				throw new IOException("Not in gzip format");
+			if (index == 3)
+				flags = b;
+			if (needed == 0)
+				nextHeaderField();
+			break;
+		case EXTRA_LENGTH:
+			field |= (long) b << (8 * (2 - needed--));
+			if (needed == 0) {
+				needed = (int) field;
+				state = EXTRA;
+				if (needed == 0)
+					nextHeaderField();
+			}
+			break;
+		case NAME:
+		case COMMENT:
+			if (b == 0)
+				nextHeaderField();
+			break;
+		case HEADER_CRC:
+			if (--needed == 0)
+				nextHeaderField();
+			break;
+		case TRAILER:
+			field |= (long) b << (8 * (8 - needed--));
+			if (needed == 0)
+				checkTrailer();
+			break;
+		}
+	}
+
+	/**
+	 * Moves on to the next optional header field the flags announced.
+	 */
+	private void nextHeaderField() {
+		field = 0;
+		if ((flags & FEXTRA) != 0) {
+			flags &= ~FEXTRA;
+			state = EXTRA_LENGTH;
+			needed = 2;
+		} else if ((flags & FNAME) != 0) {
+			flags &= ~FNAME;
+			state = NAME;
+		} else if ((flags & FCOMMENT) != 0) {
+			flags &= ~FCOMMENT;
+			state = COMMENT;
+		} else if ((flags & FHCRC) != 0) {
+			flags &= ~FHCRC;
+			state = HEADER_CRC;
+			needed = 2;
+		} else {
+			state = BODY;
+		}
+	}
+
+	private void inflate(ByteBuffer data) throws IOException {
+		int length = data.remaining();
+		if (data.hasArray()) {
+			inflater.setInput(data.array(), data.arrayOffset()
+					+ data.position(), length);
+		} else {
+			if (input == null || input.length < length)
+				input = new byte[Math.max(length, OUTPUT_SIZE)];
+			data.duplicate().get(input, 0, length);
+			inflater.setInput(input, 0, length);
+		}
+		try {
+			while (true) {
+				int inflated = inflater.inflate(output);
+				if (inflated > 0) {
+					if (gzip)
+						crc.update(output, 0, inflated);
+					outputBuffer.clear();
+					outputBuffer.limit(inflated);
+					listener.data(outputBuffer);
+				}
+				if (inflater.finished()) {
+					state = gzip ? TRAILER : DONE;
+					field = 0;
+					needed = 8;
+					break;
+				}
+				if (inflated == 0) {
+					if (inflater.needsDictionary())
+						throw new IOException("Preset dictionaries are not supported");
+					if (inflater.needsInput())
+						break;
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Malformed compressed body", e);
+		}
+		data.position(data.limit() - inflater.getRemaining());
+	}
+
+	private void checkTrailer() throws IOException {
+		if ((field & 0xffffffffL) != crc.getValue())
+			throw new IOException("Corrupt gzip body");
+		if ((field >>> 32) != (inflater.getBytesWritten() & 0xffffffffL))
+			throw new IOException("Gzip body size mismatch");
+		state = DONE;
+	}
+}
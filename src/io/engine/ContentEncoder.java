@@ -0,0 +1,82 @@
+/*
+ * engine.io ContentEncoder.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzips request bodies into one reusable buffer with one reusable deflater.
+ * {@link #close()} frees the deflater.
+ */
+final class ContentEncoder {
+	final private static int INITIAL_CAPACITY = 4 * 1024;
+	final private static int MAX_RETAINED_CAPACITY = 256 * 1024;
+	final private static byte[] HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0,
+			0, 0, (byte) 0xff };
+	final private static int TRAILER = 8;
+
+	private Deflater deflater = null;
+	private final CRC32 crc = new CRC32();
+	private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+	/**
+	 * Returns the remaining bytes of body, which has to be backed by an
+	 * array, gzipped without moving its position. The result is valid until
+	 * the next call.
+	 */
+	ByteBuffer encode(ByteBuffer body) {
+		if (deflater == null)
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		if (buffer.capacity() > MAX_RETAINED_CAPACITY)
+			buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+		buffer.clear();
+		buffer.put(HEADER);
+		byte[] in = body.array();
+		int offset = body.arrayOffset() + body.position();
+		int length = body.remaining();
+		crc.reset();
+		crc.update(in, offset, length);
+		deflater.reset();
+		deflater.setInput(in, offset, length);
+		deflater.finish();
+		while (!deflater.finished()) {
+			if (!buffer.hasRemaining())
+				grow();
+			int written = deflater.deflate(buffer.array(), buffer.position(),
+					buffer.remaining());
+			buffer.position(buffer.position() + written);
+		}
+		if (buffer.remaining() < TRAILER)
+			grow();
+		putIntLE((int) crc.getValue());
+		putIntLE(length);
+		ByteBuffer encoded = buffer.duplicate();
+		encoded.flip();
+		return encoded;
+	}
+
+	void close() {
+		if (deflater != null)
+			deflater.end();
+		deflater = null;
+	}
+
+	private void grow() {
+		ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+		buffer.flip();
+		buffer = bigger.put(buffer);
+	}
+
+	private void putIntLE(int value) {
+		for (int i = 0; i < 4; i++)
+			buffer.put((byte) (value >>> (8 * i)));
+	}
+}
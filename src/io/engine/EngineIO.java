@@ -8,15 +8,23 @@
  */
 package io.engine;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -25,13 +33,23 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-public class EngineIO implements EngineIOCallback {
+public class EngineIO implements LargeMessageCallback,
+		BinaryMessageCallback, WritabilityCallback {
+	/** The priority of messages sent without one. */
+	public static final int PRIORITY_NORMAL = Packet.PRIORITY_NORMAL;
+	/**
+	 * Messages of this priority are written before the normal ones still
+	 * waiting, but after control packets like pongs.
+	 */
+	public static final int PRIORITY_HIGH = Packet.PRIORITY_HIGH;
+
 	final private static char TYPE_OPEN = '0';
 	final private static char TYPE_CLOSE = '1';
 	final private static char TYPE_PING = '2';
 	final private static char TYPE_PONG = '3';
 	final private static char TYPE_MESSAGE = '4';
 	final private static char TYPE_UPGRADE = '5';
+	final private static char TYPE_NOOP = '6';
 	final private static String PROBE = "probe";
 	final private static Logger LOGGER = Logger.getLogger("engine.io");
 	final private static Pattern TRIM_SLASH = Pattern.compile("/$");
@@ -44,28 +62,95 @@ public class EngineIO implements EngineIOCallback {
 	private boolean secure = false;
 	private String basePath = "/engine.io";
 	private boolean upgrade = true;
+	private boolean race = false;
+	private boolean compression = true;
+	private int requestCompression = -1;
+	private int largeMessages = -1;
 	private IOTransport[] transports = new IOTransport[] {
-			new PollingTransport(), new WebsocketTransport() };
+			new PollingTransport(), new NioWebsocketTransport() };
 	private EngineIOCallback callback = this;
+	/** Runs the callbacks in order, null to call them directly. */
+	private volatile Executor callbackExecutor = null;
+	private EventLoopGroup eventLoopGroup = null;
+	private volatile EngineIOMetrics metrics = EngineIOMetrics.NONE;
 	private String uid;
 	private String sid;
+	/** Changes whenever the result of genQuery() may change. */
+	private volatile int queryVersion = 0;
 	private int pingTimeout = 10000;
+	private volatile long reconnectDelay = 1000;
+	private volatile long reconnectDelayMax = 30000;
+	private volatile int reconnectAttempts = 10;
+	private volatile int lowWatermark = 2048;
+	private volatile int highWatermark = 4096;
+	private volatile long lowByteWatermark = 8 * 1024 * 1024;
+	private volatile long highByteWatermark = 16 * 1024 * 1024;
+
+	// Messages sent but not yet written by a transport.
+	private final AtomicInteger bufferedPackets = new AtomicInteger();
+	private final AtomicLong bufferedBytes = new AtomicLong();
+	private final AtomicBoolean writable = new AtomicBoolean(true);
+	/** Spills messages while the transport is down, may be null. */
+	private volatile Journal journal = null;
+	private int journalWindow;
+	/** Futures of journaled messages by sequence, guarded by the journal. */
+	private final HashMap<Long, SendFuture> journaled = new HashMap<Long, SendFuture>();
+	/** Set while a journaled message is on its way to the transport. */
+	private boolean replaying = false;
+	/** Counts the replay requests, the thread raising it from 0 replays. */
+	private final AtomicInteger replayRequests = new AtomicInteger();
+	/** The latest unsent message per key, see {@link #sendConflated}. */
+	private final ConcurrentHashMap<String, Packet> conflated = new ConcurrentHashMap<String, Packet>();
 
-	private IOTransport currentTransport = null;
-	private IOTransport upgradingTransport = null;
+	private volatile IOTransport currentTransport = null;
+	private volatile IOTransport upgradingTransport = null;
+	/** Transports racing to open, see {@link #race(boolean)}. */
+	private IOTransport[] racingTransports = null;
+	/** The transport which won the race, only its handshake counts. */
+	private IOTransport raceWinner = null;
+	/** Set once the current transport paused and hands over to the upgrade. */
+	private volatile boolean handingOver = false;
 
-	private final Timer timer = new Timer("background timer");
+	private final WheelTimer timer = WheelTimer.shared();
 
-	private PingTimeoutTask pingTimeoutTask;
+	private final PingTimeoutTask pingTimeoutTask = new PingTimeoutTask();
+	private final Runnable pingTimeoutHandoff = offTimer(pingTimeoutTask);
+	/** Runs the timer tasks of this engine, see {@link #offTimer(Runnable)}. */
+	private EventLoop timerLoop = null;
+	private WheelTimer.Timeout pingTimeoutCheck;
+	private WheelTimer.Timeout probeTimeoutCheck;
+	private volatile long lastSeen;
+	/** When the last ping was sent, 0 once answered. */
+	private volatile long pingSentAt = 0;
+	private volatile long upgradeStartedAt;
+	private volatile long pauseStartedAt;
 	private Exception lastException = null;
 
-	private final class PingTimeoutTask extends TimerTask {
+	/**
+	 * Checks the time since the last received packet. Instead of rescheduling
+	 * on every packet it reschedules itself until the connection is idle for
+	 * pingTimeout.
+	 */
+	private final class PingTimeoutTask implements Runnable {
 		@Override
 		public void run() {
-			currentTransport.shutdown();
-			if (upgradingTransport != null)
-				upgradingTransport.shutdown();
-			onError(new EngineIOException("Timeout occured", lastException));
+			// handed to the loop just before the timers were stopped
+			synchronized (EngineIO.this) {
+				if (pingTimeoutCheck == null)
+					return;
+			}
+			long idle = System.nanoTime() - lastSeen;
+			long timeout = TimeUnit.MILLISECONDS.toNanos(getPingTimeout());
+			if (idle < timeout) {
+				watchPingTimeout(timeout - idle);
+				return;
+			}
+			// the reconnect attempts are limited on their own
+			if (currentTransport.isReconnecting()) {
+				watchPingTimeout(timeout);
+				return;
+			}
+			fail("Timeout occured");
 		}
 	};
 
@@ -88,11 +173,16 @@ public class EngineIO implements EngineIOCallback {
 
 	public EngineIO pingTimeout(int pingTimeout) {
 		this.pingTimeout = pingTimeout;
+		synchronized (this) {
+			if (pingTimeoutCheck != null)
+				watchPingTimeout(TimeUnit.MILLISECONDS.toNanos(pingTimeout));
+		}
 		return this;
 	}
 
 	public EngineIO query(Map<String, String> query) {
 		this.query = new ConcurrentHashMap<String, String>(query);
+		queryVersion++;
 		return this;
 	}
 
@@ -111,6 +201,100 @@ public class EngineIO implements EngineIOCallback {
 		return this;
 	}
 
+	/**
+	 * Opens all transports at once instead of the first and upgrading, and
+	 * keeps the one which completes the handshake first. Messages sent before
+	 * wait and are passed to the winner. This saves round trips where a
+	 * direct websocket works, at the cost of a second handshake. The server
+	 * session of a losing polling transport is left to time out.
+	 */
+	public EngineIO race(boolean race) {
+		this.race = race;
+		return this;
+	}
+
+	/**
+	 * Waits before a transport reconnects after losing its connection. The
+	 * wait is random up to delay, doubled with every failed attempt in a row
+	 * up to max milliseconds, so clients dropped together do not come back
+	 * together.
+	 */
+	public EngineIO reconnectDelay(long delay, long max) {
+		if (delay <= 0 || delay > max)
+			throw new IllegalArgumentException("Invalid reconnect delay "
+					+ delay + ", " + max);
+		this.reconnectDelay = delay;
+		this.reconnectDelayMax = max;
+		return this;
+	}
+
+	/**
+	 * Gives up and calls onError after attempts failed reconnects in a row.
+	 */
+	public EngineIO reconnectAttempts(int attempts) {
+		if (attempts < 0)
+			throw new IllegalArgumentException("Invalid reconnect attempts "
+					+ attempts);
+		this.reconnectAttempts = attempts;
+		return this;
+	}
+
+	/**
+	 * Lets polling accept gzip or deflate compressed responses. The server
+	 * decides which ones are worth compressing. On by default.
+	 */
+	public EngineIO compression(boolean compression) {
+		this.compression = compression;
+		return this;
+	}
+
+	/**
+	 * Gzips polling requests of at least threshold bytes, -1 never does, the
+	 * default. Only for servers accepting compressed requests, engine.io
+	 * itself does not.
+	 */
+	public EngineIO requestCompression(int threshold) {
+		this.requestCompression = threshold;
+		return this;
+	}
+
+	/**
+	 * Passes messages of at least threshold chars to
+	 * {@link LargeMessageCallback#onLargeMessage(CharBuffer)} as a view of
+	 * the receive buffer instead of copying them into a String. Callbacks not
+	 * implementing it get them as a String. -1, the default, never does.
+	 */
+	public EngineIO largeMessages(int threshold) {
+		if (threshold < -1)
+			throw new IllegalArgumentException("Invalid threshold " + threshold);
+		this.largeMessages = threshold;
+		return this;
+	}
+
+	/**
+	 * Spills messages to a memory-mapped file of capacity bytes while the
+	 * transport is down and window messages are waiting already. They are
+	 * sent in order once a transport is connected again, or by the next
+	 * engine using the file, a window or low watermark of them at a time.
+	 * With syncEvery > 0 the file is forced to disk after that many
+	 * messages. Only normal priority messages are spilled, the journal
+	 * rejects them when full.
+	 */
+	public EngineIO journal(File file, int window, int capacity, int syncEvery)
+			throws IOException {
+		if (window < 0)
+			throw new IllegalArgumentException("Invalid window " + window);
+		Journal previous = this.journal;
+		this.journalWindow = window;
+		this.journal = new Journal(file, capacity, syncEvery);
+		if (previous != null) {
+			synchronized (previous) {
+				previous.close();
+			}
+		}
+		return this;
+	}
+
 	public EngineIO transports(IOTransport... transports) {
 		if (transports == null || transports.length == 0)
 			throw new RuntimeException("Transports cannot be empty.");
@@ -118,11 +302,66 @@ public class EngineIO implements EngineIOCallback {
 		return this;
 	}
 
+	/**
+	 * Limits the number of messages waiting to be written. Once high messages
+	 * are waiting the engine turns unwritable and rejects messages until no
+	 * more than low are left.
+	 */
+	public EngineIO sendBufferWatermarks(int low, int high) {
+		if (low < 0 || low > high)
+			throw new IllegalArgumentException("Invalid watermarks " + low
+					+ ", " + high);
+		this.lowWatermark = low;
+		this.highWatermark = high;
+		return this;
+	}
+
+	/**
+	 * Like {@link #sendBufferWatermarks(int, int)}, but for the UTF-8 size of
+	 * the waiting messages.
+	 */
+	public EngineIO sendBufferByteWatermarks(long low, long high) {
+		if (low < 0 || low > high)
+			throw new IllegalArgumentException("Invalid watermarks " + low
+					+ ", " + high);
+		this.lowByteWatermark = low;
+		this.highByteWatermark = high;
+		return this;
+	}
+
 	public EngineIO callback(EngineIOCallback callback) {
 		this.callback = callback;
 		return this;
 	}
 
+	/**
+	 * Runs the callbacks on executor instead of the I/O thread, so slow
+	 * callbacks do not hold up the connection. Callbacks of this engine still
+	 * run one at a time and in order. See {@link CallbackExecutors} for
+	 * built-in executors, null calls them directly on the I/O thread. Timeouts
+	 * are never handled on the timer thread shared by all engines, but on an
+	 * event loop.
+	 */
+	public EngineIO callbackExecutor(Executor executor) {
+		this.callbackExecutor = executor == null ? null : new SerialExecutor(
+				executor);
+		return this;
+	}
+
+	/**
+	 * Reports traffic, flushes, upgrades, reconnects and ping round trips to
+	 * metrics, for example a {@link SessionMetrics}.
+	 */
+	public EngineIO metrics(EngineIOMetrics metrics) {
+		this.metrics = metrics == null ? EngineIOMetrics.NONE : metrics;
+		return this;
+	}
+
+	public EngineIO eventLoopGroup(EventLoopGroup eventLoopGroup) {
+		this.eventLoopGroup = eventLoopGroup;
+		return this;
+	}
+
 	// Configuration END
 
 	public String getUid() {
@@ -157,6 +396,22 @@ public class EngineIO implements EngineIOCallback {
 		return upgrade;
 	}
 
+	public boolean isRace() {
+		return race;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	public int getRequestCompression() {
+		return requestCompression;
+	}
+
+	public int getLargeMessages() {
+		return largeMessages;
+	}
+
 	public IOTransport[] getTransports() {
 		return transports;
 	}
@@ -165,6 +420,15 @@ public class EngineIO implements EngineIOCallback {
 		return callback;
 	}
 
+	public EngineIOMetrics getMetrics() {
+		return metrics;
+	}
+
+	public EventLoopGroup getEventLoopGroup() {
+		return eventLoopGroup == null ? EventLoopGroup.shared()
+				: eventLoopGroup;
+	}
+
 	public String getCurrentTransport() {
 		return currentTransport == null ? transports[0].getName()
 				: currentTransport.getName();
@@ -178,9 +442,32 @@ public class EngineIO implements EngineIOCallback {
 		return pingTimeout;
 	}
 
+	/**
+	 * Returns false while the send buffer is full. Messages sent meanwhile are
+	 * rejected.
+	 */
+	public boolean isWritable() {
+		return writable.get();
+	}
+
+	/**
+	 * The number of messages waiting to be written.
+	 */
+	public int getBufferedPackets() {
+		return bufferedPackets.get();
+	}
+
+	/**
+	 * The UTF-8 size of the messages waiting to be written.
+	 */
+	public long getBufferedBytes() {
+		return bufferedBytes.get();
+	}
+
 	public EngineIO open() {
 		this.uid = ("" + Math.random()).substring(5)
 				+ ("" + Math.random()).substring(5);
+		queryVersion++;
 		if (currentTransport != null)
 			throw new RuntimeException(
 					"Dublicated open call. Please call open only once!");
@@ -190,12 +477,27 @@ public class EngineIO implements EngineIOCallback {
 					"No Transports to connect available. If you're implementing your own transport "
 							+ "make sure you overwrite instanceTransport(String) in EngineIO"
 							+ "to instanciate your custom EngineIOTransport.");
+		IOTransport[] racers = null;
+		if (isRace() && transports.length > 1) {
+			racers = transports.clone();
+			racingTransports = racers;
+			currentTransport.hold();
+		}
 		try {
-			currentTransport.start(this);
 			resetPingTimeout();
+			watchPingTimeout(TimeUnit.MILLISECONDS.toNanos(getPingTimeout()));
+			if (racers == null) {
+				currentTransport.start(this);
+			} else {
+				// The race is decided once all racers started. The later ones,
+				// usually websockets, start first as they connect slower.
+				synchronized (this) {
+					for (int i = racers.length - 1; i >= 0; i--)
+						racers[i].start(this);
+				}
+			}
 		} catch (Exception e) {
-			callback.onError(new EngineIOException(
-					"Error while opening connection", e));
+			fireError(new EngineIOException("Error while opening connection", e));
 		}
 		return this;
 	}
@@ -236,10 +538,24 @@ public class EngineIO implements EngineIOCallback {
 	}
 
 	void transportPacket(IOTransport transport, String data) {
-		LOGGER.info("< " + data);
+		if (data.length() == 0) {
+			LOGGER.warning("Received empty packet. Ignoring...");
+			return;
+		}
+		char type = data.charAt(0);
+		if (type == TYPE_MESSAGE && largeMessages >= 0
+				&& data.length() - 1 >= largeMessages)
+			transportPacket(transport, type, CharBuffer.wrap(data, 1,
+					data.length()).slice());
+		else
+			transportPacket(transport, type, data.substring(1));
+	}
+
+	void transportPacket(IOTransport transport, char type, String message) {
+		if (LOGGER.isLoggable(Level.INFO))
+			LOGGER.info("< " + type + message);
+		metrics.packetReceived(type, message);
 		try {
-			char type = data.charAt(0);
-			CharSequence message = data.subSequence(1, data.length());
 			switch (type) {
 			case TYPE_OPEN:
 				receivedOpen(transport, message);
@@ -248,13 +564,15 @@ public class EngineIO implements EngineIOCallback {
 				receivedClose(transport);
 				break;
 			case TYPE_PING:
-				send(transport, TYPE_PONG, message.toString());
+				send(transport, TYPE_PONG, message);
 				break;
 			case TYPE_PONG:
 				receivedPong(transport, message);
 				break;
 			case TYPE_MESSAGE:
-				onMessage(message.toString());
+				fireMessage(message);
+				break;
+			case TYPE_NOOP:
 				break;
 			// We're not supposed to handle them
 			case TYPE_UPGRADE:
@@ -268,32 +586,502 @@ public class EngineIO implements EngineIOCallback {
 		}
 	}
 
+	/**
+	 * Handles a binary packet, which carries a message.
+	 */
+	void transportPacket(IOTransport transport, char type, ByteBuffer message) {
+		if (LOGGER.isLoggable(Level.INFO))
+			LOGGER.info("< b" + type + " " + message.remaining() + " bytes");
+		metrics.binaryReceived(type, message.remaining());
+		try {
+			if (type == TYPE_MESSAGE)
+				fireBinaryMessage(message);
+			else
+				LOGGER.warning("Received binary package type " + type
+						+ ". We can't handle this.");
+			resetPingTimeout();
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Garbaged packet. Ignoring...", e);
+		}
+	}
+
+	/**
+	 * Handles a packet of at least the large message threshold without
+	 * copying it, unless it is no message.
+	 */
+	void transportPacket(IOTransport transport, char type, CharBuffer message) {
+		if (type != TYPE_MESSAGE) {
+			transportPacket(transport, type, message.toString());
+			return;
+		}
+		if (LOGGER.isLoggable(Level.INFO))
+			LOGGER.info("< " + type + " " + message.remaining() + " chars");
+		metrics.packetReceived(type, message);
+		try {
+			fireLargeMessage(message);
+			resetPingTimeout();
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Garbaged packet. Ignoring...", e);
+		}
+	}
+
 	synchronized void transportFailed(IOTransport transport, String message,
 			Exception exception) {
 		lastException = exception;
 	}
 
+	/**
+	 * Returns the milliseconds to wait before the given reconnect attempt,
+	 * counting from 1, or -1 if there are no attempts left.
+	 */
+	long reconnectDelay(int attempt) {
+		if (attempt > reconnectAttempts)
+			return -1;
+		long max = reconnectDelayMax;
+		long ceiling = reconnectDelay;
+		for (int i = 1; i < attempt && ceiling < max; i++)
+			ceiling *= 2;
+		return (long) (Math.random() * Math.min(ceiling, max));
+	}
+
+	/**
+	 * Called by a transport which got through again after reconnecting.
+	 */
+	void transportReconnected(IOTransport transport) {
+		if (transport == currentTransport)
+			resetPingTimeout();
+	}
+
+	/**
+	 * Called by a transport which ran out of reconnect attempts.
+	 */
+	void transportLost(IOTransport transport) {
+		if (transport == upgradingTransport)
+			abortUpgrade(transport, "Upgrade transport lost");
+		else if (transport == currentTransport)
+			fail("Reconnecting failed");
+	}
+
+	/**
+	 * Called by a transport the server rejected the session of. The next
+	 * request opens a new session, messages buffered meanwhile go there.
+	 */
+	void sessionLost(IOTransport transport) {
+		synchronized (this) {
+			if (transport != currentTransport || sid == null)
+				return;
+		}
+		LOGGER.warning("Server lost session, opening a new one");
+		setSid(null);
+	}
+
 	synchronized void setSid(String sid) {
 		this.sid = sid;
+		queryVersion++;
+	}
+
+	int getQueryVersion() {
+		return queryVersion;
 	}
 
 	public void send(String data) {
-		send(TYPE_MESSAGE, data);
+		send(data, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Sends a message with a priority, {@link #PRIORITY_NORMAL} or
+	 * {@link #PRIORITY_HIGH}. Messages of one priority keep their order,
+	 * those of different ones may overtake each other.
+	 */
+	public void send(String data, int priority) {
+		if (!send(new Packet(TYPE_MESSAGE, data, null, lane(priority))))
+			LOGGER.warning("Send buffer is full. Dropping message.");
+	}
+
+	/**
+	 * Sends a message like {@link #send(String)}. The returned future
+	 * completes once the message was written, or fails if the send buffer is
+	 * full or the transport closed before.
+	 */
+	public SendFuture sendAsync(String data) {
+		return sendAsync(data, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Sends a message like {@link #send(String, int)}, see
+	 * {@link #sendAsync(String)}.
+	 */
+	public SendFuture sendAsync(String data, int priority) {
+		SendFuture future = new SendFuture();
+		if (!send(new Packet(TYPE_MESSAGE, data, future, lane(priority))))
+			future.complete(new EngineIOException("Send buffer is full"));
+		return future;
+	}
+
+	/**
+	 * Sends a binary message. It is copied at once, so data may be reused.
+	 */
+	public void send(byte[] data) {
+		send(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Sends the remaining bytes of data as a binary message, without moving
+	 * its position. They are copied at once, so data may be reused.
+	 */
+	public void send(ByteBuffer data) {
+		send(data, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Sends a binary message like {@link #send(ByteBuffer)} with a priority,
+	 * see {@link #send(String, int)}.
+	 */
+	public void send(ByteBuffer data, int priority) {
+		if (!send(new Packet(TYPE_MESSAGE, data, null, lane(priority))))
+			LOGGER.warning("Send buffer is full. Dropping message.");
+	}
+
+	/**
+	 * Sends a binary message like {@link #send(byte[])}, see
+	 * {@link #sendAsync(String)}.
+	 */
+	public SendFuture sendAsync(byte[] data) {
+		return sendAsync(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Sends a binary message like {@link #send(ByteBuffer)}, see
+	 * {@link #sendAsync(String)}.
+	 */
+	public SendFuture sendAsync(ByteBuffer data) {
+		return sendAsync(data, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Sends a binary message like {@link #send(ByteBuffer, int)}, see
+	 * {@link #sendAsync(String)}.
+	 */
+	public SendFuture sendAsync(ByteBuffer data, int priority) {
+		SendFuture future = new SendFuture();
+		if (!send(new Packet(TYPE_MESSAGE, data, future, lane(priority))))
+			future.complete(new EngineIOException("Send buffer is full"));
+		return future;
+	}
+
+	/**
+	 * Encodes a message once for sending it to many engines, see
+	 * {@link #send(PreparedMessage)}.
+	 */
+	public static PreparedMessage prepare(String data) {
+		return new PreparedMessage(data);
+	}
+
+	/**
+	 * Encodes a binary message once, see {@link #prepare(String)}. It is
+	 * copied at once, so data may be reused.
+	 */
+	public static PreparedMessage prepare(byte[] data) {
+		return prepare(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Encodes the remaining bytes of data as a binary message once, see
+	 * {@link #prepare(String)}. They are copied at once, without moving the
+	 * position of data.
+	 */
+	public static PreparedMessage prepare(ByteBuffer data) {
+		return new PreparedMessage(data);
 	}
 
-	private void send(char type, String data) {
-		send(currentTransport, type, data);
+	/**
+	 * Sends a prepared message. The transports write the encoding shared by
+	 * all engines sending it instead of encoding it again.
+	 */
+	public void send(PreparedMessage message) {
+		send(message, PRIORITY_NORMAL);
 	}
 
-	private synchronized void send(IOTransport transport, char type, String data) {
+	/**
+	 * Sends a prepared message with a priority, see
+	 * {@link #send(String, int)}.
+	 */
+	public void send(PreparedMessage message, int priority) {
+		if (!send(new Packet(message, null, lane(priority))))
+			LOGGER.warning("Send buffer is full. Dropping message.");
+	}
+
+	/**
+	 * Sends a prepared message, see {@link #sendAsync(String)}.
+	 */
+	public SendFuture sendAsync(PreparedMessage message) {
+		return sendAsync(message, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Sends a prepared message with a priority, see
+	 * {@link #sendAsync(String)}.
+	 */
+	public SendFuture sendAsync(PreparedMessage message, int priority) {
+		SendFuture future = new SendFuture();
+		if (!send(new Packet(message, future, lane(priority))))
+			future.complete(new EngineIOException("Send buffer is full"));
+		return future;
+	}
+
+	/**
+	 * Sends a message which replaces the unsent message of the same key, so
+	 * only the latest one per key is written. It keeps the place in the queue
+	 * the first unsent one took. A replaced message fails its future. While
+	 * the send buffer is full only keys with a message waiting are accepted,
+	 * the buffer holds at most one message per key.
+	 */
+	public SendFuture sendConflated(String key, String data) {
+		return sendConflated(key, data, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sends a message like {@link #sendConflated(String, String)}, which is
+	 * dropped if it is not written within ttl. Its future fails then.
+	 */
+	public SendFuture sendConflated(String key, String data, long ttl,
+			TimeUnit unit) {
+		SendFuture future = new SendFuture();
+		conflate(key, new Packet(TYPE_MESSAGE, data, future, PRIORITY_NORMAL,
+				unit.toNanos(ttl)));
+		return future;
+	}
+
+	/**
+	 * Sends a binary message conflated by key, see
+	 * {@link #sendConflated(String, String)}.
+	 */
+	public SendFuture sendConflated(String key, ByteBuffer data) {
+		return sendConflated(key, data, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sends a binary message conflated by key, see
+	 * {@link #sendConflated(String, String, long, TimeUnit)}.
+	 */
+	public SendFuture sendConflated(String key, ByteBuffer data, long ttl,
+			TimeUnit unit) {
+		SendFuture future = new SendFuture();
+		conflate(key, new Packet(TYPE_MESSAGE, data, future, PRIORITY_NORMAL,
+				unit.toNanos(ttl)));
+		return future;
+	}
+
+	/**
+	 * Stores packet as the latest message of key. Only if none was waiting a
+	 * stand-in is queued, which the transport swaps for the latest message
+	 * right before writing.
+	 */
+	private void conflate(String key, Packet packet) {
+		if (!writable.get() && !conflated.containsKey(key)) {
+			packet.future.complete(new EngineIOException("Send buffer is full"));
+			return;
+		}
+		bufferedPackets.incrementAndGet();
+		bufferedBytes.addAndGet(packet.size);
+		updateWritability();
+		Packet replaced = conflated.put(key, packet);
+		if (replaced != null)
+			packetDone(replaced, new EngineIOException("Replaced by a newer message"));
+		else
+			send(currentTransport, new Packet(key));
+	}
+
+	private static int lane(int priority) {
+		if (priority != PRIORITY_NORMAL && priority != PRIORITY_HIGH)
+			throw new IllegalArgumentException("Unknown priority " + priority);
+		return priority;
+	}
+
+	private boolean send(Packet packet) {
+		Journal journal = this.journal;
+		if (journal != null && packet.priority == PRIORITY_NORMAL) {
+			synchronized (journal) {
+				// unless closed meanwhile
+				if (this.journal == journal
+						&& (!journal.isEmpty() || replaying || spilling()))
+					return journal(journal, packet);
+			}
+		}
+		if (!writable.get())
+			return false;
+		bufferedPackets.incrementAndGet();
+		bufferedBytes.addAndGet(packet.size);
+		updateWritability();
+		send(currentTransport, packet);
+		return true;
+	}
+
+	/**
+	 * Whether the transport is down and the journal window is full.
+	 */
+	private boolean spilling() {
+		IOTransport transport = currentTransport;
+		return (transport == null || !transport.isConnected())
+				&& bufferedPackets.get() >= journalWindow;
+	}
+
+	private boolean journal(Journal journal, Packet packet) {
+		long sequence = journal.append(packet);
+		if (sequence < 0)
+			return false;
+		if (packet.future != null)
+			journaled.put(sequence, packet.future);
+		return true;
+	}
+
+	/**
+	 * Sends journaled messages while the transport is connected, until the
+	 * window or the low watermark is reached. Only one thread replays at a
+	 * time, so the messages keep their order, and none holds the journal
+	 * while sending.
+	 */
+	private void replayJournal() {
+		Journal journal = this.journal;
+		if (journal == null || replayRequests.getAndIncrement() != 0)
+			return;
+		int limit = Math.max(journalWindow, Math.max(lowWatermark, 1));
+		int requests = 1;
+		do {
+			for (;;) {
+				IOTransport transport = currentTransport;
+				Packet packet;
+				synchronized (journal) {
+					replaying = false;
+					if (this.journal != journal || journal.isEmpty()
+							|| transport == null || !transport.isConnected()
+							|| bufferedPackets.get() >= limit)
+						break;
+					packet = journal.read(journaled.remove(journal.sequence()));
+					replaying = true;
+				}
+				bufferedPackets.incrementAndGet();
+				bufferedBytes.addAndGet(packet.size);
+				updateWritability();
+				send(transport, packet);
+			}
+			requests = replayRequests.addAndGet(-requests);
+		} while (requests != 0);
+	}
+
+	/**
+	 * Closes the journal and fails the futures of journaled messages, which
+	 * stay in the file for the next engine using it.
+	 */
+	private void closeJournal() {
+		Journal journal = this.journal;
+		if (journal == null)
+			return;
+		synchronized (journal) {
+			this.journal = null;
+			for (SendFuture future : journaled.values())
+				future.complete(new EngineIOException(
+						"Closed, the message stays in the journal"));
+			journaled.clear();
+			journal.close();
+		}
+	}
+
+	/**
+	 * Called by a transport once it is connected.
+	 */
+	void transportConnected(IOTransport transport) {
+		if (transport == currentTransport)
+			replayJournal();
+	}
+
+	private void send(IOTransport transport, char type, String data) {
+		if (type == TYPE_PING)
+			pingSentAt = System.nanoTime();
+		// a close has to follow the messages sent before
+		send(transport, new Packet(type, data, type == TYPE_CLOSE
+				? Packet.PRIORITY_NORMAL : Packet.PRIORITY_CONTROL));
+	}
+
+	private void send(IOTransport transport, Packet packet) {
 		try {
-			transport.bufferedSend(type + data);
+			transport.bufferedSend(packet);
 		} catch (Exception e) {
 			transportFailed(transport, "failed during send", e);
+			packetDone(packet, e);
+		}
+	}
+
+	/**
+	 * Called by the transports right before writing packet, see
+	 * {@link IOTransport#writing(Packet)}.
+	 */
+	Packet packetWriting(Packet packet) {
+		if (packet.key != null) {
+			packet = conflated.remove(packet.key);
+			if (packet == null)
+				return null;
+		}
+		if (packet.isExpired(System.nanoTime())) {
+			packetDone(packet, new EngineIOException("Message expired"));
+			return null;
+		}
+		return packet;
+	}
+
+	/**
+	 * Called by the transports once a packet was written or lost.
+	 */
+	void packetDone(Packet packet, Exception cause) {
+		if (packet.key != null) {
+			// the stand-in of a conflated message was lost
+			Packet message = conflated.remove(packet.key);
+			if (message != null)
+				packetDone(message, cause);
+			return;
+		}
+		if (cause == null) {
+			if (packet.binary != null)
+				metrics.binarySent(packet.type, packet.binary.length - 1);
+			else
+				metrics.packetSent(packet.type, packet.data);
+		}
+		if (packet.size < 0)
+			return;
+		bufferedPackets.decrementAndGet();
+		bufferedBytes.addAndGet(-packet.size);
+		updateWritability();
+		if (packet.future != null)
+			packet.future.complete(cause);
+		if (journal != null)
+			replayJournal();
+	}
+
+	/**
+	 * Flips writability until it matches the buffer, as other threads may
+	 * change the buffer in between.
+	 */
+	private void updateWritability() {
+		while (true) {
+			int packets = bufferedPackets.get();
+			long bytes = bufferedBytes.get();
+			if (writable.get()) {
+				if (packets < highWatermark && bytes < highByteWatermark)
+					return;
+				if (writable.compareAndSet(true, false))
+					fireWritabilityChanged(false);
+			} else {
+				if (packets > lowWatermark || bytes > lowByteWatermark)
+					return;
+				if (writable.compareAndSet(false, true))
+					fireWritabilityChanged(true);
+			}
 		}
 	}
 
 	public void close() {
+		stopTimers();
+		stopRace();
 		for (IOTransport t : new IOTransport[] { currentTransport,
 				upgradingTransport }) {
 			try {
@@ -305,28 +1093,148 @@ public class EngineIO implements EngineIOCallback {
 				transportFailed(t, "failed during close", e);
 			}
 		}
-		callback.onClose();
+		closeJournal();
+		fireClose();
 
 	}
 
-	private void receivedPong(IOTransport transport, CharSequence message) {
+	/**
+	 * Shuts down after the connection was lost for good.
+	 */
+	private void fail(String message) {
+		stopTimers();
+		stopRace();
+		currentTransport.shutdown();
+		IOTransport upgrading = upgradingTransport;
+		if (upgrading != null)
+			upgrading.shutdown();
+		closeJournal();
+		fireError(new EngineIOException(message, lastException));
+	}
+
+	private void receivedPong(IOTransport transport, String message) {
+		long sentAt = pingSentAt;
+		if (sentAt != 0) {
+			pingSentAt = 0;
+			metrics.pingRoundTrip(System.nanoTime() - sentAt);
+		}
 		if (transport == upgradingTransport && PROBE.equals(message)) {
-			try {
-				send(transport, TYPE_UPGRADE, "");
-				currentTransport = transport;
-				upgradingTransport = null;
-				LOGGER.info("Upgrade successful");
-			} catch (Exception e) {
-				LOGGER.log(Level.WARNING, "Upgrade failed", e);
-			}
+			IOTransport current = currentTransport;
+			LOGGER.info("Probe succeeded, pausing " + current.getName());
+			pauseStartedAt = System.nanoTime();
+			current.pauseForUpgrade();
+			// the upgrade may have been given up before it held
+			if (transport != upgradingTransport && current == currentTransport)
+				current.release();
+		}
+	}
+
+	/**
+	 * Completes an upgrade once the old transport has nothing in flight. The
+	 * upgrade packet is sent first, then the held messages and everything
+	 * sent from now on follow on the new transport in order.
+	 */
+	void transportPaused(IOTransport transport) {
+		IOTransport next;
+		synchronized (this) {
+			next = upgradingTransport;
+			if (transport != currentTransport || next == null || handingOver)
+				return;
+			handingOver = true;
+			cancelProbeTimeout();
+		}
+		long now = System.nanoTime();
+		metrics.upgradePaused(transport.getName(), now - pauseStartedAt);
+		send(next, TYPE_UPGRADE, "");
+		transport.handover(next);
+		currentTransport = next;
+		upgradingTransport = null;
+		handingOver = false;
+		transport.shutdown();
+		metrics.upgraded(next.getName(), System.nanoTime() - upgradeStartedAt);
+		LOGGER.info("Upgrade successful");
+	}
+
+	/**
+	 * Gives up the upgrade to transport and continues on the current one.
+	 */
+	private void abortUpgrade(IOTransport transport, String reason) {
+		synchronized (this) {
+			if (transport != upgradingTransport || handingOver)
+				return;
+			cancelProbeTimeout();
+			upgradingTransport = null;
+		}
+		LOGGER.warning(reason);
+		metrics.upgradeFailed(transport.getName());
+		currentTransport.release();
+		transport.shutdown();
+	}
+
+	/**
+	 * Decides the race for transport. Returns the racers if it won just now,
+	 * an empty array if there is no race and null if it lost. Without a race
+	 * only the current transport may open, again if the session was lost.
+	 */
+	private synchronized IOTransport[] enterRace(IOTransport transport) {
+		IOTransport[] racers = racingTransports;
+		if (racers == null) {
+			IOTransport opener = raceWinner == null ? currentTransport
+					: raceWinner;
+			return transport == opener ? new IOTransport[0] : null;
+		}
+		racingTransports = null;
+		raceWinner = transport;
+		return racers;
+	}
+
+	/**
+	 * Passes the messages sent so far to the winner and shuts down the other
+	 * racers.
+	 */
+	private void finishRace(IOTransport winner, IOTransport[] racers) {
+		IOTransport first = currentTransport;
+		if (winner == first) {
+			first.release();
+		} else {
+			first.handover(winner);
+			currentTransport = winner;
+		}
+		for (IOTransport racer : racers)
+			if (racer != winner)
+				racer.shutdown();
+		synchronized (this) {
+			raceWinner = null;
 		}
+		LOGGER.info(winner.getName() + " won the race");
 	}
 
-	private void receivedOpen(IOTransport transport, CharSequence message) {
+	/**
+	 * Shuts down the racing transports but the current one if none won yet.
+	 */
+	private void stopRace() {
+		IOTransport[] racers;
+		synchronized (this) {
+			racers = racingTransports;
+			racingTransports = null;
+		}
+		if (racers != null)
+			for (IOTransport racer : racers)
+				if (racer != currentTransport)
+					racer.shutdown();
+	}
+
+	private void receivedOpen(IOTransport transport, String message) {
+		IOTransport[] racers = enterRace(transport);
+		if (racers == null)
+			return;
 		try {
-			JSONObject open = new JSONObject(message.toString());
+			JSONObject open = new JSONObject(message);
 			setSid(open.getString("sid"));
 			pingTimeout(open.getInt("pingTimeout"));
+			fireOpen();
+			if (racers.length != 0)
+				finishRace(transport, racers);
 			JSONArray jsonUpgrades = open.optJSONArray("upgrades");
 			if (isUpgrade() && jsonUpgrades != null
 					&& jsonUpgrades.length() != 0) {
@@ -335,31 +1243,82 @@ public class EngineIO implements EngineIOCallback {
 					upgrades.add(jsonUpgrades.getString(i));
 				tryUpgrade(upgrades);
 			}
-			callback.onOpen();
 		} catch (JSONException e) {
-			callback.onError(new EngineIOException("Garbage received", e));
+			fireError(new EngineIOException("Garbage received", e));
 		}
 	}
 	
 	private void tryUpgrade(ArrayList<String> upgrades) {
-		if(upgradingTransport != null)
-			return; // TODO: Client should interrupt current upgrade process and start a new one instead. 
-		upgradingTransport = instanceTransport(upgrades);
-		if (upgradingTransport != null) {
-			upgradingTransport.start(this);
-			try {
-				send(upgradingTransport, TYPE_PING, PROBE);
-			} catch (Exception e) {
-				upgradingTransport = null;
-			}
+		IOTransport running = upgradingTransport;
+		if (running != null) {
+			if (handingOver)
+				return;
+			abortUpgrade(running, "Restarting upgrade");
+		}
+		final IOTransport transport = instanceTransport(upgrades);
+		if (transport == null || transport == currentTransport)
+			return;
+		upgradingTransport = transport;
+		upgradeStartedAt = System.nanoTime();
+		transport.start(this);
+		send(transport, TYPE_PING, PROBE);
+		// covers the probe and pausing the current transport
+		synchronized (this) {
+			probeTimeoutCheck = timer.schedule(offTimer(new Runnable() {
+				@Override
+				public void run() {
+					abortUpgrade(transport, "Upgrade timed out");
+				}
+			}), getPingTimeout(), TimeUnit.MILLISECONDS);
 		}
 	}
 
-	private synchronized void resetPingTimeout() {
-		if (pingTimeoutTask != null)
-			pingTimeoutTask.cancel();
-		pingTimeoutTask = new PingTimeoutTask();
-		timer.schedule(pingTimeoutTask, getPingTimeout());
+	private synchronized void cancelProbeTimeout() {
+		if (probeTimeoutCheck != null)
+			probeTimeoutCheck.cancel();
+		probeTimeoutCheck = null;
+	}
+
+	WheelTimer.Timeout schedule(Runnable task, long delay) {
+		return timer.schedule(offTimer(task), delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Wraps a timer task to run on an event loop of this engine. The timer
+	 * thread is shared by every engine, a slow callback raised by the task
+	 * would hold up the timeouts of all of them.
+	 */
+	private Runnable offTimer(final Runnable task) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				getTimerLoop().execute(task);
+			}
+		};
+	}
+
+	private synchronized EventLoop getTimerLoop() {
+		if (timerLoop == null)
+			timerLoop = getEventLoopGroup().next();
+		return timerLoop;
+	}
+
+	private void resetPingTimeout() {
+		lastSeen = System.nanoTime();
+	}
+
+	private synchronized void watchPingTimeout(long delay) {
+		if (pingTimeoutCheck != null)
+			pingTimeoutCheck.cancel();
+		pingTimeoutCheck = timer.schedule(pingTimeoutHandoff, delay,
+				TimeUnit.NANOSECONDS);
+	}
+
+	private synchronized void stopTimers() {
+		if (pingTimeoutCheck != null)
+			pingTimeoutCheck.cancel();
+		pingTimeoutCheck = null;
+		cancelProbeTimeout();
 	}
 
 	private void receivedClose(IOTransport transport) {
@@ -367,11 +1326,98 @@ public class EngineIO implements EngineIOCallback {
 			currentTransport.shutdown();
 		} catch (Exception e) {
 			// TODO: recheck if we can safely ignore this exception
-			callback.onError(new EngineIOException(
-					"Error while closing transport", e));
+			fireError(new EngineIOException("Error while closing transport", e));
 		}
 	}
 
+	private void dispatch(Runnable event) {
+		Executor executor = callbackExecutor;
+		if (executor == null)
+			event.run();
+		else
+			executor.execute(event);
+	}
+
+	private void fireOpen() {
+		final EngineIOCallback callback = this.callback;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				callback.onOpen();
+			}
+		});
+	}
+
+	private void fireMessage(final String message) {
+		final EngineIOCallback callback = this.callback;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				callback.onMessage(message);
+			}
+		});
+	}
+
+	private void fireLargeMessage(final CharBuffer message) {
+		final EngineIOCallback callback = this.callback;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				if (callback instanceof LargeMessageCallback)
+					((LargeMessageCallback) callback).onLargeMessage(message);
+				else
+					callback.onMessage(message.toString());
+			}
+		});
+	}
+
+	private void fireBinaryMessage(final ByteBuffer message) {
+		final EngineIOCallback callback = this.callback;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				if (callback instanceof BinaryMessageCallback)
+					((BinaryMessageCallback) callback).onBinaryMessage(message);
+				else
+					LOGGER.warning("Dropped a binary message of "
+							+ message.remaining()
+							+ " bytes, the callback does not take them");
+			}
+		});
+	}
+
+	private void fireClose() {
+		final EngineIOCallback callback = this.callback;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				callback.onClose();
+			}
+		});
+	}
+
+	private void fireError(final EngineIOException exception) {
+		final EngineIOCallback callback = this.callback;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				callback.onError(exception);
+			}
+		});
+	}
+
+	private void fireWritabilityChanged(final boolean writable) {
+		final EngineIOCallback callback = this.callback;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				if (callback instanceof WritabilityCallback)
+					((WritabilityCallback) callback)
+							.onWritabilityChanged(writable);
+			}
+		});
+	}
+
 	@Override
 	public void onOpen() {
 		LOGGER.info("onOpen called.");
@@ -379,7 +1425,23 @@ public class EngineIO implements EngineIOCallback {
 
 	@Override
 	public void onMessage(String message) {
-		LOGGER.info("onMessage called with message '" + message + "'");
+		if (LOGGER.isLoggable(Level.INFO))
+			LOGGER.info("onMessage called with message '" + message + "'");
+	}
+
+	/**
+	 * Passes the message to {@link #onMessage(String)} by default.
+	 */
+	@Override
+	public void onLargeMessage(CharBuffer message) {
+		onMessage(message.toString());
+	}
+
+	@Override
+	public void onBinaryMessage(ByteBuffer message) {
+		if (LOGGER.isLoggable(Level.INFO))
+			LOGGER.info("onBinaryMessage called with " + message.remaining()
+					+ " bytes");
 	}
 
 	@Override
@@ -391,4 +1453,9 @@ public class EngineIO implements EngineIOCallback {
 	public void onError(EngineIOException exception) {
 		LOGGER.log(Level.WARNING, "onError called with Exception", exception);
 	}
+
+	@Override
+	public void onWritabilityChanged(boolean writable) {
+		LOGGER.info("onWritabilityChanged called with " + writable);
+	}
 }
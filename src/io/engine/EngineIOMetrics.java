@@ -0,0 +1,111 @@
+/*
+ * engine.io EngineIOMetrics.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+/**
+ * Receives measurements of an {@link EngineIO}. Methods are called on the
+ * I/O threads and must not block. Payloads are passed as they are, so an
+ * implementation only pays for the figures it needs. {@link SessionMetrics}
+ * collects all of them.
+ */
+public interface EngineIOMetrics {
+	/** Records nothing. The default. */
+	EngineIOMetrics NONE = new EngineIOMetrics() {
+		@Override
+		public void packetReceived(char type, CharSequence data) {
+		}
+
+		@Override
+		public void packetSent(char type, String data) {
+		}
+
+		@Override
+		public void binaryReceived(char type, int length) {
+		}
+
+		@Override
+		public void binarySent(char type, int length) {
+		}
+
+		@Override
+		public void flushed(String transport, int packets) {
+		}
+
+		@Override
+		public void upgraded(String transport, long nanos) {
+		}
+
+		@Override
+		public void upgradePaused(String transport, long nanos) {
+		}
+
+		@Override
+		public void upgradeFailed(String transport) {
+		}
+
+		@Override
+		public void reconnecting(String transport) {
+		}
+
+		@Override
+		public void pingRoundTrip(long nanos) {
+		}
+	};
+
+	/**
+	 * A packet of type arrived. data excludes the type.
+	 */
+	void packetReceived(char type, CharSequence data);
+
+	/**
+	 * A transport wrote a packet of type. data excludes the type.
+	 */
+	void packetSent(char type, String data);
+
+	/**
+	 * A binary packet of type with length bytes arrived.
+	 */
+	void binaryReceived(char type, int length);
+
+	/**
+	 * A transport wrote a binary packet of type with length bytes.
+	 */
+	void binarySent(char type, int length);
+
+	/**
+	 * A transport wrote packets in one batch, for example one POST.
+	 */
+	void flushed(String transport, int packets);
+
+	/**
+	 * The session upgraded to transport, nanos after starting the probe.
+	 */
+	void upgraded(String transport, long nanos);
+
+	/**
+	 * The old transport took nanos to finish what was in flight before an
+	 * upgrade from it. Messages sent meanwhile waited.
+	 */
+	void upgradePaused(String transport, long nanos);
+
+	/**
+	 * An upgrade to transport timed out or was restarted.
+	 */
+	void upgradeFailed(String transport);
+
+	/**
+	 * A transport lost its connection and retries.
+	 */
+	void reconnecting(String transport);
+
+	/**
+	 * A pong arrived nanos after its ping was sent.
+	 */
+	void pingRoundTrip(long nanos);
+}
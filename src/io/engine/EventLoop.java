@@ -0,0 +1,164 @@
+/*
+ * engine.io EventLoop.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single selector thread multiplexing the channels of many transports.
+ * Everything touching a registered channel has to run on this thread, other
+ * threads hand work over with {@link #execute(Runnable)}.
+ */
+final class EventLoop implements Runnable {
+	final private static Logger LOGGER = Logger.getLogger("engine.io");
+	final private static int FRAME_BUFFER_SIZE = 16 * 1024;
+
+	interface Handler {
+		void ready(SelectionKey key);
+	}
+
+	interface Resolved {
+		/**
+		 * Called on the loop with the address, which is unresolved if the
+		 * host is unknown.
+		 */
+		void resolved(InetSocketAddress address);
+	}
+
+	private final Selector selector;
+	private final Thread thread;
+	private final Executor resolver;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean wakeup = new AtomicBoolean();
+	private final BufferPool bufferPool = new BufferPool();
+	private final BufferPool frameBufferPool = new BufferPool(FRAME_BUFFER_SIZE,
+			true, 64);
+	private final HttpConnectionPool connectionPool = new HttpConnectionPool(this);
+	private volatile boolean running = true;
+
+	EventLoop(String name, Executor resolver) throws IOException {
+		this.resolver = resolver;
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * The buffer pool of this loop. Only to be used from the loop thread.
+	 */
+	BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Direct buffers outgoing websocket frames are written into, so the
+	 * channel writes them without copying. Only to be used from the loop
+	 * thread.
+	 */
+	BufferPool getFrameBufferPool() {
+		return frameBufferPool;
+	}
+
+	/**
+	 * The keep-alive connections of this loop. Only to be used from the loop
+	 * thread.
+	 */
+	HttpConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	void execute(Runnable task) {
+		tasks.add(task);
+		if (!inLoop() && wakeup.compareAndSet(false, true))
+			selector.wakeup();
+	}
+
+	/**
+	 * Resolves host off the loop, as looking it up blocks, and passes the
+	 * address to callback on the loop.
+	 */
+	void resolve(final String host, final int port, final Resolved callback) {
+		resolver.execute(new Runnable() {
+			@Override
+			public void run() {
+				final InetSocketAddress address = new InetSocketAddress(host,
+						port);
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						callback.resolved(address);
+					}
+				});
+			}
+		});
+	}
+
+	SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+			throws ClosedChannelException {
+		return channel.register(selector, ops, handler);
+	}
+
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+				wakeup.set(false);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid())
+						((Handler) key.attachment()).ready(key);
+				}
+				runTasks();
+			} catch (Throwable t) {
+				LOGGER.log(Level.WARNING, "Event loop caught exception", t);
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "closing selector failed", e);
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Throwable t) {
+				LOGGER.log(Level.WARNING, "Event loop task failed", t);
+			}
+		}
+	}
+}
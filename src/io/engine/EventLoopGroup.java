@@ -0,0 +1,116 @@
+/*
+ * engine.io EventLoopGroup.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed pool of selector threads shared by the transports of many
+ * {@link EngineIO} instances. Unless configured otherwise every EngineIO uses
+ * {@link #shared()}, which is sized by the system property
+ * <code>io.engine.eventLoops</code> and defaults to the number of processors.
+ * Host names are resolved by a few threads of the group, which idle out.
+ */
+public final class EventLoopGroup {
+	final private static String THREADS_PROPERTY = "io.engine.eventLoops";
+	final private static AtomicInteger GROUP_COUNTER = new AtomicInteger();
+	final private static int RESOLVER_THREADS = 4;
+	final private static long RESOLVER_KEEP_ALIVE = 60;
+
+	private static EventLoopGroup shared;
+
+	private final EventLoop[] loops;
+	private final AtomicInteger next = new AtomicInteger();
+	/** Resolves host names, which blocks, off the loops. */
+	private final ThreadPoolExecutor resolver;
+
+	public EventLoopGroup(int threads) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("threads must be positive.");
+		final int group = GROUP_COUNTER.incrementAndGet();
+		resolver = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS,
+				RESOLVER_KEEP_ALIVE, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger counter = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "engine.io-resolver-"
+								+ group + "-" + counter.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		resolver.allowCoreThreadTimeOut(true);
+		loops = new EventLoop[threads];
+		try {
+			for (int i = 0; i < threads; i++)
+				loops[i] = new EventLoop("engine.io-loop-" + group + "-" + i,
+						resolver);
+		} catch (IOException e) {
+			shutdown();
+			throw new RuntimeException("Cannot open selector.", e);
+		}
+	}
+
+	public static synchronized EventLoopGroup shared() {
+		if (shared == null)
+			shared = new EventLoopGroup(Integer.getInteger(THREADS_PROPERTY,
+					Runtime.getRuntime().availableProcessors()));
+		return shared;
+	}
+
+	public int getThreads() {
+		return loops.length;
+	}
+
+	/**
+	 * The number of HTTP connections opened by the polling transports of
+	 * this group. Compare with {@link #getRequestsServed()} to see how well
+	 * connections are reused.
+	 */
+	public long getConnectionsOpened() {
+		long opened = 0;
+		for (EventLoop loop : loops)
+			opened += loop.getConnectionPool().getConnectionsOpened();
+		return opened;
+	}
+
+	/**
+	 * The number of HTTP requests completed by the polling transports of this
+	 * group.
+	 */
+	public long getRequestsServed() {
+		long served = 0;
+		for (EventLoop loop : loops)
+			served += loop.getConnectionPool().getRequestsServed();
+		return served;
+	}
+
+	public void shutdown() {
+		for (EventLoop loop : loops) {
+			if (loop != null)
+				loop.shutdown();
+		}
+		resolver.shutdown();
+	}
+
+	EventLoop next() {
+		return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	EventLoop next(String key) {
+		return loops[(key.hashCode() & Integer.MAX_VALUE) % loops.length];
+	}
+}
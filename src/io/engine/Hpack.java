@@ -0,0 +1,388 @@
+/*
+ * engine.io Hpack.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * HPACK header compression (RFC 7541) as far as an HTTP/2 client needs it.
+ * Headers are encoded as literals without indexing, so the encoder keeps no
+ * state. The {@link Decoder} implements the complete format including the
+ * dynamic table and Huffman coded strings.
+ */
+final class Hpack {
+	/** The header table size we announce and use for decoding. */
+	final static int TABLE_SIZE = 4096;
+
+	final private static String[] STATIC_NAMES = { null, ":authority",
+			":method", ":method", ":path", ":path", ":scheme", ":scheme",
+			":status", ":status", ":status", ":status", ":status", ":status",
+			":status", "accept-charset", "accept-encoding", "accept-language",
+			"accept-ranges", "accept", "access-control-allow-origin", "age",
+			"allow", "authorization", "cache-control", "content-disposition",
+			"content-encoding", "content-language", "content-length",
+			"content-location", "content-range", "content-type", "cookie",
+			"date", "etag", "expect", "expires", "from", "host", "if-match",
+			"if-modified-since", "if-none-match", "if-range",
+			"if-unmodified-since", "last-modified", "link", "location",
+			"max-forwards", "proxy-authenticate", "proxy-authorization",
+			"range", "referer", "refresh", "retry-after", "server",
+			"set-cookie", "strict-transport-security", "transfer-encoding",
+			"user-agent", "vary", "via", "www-authenticate" };
+
+	final private static String[] STATIC_VALUES = new String[STATIC_NAMES.length];
+
+	// static table indices used by the encoder
+	final static int METHOD_GET = 2;
+	final static int METHOD_POST = 3;
+	final static int SCHEME_HTTP = 6;
+	final static int SCHEME_HTTPS = 7;
+	final static int AUTHORITY = 1;
+	final static int PATH = 4;
+	final static int ACCEPT_ENCODING_GZIP_DEFLATE = 16;
+	final static int CONTENT_ENCODING = 26;
+	final static int CONTENT_LENGTH = 28;
+	final static int CONTENT_TYPE = 31;
+
+	/** Huffman codes of the symbols 0 to 256 (EOS), RFC 7541 Appendix B. */
+	final private static int[] HUFFMAN_CODES = { 0x1ff8, 0x7fffd8, 0xfffffe2,
+			0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7, 0xfffffe8,
+			0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb,
+			0xfffffec, 0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1,
+			0xffffff2, 0x3ffffffe, 0xffffff3, 0xffffff4, 0xffffff5, 0xffffff6,
+			0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb, 0x14, 0x3f8,
+			0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb, 0xf9, 0x7fb,
+			0xfa, 0x16, 0x17, 0x18, 0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c,
+			0x1d, 0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa,
+			0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66,
+			0x67, 0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71,
+			0x72, 0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+			0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74,
+			0x75, 0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d,
+			0x77, 0x78, 0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd,
+			0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4,
+			0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc,
+			0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec, 0xffffed,
+			0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+			0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6,
+			0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb,
+			0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde, 0x7fffea, 0x3fffdd,
+			0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+			0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1,
+			0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4,
+			0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1,
+			0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+			0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5,
+			0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0,
+			0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5,
+			0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+			0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7,
+			0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef,
+			0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4, 0x3ffffeb, 0x7ffffe6,
+			0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+			0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef,
+			0x7fffff0, 0x3ffffee, 0x3fffffff };
+
+	final private static byte[] HUFFMAN_LENGTHS = { 13, 23, 28, 28, 28, 28,
+			28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30,
+			28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11,
+			10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15,
+			6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+			7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6,
+			6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11,
+			14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23,
+			24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23,
+			24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+			21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26,
+			26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21,
+			26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20,
+			21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26,
+			27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30 };
+
+	final private static int EOS = 256;
+
+	/**
+	 * The Huffman code as binary tree. Entry 2n and 2n+1 are the children of
+	 * node n for the bits 0 and 1. Positive entries point to another node,
+	 * leafs are stored as -(symbol + 1).
+	 */
+	final private static int[] HUFFMAN_TREE = new int[2 * EOS];
+
+	static {
+		STATIC_VALUES[2] = "GET";
+		STATIC_VALUES[3] = "POST";
+		STATIC_VALUES[4] = "/";
+		STATIC_VALUES[5] = "/index.html";
+		STATIC_VALUES[6] = "http";
+		STATIC_VALUES[7] = "https";
+		String[] statuses = { "200", "204", "206", "304", "400", "404", "500" };
+		System.arraycopy(statuses, 0, STATIC_VALUES, 8, statuses.length);
+		STATIC_VALUES[16] = "gzip, deflate";
+		for (int i = 1; i < STATIC_VALUES.length; i++) {
+			if (STATIC_VALUES[i] == null)
+				STATIC_VALUES[i] = "";
+		}
+
+		int nodes = 1;
+		for (int symbol = 0; symbol <= EOS; symbol++) {
+			int node = 0;
+			for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit > 0; bit--) {
+				int child = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+				if (HUFFMAN_TREE[child] == 0)
+					HUFFMAN_TREE[child] = nodes++;
+				node = HUFFMAN_TREE[child];
+			}
+			HUFFMAN_TREE[2 * node + (HUFFMAN_CODES[symbol] & 1)] = -(symbol + 1);
+		}
+	}
+
+	private Hpack() {
+	}
+
+	/**
+	 * Writes value with an N-bit prefix. flags are the bits of the first
+	 * byte above the prefix.
+	 */
+	static void putInteger(ByteBuffer out, int flags, int prefixBits, int value) {
+		int max = (1 << prefixBits) - 1;
+		if (value < max) {
+			out.put((byte) (flags | value));
+			return;
+		}
+		out.put((byte) (flags | max));
+		value -= max;
+		while (value >= 0x80) {
+			out.put((byte) (value & 0x7f | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * Writes a header field that refers to a static table entry.
+	 */
+	static void putIndexed(ByteBuffer out, int index) {
+		putInteger(out, 0x80, 7, index);
+	}
+
+	/**
+	 * Writes a header field without indexing. The name is taken from the
+	 * static table and the value is written as plain ASCII literal.
+	 */
+	static void putLiteral(ByteBuffer out, int nameIndex, String value) {
+		putInteger(out, 0x00, 4, nameIndex);
+		putInteger(out, 0x00, 7, value.length());
+		for (int i = 0; i < value.length(); i++)
+			out.put((byte) value.charAt(i));
+	}
+
+	/**
+	 * Like {@link #putLiteral(ByteBuffer, int, String)} for a decimal value.
+	 */
+	static void putLiteral(ByteBuffer out, int nameIndex, int value) {
+		putInteger(out, 0x00, 4, nameIndex);
+		int divisor = 1;
+		int digits = 1;
+		while (divisor <= value / 10) {
+			divisor *= 10;
+			digits++;
+		}
+		putInteger(out, 0x00, 7, digits);
+		for (; divisor > 0; divisor /= 10)
+			out.put((byte) ('0' + value / divisor % 10));
+	}
+
+	/**
+	 * The upper bound of bytes {@link #putLiteral(ByteBuffer, int, String)}
+	 * writes for a value of the given length.
+	 */
+	static int literalSize(int length) {
+		return 12 + length;
+	}
+
+	/**
+	 * Decodes header blocks of one connection. Blocks have to be passed in
+	 * the order they were received as they change the dynamic table.
+	 */
+	static final class Decoder {
+		interface Listener {
+			void header(String name, String value) throws IOException;
+		}
+
+		private final StringBuilder string = new StringBuilder();
+		// the dynamic table as ring buffer, newest entry at head
+		private String[] names = new String[16];
+		private String[] values = new String[16];
+		private int head = 0;
+		private int count = 0;
+		private int size = 0;
+		private int maxSize = TABLE_SIZE;
+
+		/**
+		 * Decodes a complete header block.
+		 */
+		void decode(ByteBuffer block, Listener listener) throws IOException {
+			try {
+				boolean first = true;
+				while (block.hasRemaining()) {
+					int b = block.get(block.position()) & 0xff;
+					if ((b & 0x80) != 0) {
+						int index = getInteger(block, 7);
+						listener.header(name(index), value(index));
+					} else if ((b & 0x40) != 0) {
+						String[] field = literal(block, 6);
+						add(field[0], field[1]);
+						listener.header(field[0], field[1]);
+					} else if ((b & 0x20) != 0) {
+						if (!first)
+							throw new IOException(
+									"HPACK table size update after header field");
+						int max = getInteger(block, 5);
+						if (max > TABLE_SIZE)
+							throw new IOException("HPACK table size " + max
+									+ " exceeds the announced limit");
+						maxSize = max;
+						evict(0);
+						continue;
+					} else {
+						// without indexing or never indexed
+						String[] field = literal(block, 4);
+						listener.header(field[0], field[1]);
+					}
+					first = false;
+				}
+			} catch (java.nio.BufferUnderflowException e) {
+				throw new IOException("Truncated HPACK header block");
+			}
+		}
+
+		private String[] literal(ByteBuffer block, int prefixBits)
+				throws IOException {
+			int index = getInteger(block, prefixBits);
+			String name = index == 0 ? getString(block) : name(index);
+			return new String[] { name, getString(block) };
+		}
+
+		private String name(int index) throws IOException {
+			if (index > 0 && index < STATIC_NAMES.length)
+				return STATIC_NAMES[index];
+			return names[dynamic(index)];
+		}
+
+		private String value(int index) throws IOException {
+			if (index > 0 && index < STATIC_VALUES.length)
+				return STATIC_VALUES[index];
+			return values[dynamic(index)];
+		}
+
+		private int dynamic(int index) throws IOException {
+			int position = index - STATIC_NAMES.length;
+			if (index <= 0 || position >= count)
+				throw new IOException("Invalid HPACK index " + index);
+			return (head + position) & (names.length - 1);
+		}
+
+		private void add(String name, String value) {
+			int entrySize = 32 + name.length() + value.length();
+			evict(entrySize);
+			if (entrySize > maxSize)
+				return;
+			if (count == names.length) {
+				String[] grownNames = new String[names.length * 2];
+				String[] grownValues = new String[names.length * 2];
+				for (int i = 0; i < count; i++) {
+					grownNames[i] = names[(head + i) & (names.length - 1)];
+					grownValues[i] = values[(head + i) & (names.length - 1)];
+				}
+				names = grownNames;
+				values = grownValues;
+				head = 0;
+			}
+			head = (head - 1) & (names.length - 1);
+			names[head] = name;
+			values[head] = value;
+			count++;
+			size += entrySize;
+		}
+
+		/**
+		 * Drops the oldest entries until room bytes fit into the table.
+		 */
+		private void evict(int room) {
+			while (count > 0 && size + room > maxSize) {
+				int oldest = (head + count - 1) & (names.length - 1);
+				size -= 32 + names[oldest].length() + values[oldest].length();
+				names[oldest] = values[oldest] = null;
+				count--;
+			}
+		}
+
+		private static int getInteger(ByteBuffer block, int prefixBits)
+				throws IOException {
+			int max = (1 << prefixBits) - 1;
+			int value = block.get() & max;
+			if (value < max)
+				return value;
+			for (int shift = 0; shift <= 28; shift += 7) {
+				int b = block.get() & 0xff;
+				value += (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					if (value < 0)
+						break;
+					return value;
+				}
+			}
+			throw new IOException("HPACK integer overflow");
+		}
+
+		private String getString(ByteBuffer block) throws IOException {
+			boolean huffman = (block.get(block.position()) & 0x80) != 0;
+			int length = getInteger(block, 7);
+			if (length > block.remaining())
+				throw new IOException("Truncated HPACK string");
+			string.setLength(0);
+			if (huffman) {
+				huffman(block, length);
+			} else {
+				for (int i = 0; i < length; i++)
+					string.append((char) (block.get() & 0xff));
+			}
+			return string.toString();
+		}
+
+		private void huffman(ByteBuffer block, int length) throws IOException {
+			int node = 0;
+			int bits = 0;
+			boolean ones = true;
+			for (int i = 0; i < length; i++) {
+				int b = block.get() & 0xff;
+				for (int bit = 7; bit >= 0; bit--) {
+					int set = (b >>> bit) & 1;
+					int next = HUFFMAN_TREE[2 * node + set];
+					bits++;
+					ones &= set == 1;
+					if (next < 0) {
+						int symbol = -next - 1;
+						if (symbol == EOS)
+							throw new IOException("HPACK string contains EOS");
+						string.append((char) symbol);
+						node = 0;
+						bits = 0;
+						ones = true;
+					} else {
+						node = next;
+					}
+				}
+			}
+			if (bits > 7 || !ones)
+				throw new IOException("Invalid HPACK string padding");
+		}
+	}
+}
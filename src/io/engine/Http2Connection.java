@@ -0,0 +1,615 @@
+/*
+ * engine.io Http2Connection.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A client side HTTP/2 connection (RFC 7540) running many requests as
+ * concurrent streams on one socket. Plain connections start HTTP/2 with prior
+ * knowledge, TLS connections negotiate it by ALPN. Responses are reported to
+ * the same {@link HttpConnection.Listener} the HTTP/1.1 connection uses.
+ * Like every {@link NioConnection} it must only be used from its loop.
+ */
+final class Http2Connection extends NioConnection {
+	final private static byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+			.getBytes(Charset.forName("US-ASCII"));
+
+	final private static int DATA = 0x0;
+	final private static int HEADERS = 0x1;
+	final private static int RST_STREAM = 0x3;
+	final private static int SETTINGS = 0x4;
+	final private static int PUSH_PROMISE = 0x5;
+	final private static int PING = 0x6;
+	final private static int GOAWAY = 0x7;
+	final private static int WINDOW_UPDATE = 0x8;
+	final private static int CONTINUATION = 0x9;
+
+	final private static int FLAG_END_STREAM = 0x1;
+	final private static int FLAG_ACK = 0x1;
+	final private static int FLAG_END_HEADERS = 0x4;
+	final private static int FLAG_PADDED = 0x8;
+	final private static int FLAG_PRIORITY = 0x20;
+
+	final private static int SETTINGS_ENABLE_PUSH = 0x2;
+	final private static int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	final private static int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	final private static int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	final private static int NO_ERROR = 0x0;
+	final private static int PROTOCOL_ERROR = 0x1;
+	final private static int FLOW_CONTROL_ERROR = 0x3;
+	final private static int FRAME_SIZE_ERROR = 0x6;
+	final private static int CANCEL = 0x8;
+	final private static int COMPRESSION_ERROR = 0x9;
+
+	final private static int FRAME_HEADER = 9;
+	final private static int DEFAULT_FRAME_SIZE = 16384;
+	final private static int DEFAULT_WINDOW = 65535;
+	final private static int STREAM_WINDOW = 1 << 20;
+	final private static int CONNECTION_WINDOW = 1 << 24;
+	/** Assumed until the server announces its limit. */
+	final private static int DEFAULT_MAX_STREAMS = 100;
+
+	private static class ProtocolException extends IOException {
+		private static final long serialVersionUID = 1L;
+		final int code;
+
+		ProtocolException(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+	}
+
+	private static final class Stream {
+		final int id;
+		final HttpConnection.Listener listener;
+		final ByteBuffer headerBlock;
+		/** The part of the request body not sent yet, null once sent. */
+		ByteBuffer body;
+		int sendWindow;
+		/** Received bytes not yet returned by a WINDOW_UPDATE. */
+		int unacknowledged = 0;
+		boolean responded = false;
+
+		Stream(int id, HttpConnection.Listener listener,
+				ByteBuffer headerBlock, ByteBuffer body) {
+			this.id = id;
+			this.listener = listener;
+			this.headerBlock = headerBlock;
+			this.body = body;
+		}
+	}
+
+	private final HttpConnectionPool pool;
+	private final String key;
+	private final boolean secure;
+	private final Hpack.Decoder decoder = new Hpack.Decoder();
+	private final HashMap<Integer, Stream> streams = new HashMap<Integer, Stream>();
+	/** Streams waiting for the connection to be established. */
+	private final ArrayDeque<Stream> unsent = new ArrayDeque<Stream>();
+	private int nextStreamId = 1;
+	private boolean closed = false;
+	private boolean goingAway = false;
+
+	// settings and flow control
+	private int maxStreams = DEFAULT_MAX_STREAMS;
+	private int peerWindow = DEFAULT_WINDOW;
+	private int peerFrameSize = DEFAULT_FRAME_SIZE;
+	private long sendWindow = DEFAULT_WINDOW;
+	private int unacknowledged = 0;
+
+	// frame parser
+	private final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER
+			+ DEFAULT_FRAME_SIZE);
+	private int frameLength = -1;
+	private ByteBuffer headerBlock = ByteBuffer.allocate(4096);
+	private int headerStream = 0;
+	private boolean headerEndStream;
+	private int status;
+	private String contentEncoding;
+
+	/** Maintained by the pool while the connection has no streams. */
+	long idleSince;
+
+	private final Hpack.Decoder.Listener statusListener = new Hpack.Decoder.Listener() {
+		@Override
+		public void header(String name, String value) throws IOException {
+			if (name.equals(":status")) {
+				try {
+					status = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					throw new ProtocolException(PROTOCOL_ERROR,
+							"Malformed status " + value);
+				}
+			} else if (name.equals("content-encoding")) {
+				contentEncoding = value.equalsIgnoreCase("identity") ? null
+						: value;
+			}
+		}
+	};
+
+	Http2Connection(HttpConnectionPool pool, String key, String host,
+			int port, boolean secure) {
+		super(pool.getLoop(), host, port, secure);
+		this.pool = pool;
+		this.key = key;
+		this.secure = secure;
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns true if another request may be started on this connection.
+	 */
+	boolean hasCapacity() {
+		return !closed && !goingAway && streams.size() < maxStreams
+				&& nextStreamId > 0;
+	}
+
+	boolean isIdle() {
+		return streams.isEmpty();
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Starts a request on a new stream. headerBlock is the HPACK encoded
+	 * header list, body may be null. Neither buffer must be modified until
+	 * the listener is called.
+	 */
+	void request(ByteBuffer headerBlock, ByteBuffer body,
+			HttpConnection.Listener listener) {
+		if (!hasCapacity())
+			throw new IllegalStateException("No stream available.");
+		Stream stream = new Stream(nextStreamId, listener,
+				headerBlock.duplicate(), body == null || !body.hasRemaining() ? null
+						: body.duplicate());
+		nextStreamId += 2;
+		stream.sendWindow = peerWindow;
+		streams.put(stream.id, stream);
+		if (isEstablished()) {
+			start(stream);
+		} else {
+			unsent.add(stream);
+			if (!isOpen()) {
+				pool.connectionOpened();
+				connect();
+			}
+		}
+	}
+
+	/**
+	 * Drops the request of listener without notifying it.
+	 */
+	void cancel(HttpConnection.Listener listener) {
+		Iterator<Stream> iterator = streams.values().iterator();
+		while (iterator.hasNext()) {
+			Stream stream = iterator.next();
+			if (stream.listener != listener)
+				continue;
+			iterator.remove();
+			if (!unsent.remove(stream))
+				writeFrame(RST_STREAM, 0, stream.id, CANCEL);
+			streamClosed();
+			return;
+		}
+	}
+
+	@Override
+	protected String[] getApplicationProtocols() {
+		return secure ? new String[] { "h2" } : null;
+	}
+
+	@Override
+	protected void onConnected() {
+		if (secure && !"h2".equals(getApplicationProtocol())) {
+			close(new IOException("Server did not negotiate HTTP/2"));
+			return;
+		}
+		ByteBuffer settings = frameHeader(12, SETTINGS, 0, 0);
+		settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0)
+				.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE)
+				.putInt(STREAM_WINDOW).flip();
+		ByteBuffer windowUpdate = frameHeader(4, WINDOW_UPDATE, 0, 0);
+		windowUpdate.putInt(CONNECTION_WINDOW - DEFAULT_WINDOW).flip();
+		write(ByteBuffer.wrap(PREFACE), settings, windowUpdate);
+		Stream stream;
+		while ((stream = unsent.poll()) != null)
+			start(stream);
+	}
+
+	@Override
+	protected void onData(ByteBuffer data) {
+		try {
+			while (data.hasRemaining() && isOpen()) {
+				if (frameLength < 0) {
+					if (!fill(data, FRAME_HEADER))
+						break;
+					frameLength = (frame.get(0) & 0xff) << 16
+							| (frame.get(1) & 0xff) << 8 | (frame.get(2) & 0xff);
+					if (frameLength > DEFAULT_FRAME_SIZE)
+						throw new ProtocolException(FRAME_SIZE_ERROR,
+								"Frame of " + frameLength + " bytes");
+				}
+				if (!fill(data, FRAME_HEADER + frameLength))
+					break;
+				int type = frame.get(3) & 0xff;
+				int flags = frame.get(4) & 0xff;
+				int id = frame.getInt(5) & 0x7fffffff;
+				frame.flip();
+				frame.position(FRAME_HEADER);
+				handleFrame(type, flags, id, frame);
+				frame.clear();
+				frameLength = -1;
+			}
+		} catch (ProtocolException e) {
+			writeFrame(GOAWAY, 0, 0, 0, e.code);
+			close(e);
+		} catch (IOException e) {
+			close(e);
+		}
+		data.position(data.limit());
+	}
+
+	@Override
+	protected void onClosed(Exception cause) {
+		closed = true;
+		unsent.clear();
+		ArrayList<Stream> failed = new ArrayList<Stream>(streams.values());
+		streams.clear();
+		Exception exception = cause != null ? cause : new EOFException(
+				"Connection closed");
+		for (Stream stream : failed)
+			stream.listener.onFailure(exception);
+	}
+
+	/**
+	 * Copies bytes from data until the frame buffer holds size bytes.
+	 */
+	private boolean fill(ByteBuffer data, int size) {
+		int missing = size - frame.position();
+		if (missing > 0) {
+			int limit = data.limit();
+			data.limit(data.position() + Math.min(missing, data.remaining()));
+			frame.put(data);
+			data.limit(limit);
+		}
+		return frame.position() == size;
+	}
+
+	private void handleFrame(int type, int flags, int id, ByteBuffer payload)
+			throws IOException {
+		if (headerStream != 0 && (type != CONTINUATION || id != headerStream))
+			throw new ProtocolException(PROTOCOL_ERROR,
+					"Expected CONTINUATION frame");
+		switch (type) {
+		case DATA:
+			data(flags, id, payload);
+			break;
+		case HEADERS:
+			if (id == 0)
+				throw new ProtocolException(PROTOCOL_ERROR, "HEADERS on stream 0");
+			unpad(flags, payload);
+			if ((flags & FLAG_PRIORITY) != 0)
+				payload.position(payload.position() + 5);
+			headerStream = id;
+			headerEndStream = (flags & FLAG_END_STREAM) != 0;
+			headerBlock.clear();
+			headerFragment(flags, payload);
+			break;
+		case CONTINUATION:
+			if (headerStream == 0)
+				throw new ProtocolException(PROTOCOL_ERROR,
+						"Unexpected CONTINUATION frame");
+			headerFragment(flags, payload);
+			break;
+		case RST_STREAM:
+			Stream reset = streams.remove(id);
+			if (reset != null) {
+				streamClosed();
+				reset.listener.onFailure(new IOException(
+						"Stream reset by server, error " + payload.getInt()));
+			}
+			break;
+		case SETTINGS:
+			if (id != 0)
+				throw new ProtocolException(PROTOCOL_ERROR,
+						"SETTINGS on stream " + id);
+			if ((flags & FLAG_ACK) == 0)
+				settings(payload);
+			break;
+		case PING:
+			if (payload.remaining() != 8)
+				throw new ProtocolException(FRAME_SIZE_ERROR, "PING size");
+			if ((flags & FLAG_ACK) == 0) {
+				ByteBuffer pong = frameHeader(8, PING, FLAG_ACK, 0);
+				pong.put(payload).flip();
+				write(pong);
+			}
+			break;
+		case GOAWAY:
+			goAway(payload.getInt() & 0x7fffffff, payload.getInt());
+			break;
+		case WINDOW_UPDATE:
+			windowUpdate(id, payload.getInt() & 0x7fffffff);
+			break;
+		case PUSH_PROMISE:
+			throw new ProtocolException(PROTOCOL_ERROR, "Push is disabled");
+		default:
+			// PRIORITY and unknown frames are ignored
+		}
+	}
+
+	/**
+	 * Strips the padding of DATA and HEADERS frames.
+	 */
+	private void unpad(int flags, ByteBuffer payload) throws IOException {
+		if ((flags & FLAG_PADDED) == 0)
+			return;
+		int padding = payload.get() & 0xff;
+		if (padding > payload.remaining())
+			throw new ProtocolException(PROTOCOL_ERROR, "Invalid padding");
+		payload.limit(payload.limit() - padding);
+	}
+
+	private void data(int flags, int id, ByteBuffer payload) throws IOException {
+		if (id == 0)
+			throw new ProtocolException(PROTOCOL_ERROR, "DATA on stream 0");
+		int length = payload.remaining();
+		unpad(flags, payload);
+		Stream stream = streams.get(id);
+		if (stream != null && stream.responded && payload.hasRemaining()) {
+			stream.listener.onBody(payload);
+			if (streams.get(id) != stream)
+				stream = null;
+		}
+
+		unacknowledged += length;
+		if (unacknowledged >= CONNECTION_WINDOW / 2) {
+			writeFrame(WINDOW_UPDATE, 0, 0, unacknowledged);
+			unacknowledged = 0;
+		}
+		if (stream == null)
+			return;
+		if ((flags & FLAG_END_STREAM) != 0) {
+			complete(stream);
+			return;
+		}
+		stream.unacknowledged += length;
+		if (stream.unacknowledged >= STREAM_WINDOW / 2) {
+			writeFrame(WINDOW_UPDATE, 0, id, stream.unacknowledged);
+			stream.unacknowledged = 0;
+		}
+	}
+
+	private void headerFragment(int flags, ByteBuffer fragment)
+			throws IOException {
+		if (headerBlock.remaining() < fragment.remaining()) {
+			ByteBuffer bigger = ByteBuffer.allocate(headerBlock.position()
+					+ fragment.remaining() * 2);
+			headerBlock.flip();
+			headerBlock = bigger.put(headerBlock);
+		}
+		headerBlock.put(fragment);
+		if ((flags & FLAG_END_HEADERS) == 0)
+			return;
+
+		int id = headerStream;
+		headerStream = 0;
+		headerBlock.flip();
+		status = 0;
+		contentEncoding = null;
+		try {
+			// even headers of dropped streams update the HPACK state
+			decoder.decode(headerBlock, statusListener);
+		} catch (ProtocolException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new ProtocolException(COMPRESSION_ERROR, e.getMessage());
+		}
+		Stream stream = streams.get(id);
+		if (stream == null)
+			return;
+		if (!stream.responded) {
+			if (status >= 100 && status < 200 && !headerEndStream)
+				return;
+			if (status == 0) {
+				streams.remove(id);
+				writeFrame(RST_STREAM, 0, id, PROTOCOL_ERROR);
+				streamClosed();
+				stream.listener.onFailure(new IOException(
+						"Response without status"));
+				return;
+			}
+			stream.responded = true;
+			stream.listener.onResponse(status, contentEncoding);
+			if (streams.get(id) != stream)
+				return;
+		}
+		if (headerEndStream)
+			complete(stream);
+	}
+
+	private void settings(ByteBuffer payload) throws IOException {
+		if (payload.remaining() % 6 != 0)
+			throw new ProtocolException(FRAME_SIZE_ERROR, "SETTINGS size");
+		while (payload.hasRemaining()) {
+			int setting = payload.getShort() & 0xffff;
+			long value = payload.getInt() & 0xffffffffL;
+			switch (setting) {
+			case SETTINGS_MAX_CONCURRENT_STREAMS:
+				maxStreams = (int) Math.min(value, Integer.MAX_VALUE);
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE:
+				if (value > Integer.MAX_VALUE)
+					throw new ProtocolException(FLOW_CONTROL_ERROR,
+							"Initial window size " + value);
+				int delta = (int) value - peerWindow;
+				peerWindow = (int) value;
+				for (Stream stream : streams.values())
+					stream.sendWindow += delta;
+				break;
+			case SETTINGS_MAX_FRAME_SIZE:
+				if (value < DEFAULT_FRAME_SIZE || value > 0xffffff)
+					throw new ProtocolException(PROTOCOL_ERROR,
+							"Max frame size " + value);
+				peerFrameSize = (int) value;
+				break;
+			default:
+				// the encoder does not use the dynamic table
+			}
+		}
+		write(frameHeader(0, SETTINGS, FLAG_ACK, 0));
+		sendBlocked();
+	}
+
+	private void goAway(int lastStreamId, int error) {
+		goingAway = true;
+		ArrayList<Stream> failed = new ArrayList<Stream>();
+		Iterator<Stream> iterator = streams.values().iterator();
+		while (iterator.hasNext()) {
+			Stream stream = iterator.next();
+			if (stream.id > lastStreamId) {
+				iterator.remove();
+				failed.add(stream);
+			}
+		}
+		for (Stream stream : failed)
+			stream.listener.onFailure(new IOException(
+					"Connection going away, error " + error));
+		if (streams.isEmpty())
+			close(null);
+	}
+
+	private void windowUpdate(int id, int increment) throws IOException {
+		if (increment == 0)
+			throw new ProtocolException(PROTOCOL_ERROR,
+					"Window update of 0 bytes");
+		if (id == 0) {
+			sendWindow += increment;
+			if (sendWindow > Integer.MAX_VALUE)
+				throw new ProtocolException(FLOW_CONTROL_ERROR,
+						"Connection window overflow");
+		} else {
+			Stream stream = streams.get(id);
+			if (stream == null)
+				return;
+			stream.sendWindow += increment;
+		}
+		sendBlocked();
+	}
+
+	private void start(Stream stream) {
+		ByteBuffer block = stream.headerBlock;
+		int flags = stream.body == null ? FLAG_END_STREAM : 0;
+		int type = HEADERS;
+		do {
+			int length = Math.min(block.remaining(), peerFrameSize);
+			ByteBuffer fragment = block.duplicate();
+			fragment.limit(fragment.position() + length);
+			block.position(fragment.limit());
+			int frameFlags = block.hasRemaining() ? flags : flags
+					| FLAG_END_HEADERS;
+			write(frameHeader(length, type, frameFlags, stream.id), fragment);
+			type = CONTINUATION;
+			flags = 0;
+		} while (block.hasRemaining());
+		sendData(stream);
+	}
+
+	/**
+	 * Sends as much of the request body as the flow control windows allow.
+	 */
+	private void sendData(Stream stream) {
+		while (stream.body != null) {
+			int length = (int) Math.min(Math.min(stream.body.remaining(),
+					peerFrameSize), Math.min(stream.sendWindow, sendWindow));
+			if (length <= 0)
+				return;
+			ByteBuffer chunk = stream.body.duplicate();
+			chunk.limit(chunk.position() + length);
+			stream.body.position(chunk.limit());
+			boolean last = !stream.body.hasRemaining();
+			if (last)
+				stream.body = null;
+			stream.sendWindow -= length;
+			sendWindow -= length;
+			write(frameHeader(length, DATA, last ? FLAG_END_STREAM : 0,
+					stream.id), chunk);
+		}
+	}
+
+	private void sendBlocked() {
+		if (!isEstablished())
+			return;
+		for (Stream stream : streams.values()) {
+			if (stream.body != null && !unsent.contains(stream))
+				sendData(stream);
+		}
+	}
+
+	private void complete(Stream stream) {
+		streams.remove(stream.id);
+		if (stream.body != null) {
+			// the server answered before it got the whole request
+			stream.body = null;
+			writeFrame(RST_STREAM, 0, stream.id, NO_ERROR);
+		}
+		pool.requestServed();
+		streamClosed();
+		stream.listener.onComplete();
+	}
+
+	private void streamClosed() {
+		if (!streams.isEmpty())
+			return;
+		if (goingAway)
+			close(null);
+		else
+			pool.idle(this);
+	}
+
+	private void writeFrame(int type, int flags, int id, int... values) {
+		ByteBuffer buffer = frameHeader(4 * values.length, type, flags, id);
+		for (int value : values)
+			buffer.putInt(value);
+		buffer.flip();
+		write(buffer);
+	}
+
+	/**
+	 * Allocates a buffer for a frame with a payload of up to length bytes
+	 * and writes the frame header. Payloads without room in the buffer are
+	 * written separately.
+	 */
+	private static ByteBuffer frameHeader(int length, int type, int flags,
+			int id) {
+		ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER
+				+ (type == DATA || type == HEADERS || type == CONTINUATION ? 0
+						: length));
+		buffer.put((byte) (length >>> 16)).put((byte) (length >>> 8))
+				.put((byte) length).put((byte) type).put((byte) flags)
+				.putInt(id);
+		if (buffer.capacity() == FRAME_HEADER)
+			buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * engine.io Http2PollingTransport.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The polling transport over HTTP/2. Long-polls and posts of all sessions to
+ * a host run as streams of one shared connection instead of taking one or two
+ * sockets per session. It is named "polling" like {@link PollingTransport}
+ * and replaces it in {@link EngineIO#transports(IOTransport...)}. Plain
+ * connections need a server accepting HTTP/2 with prior knowledge, secure
+ * ones negotiate it by ALPN, which needs Java 8u252 or newer.
+ */
+public class Http2PollingTransport extends PollingTransport {
+	final private static String CONTENT_TYPE = "text/plain; charset=UTF-8";
+	final private static String GZIP = "gzip";
+
+	// The following fields are only accessed from the event loop.
+	private ByteBuffer getBlock;
+	private byte[] postPrefix;
+	private byte[] gzipPostPrefix;
+	private ByteBuffer postBlock;
+	private Http2Connection pollConnection = null;
+	private HttpConnection.Listener pollListener = null;
+
+	/**
+	 * All sessions to a host use the same loop, so they find the same
+	 * connection in its pool.
+	 */
+	@Override
+	EventLoop getEventLoop() {
+		return getEventLoop(HttpConnectionPool.key(getHost(), getPort(),
+				isSecure()));
+	}
+
+	@Override
+	void render(String target) {
+		String authority = getHost() + ":" + getPort();
+		int scheme = isSecure() ? Hpack.SCHEME_HTTPS : Hpack.SCHEME_HTTP;
+		ByteBuffer block = ByteBuffer.allocate(3
+				+ Hpack.literalSize(target.length())
+				+ Hpack.literalSize(authority.length())
+				+ Hpack.literalSize(CONTENT_TYPE.length())
+				+ Hpack.literalSize(GZIP.length()));
+		Hpack.putIndexed(block, Hpack.METHOD_GET);
+		Hpack.putIndexed(block, scheme);
+		Hpack.putLiteral(block, Hpack.PATH, target);
+		Hpack.putLiteral(block, Hpack.AUTHORITY, authority);
+		if (isCompression())
+			Hpack.putIndexed(block, Hpack.ACCEPT_ENCODING_GZIP_DEFLATE);
+		block.flip();
+		getBlock = ByteBuffer.allocate(block.remaining()).put(block);
+		getBlock.flip();
+
+		block.clear();
+		Hpack.putIndexed(block, Hpack.METHOD_POST);
+		Hpack.putIndexed(block, scheme);
+		Hpack.putLiteral(block, Hpack.PATH, target);
+		Hpack.putLiteral(block, Hpack.AUTHORITY, authority);
+		if (isCompression())
+			Hpack.putIndexed(block, Hpack.ACCEPT_ENCODING_GZIP_DEFLATE);
+		Hpack.putLiteral(block, Hpack.CONTENT_TYPE, CONTENT_TYPE);
+		block.flip();
+		postPrefix = new byte[block.remaining()];
+		block.get(postPrefix);
+		block.limit(block.capacity());
+		Hpack.putLiteral(block, Hpack.CONTENT_ENCODING, GZIP);
+		block.flip();
+		gzipPostPrefix = new byte[block.remaining()];
+		block.get(gzipPostPrefix);
+		postBlock = ByteBuffer.allocate(gzipPostPrefix.length
+				+ Hpack.literalSize(10));
+	}
+
+	@Override
+	void get(HttpConnection.Listener listener) {
+		pollConnection = getConnectionPool().acquireMultiplexed(getPoolKey(),
+				getHost(), getPort(), isSecure());
+		pollListener = listener;
+		pollConnection.request(getBlock, null, listener);
+	}
+
+	@Override
+	void post(ByteBuffer body, boolean gzipped,
+			HttpConnection.Listener listener) {
+		postBlock.clear();
+		postBlock.put(gzipped ? gzipPostPrefix : postPrefix);
+		Hpack.putLiteral(postBlock, Hpack.CONTENT_LENGTH, body.remaining());
+		postBlock.flip();
+		getConnectionPool().acquireMultiplexed(getPoolKey(), getHost(),
+				getPort(), isSecure()).request(postBlock, body, listener);
+	}
+
+	@Override
+	void abortGet() {
+		pollConnection.cancel(pollListener);
+		pollConnection = null;
+	}
+}
@@ -0,0 +1,304 @@
+/*
+ * engine.io HttpConnection.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A minimal non blocking HTTP/1.1 client connection. It runs one request at a
+ * time and keeps the socket open between requests if the server allows it.
+ * Connections are handed out by a {@link HttpConnectionPool} and go back to it
+ * once a response completed on a keep-alive connection.
+ */
+class HttpConnection extends NioConnection {
+	interface Listener {
+		/**
+		 * Called once the head of the response arrived. contentEncoding is
+		 * null if the body is not encoded.
+		 */
+		void onResponse(int status, String contentEncoding);
+
+		/**
+		 * Called with parts of the response body. The buffer has to be
+		 * consumed completely.
+		 */
+		void onBody(ByteBuffer data);
+
+		void onComplete();
+
+		void onFailure(Exception exception);
+	}
+
+	final private static int STATUS = 0;
+	final private static int HEADERS = 1;
+	final private static int BODY = 2;
+	final private static int CHUNK_SIZE = 3;
+	final private static int CHUNK_DATA = 4;
+	final private static int CHUNK_END = 5;
+	final private static int TRAILERS = 6;
+	final private static int UNTIL_CLOSE = 7;
+	final private static int IDLE = 8;
+
+	private final HttpConnectionPool pool;
+	private final String key;
+	private final StringBuilder line = new StringBuilder();
+	private int state = IDLE;
+	private Listener listener;
+	private ByteBuffer[] request;
+	/** Set if the request may be sent again on a fresh connection. */
+	private boolean retry = false;
+	private boolean keepAlive;
+	private boolean chunked;
+	private long left;
+	private int status;
+	private String contentEncoding;
+	/** Maintained by the pool while the connection is idle. */
+	long idleSince;
+
+	HttpConnection(HttpConnectionPool pool, String key, String host, int port,
+			boolean secure) {
+		super(pool.getLoop(), host, port, secure);
+		this.pool = pool;
+		this.key = key;
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	boolean isIdle() {
+		return listener == null;
+	}
+
+	/**
+	 * Sends a request. request contains the complete request including
+	 * headers and body. Only an idempotent request is sent again if the
+	 * server dropped the kept alive connection, as the server may have
+	 * processed it already.
+	 */
+	void request(ByteBuffer[] request, boolean idempotent, Listener listener) {
+		if (this.listener != null)
+			throw new IllegalStateException("Request already in progress.");
+		this.listener = listener;
+		this.request = request;
+		this.retry = idempotent && isEstablished();
+		if (isOpen() == false) {
+			pool.connectionOpened();
+			connect();
+		} else if (isEstablished())
+			send();
+	}
+
+	/**
+	 * Drops the current request without notifying its listener.
+	 */
+	void abort() {
+		listener = null;
+		request = null;
+		close(null);
+	}
+
+	private void send() {
+		state = STATUS;
+		line.setLength(0);
+		status = 0;
+		ByteBuffer[] buffers = new ByteBuffer[request.length];
+		for (int i = 0; i < request.length; i++)
+			buffers[i] = request[i].duplicate();
+		write(buffers);
+	}
+
+	@Override
+	protected void onConnected() {
+		if (listener != null)
+			send();
+	}
+
+	@Override
+	protected void onData(ByteBuffer data) {
+		try {
+			while (data.hasRemaining() && listener != null) {
+				switch (state) {
+				case STATUS:
+				case HEADERS:
+				case CHUNK_SIZE:
+				case CHUNK_END:
+				case TRAILERS:
+					if (readLine(data))
+						handleLine();
+					break;
+				case BODY:
+				case CHUNK_DATA:
+					int length = (int) Math.min(left, data.remaining());
+					body(data, length);
+					left -= length;
+					if (left == 0) {
+						if (state == BODY)
+							complete();
+						else
+							state = CHUNK_END;
+					}
+					break;
+				case UNTIL_CLOSE:
+					body(data, data.remaining());
+					break;
+				default:
+					throw new IOException("Unexpected data from server");
+				}
+			}
+		} catch (Exception e) {
+			close(e);
+		}
+		data.position(data.limit());
+	}
+
+	@Override
+	protected void onEof() {
+		if (state == UNTIL_CLOSE && listener != null) {
+			keepAlive = false;
+			complete();
+		} else {
+			close(new EOFException("Connection closed by server"));
+		}
+	}
+
+	@Override
+	protected void onClosed(Exception cause) {
+		Listener listener = this.listener;
+		if (listener == null)
+			return;
+		if (retry && state == STATUS && line.length() == 0) {
+			// the server dropped an idle keep-alive connection. Try again.
+			retry = false;
+			pool.connectionOpened();
+			connect();
+			return;
+		}
+		this.listener = null;
+		this.request = null;
+		state = IDLE;
+		listener.onFailure(cause != null ? cause : new EOFException(
+				"Connection closed"));
+	}
+
+	private void body(ByteBuffer data, int length) {
+		int limit = data.limit();
+		int end = data.position() + length;
+		data.limit(end);
+		listener.onBody(data);
+		data.limit(limit);
+		data.position(end);
+	}
+
+	private boolean readLine(ByteBuffer data) {
+		while (data.hasRemaining()) {
+			char c = (char) (data.get() & 0xff);
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r')
+					line.setLength(length - 1);
+				return true;
+			}
+			line.append(c);
+		}
+		return false;
+	}
+
+	private void handleLine() throws IOException {
+		String current = line.toString();
+		line.setLength(0);
+		switch (state) {
+		case STATUS:
+			String[] parts = current.split(" ", 3);
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+				throw new IOException("Malformed status line: " + current);
+			status = Integer.parseInt(parts[1]);
+			keepAlive = parts[0].equals("HTTP/1.1");
+			chunked = false;
+			contentEncoding = null;
+			left = -1;
+			state = HEADERS;
+			break;
+		case HEADERS:
+			if (current.length() == 0)
+				headersDone();
+			else
+				header(current);
+			break;
+		case CHUNK_SIZE:
+			int extension = current.indexOf(';');
+			left = Long.parseLong((extension < 0 ? current : current.substring(
+					0, extension)).trim(), 16);
+			state = left == 0 ? TRAILERS : CHUNK_DATA;
+			break;
+		case CHUNK_END:
+			state = CHUNK_SIZE;
+			break;
+		case TRAILERS:
+			if (current.length() == 0)
+				complete();
+			break;
+		}
+	}
+
+	private void header(String header) {
+		int colon = header.indexOf(':');
+		if (colon < 0)
+			return;
+		String name = header.substring(0, colon).trim();
+		String value = header.substring(colon + 1).trim();
+		if (name.equalsIgnoreCase("Content-Length"))
+			left = Long.parseLong(value);
+		else if (name.equalsIgnoreCase("Transfer-Encoding"))
+			chunked = value.equalsIgnoreCase("chunked");
+		else if (name.equalsIgnoreCase("Content-Encoding"))
+			contentEncoding = value.equalsIgnoreCase("identity") ? null : value;
+		else if (name.equalsIgnoreCase("Connection"))
+			keepAlive = value.equalsIgnoreCase("keep-alive")
+					|| (keepAlive && !value.equalsIgnoreCase("close"));
+	}
+
+	private void headersDone() {
+		if (status >= 100 && status < 200) {
+			// informational response, the real one follows.
+			state = STATUS;
+			return;
+		}
+		listener.onResponse(status, contentEncoding);
+		if (listener == null)
+			return;
+		if (status == 204 || status == 304) {
+			complete();
+		} else if (chunked) {
+			state = CHUNK_SIZE;
+		} else if (left >= 0) {
+			state = BODY;
+			if (left == 0)
+				complete();
+		} else {
+			keepAlive = false;
+			state = UNTIL_CLOSE;
+		}
+	}
+
+	private void complete() {
+		Listener listener = this.listener;
+		this.listener = null;
+		this.request = null;
+		state = IDLE;
+		pool.requestServed();
+		if (keepAlive)
+			pool.release(this);
+		else
+			close(null);
+		listener.onComplete();
+	}
+}
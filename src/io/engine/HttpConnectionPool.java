@@ -0,0 +1,198 @@
+/*
+ * engine.io HttpConnectionPool.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps idle keep-alive connections per host, so the requests of all sessions
+ * on one {@link EventLoop} share a few persistent connections. Connections
+ * idle for longer than <code>io.engine.keepAliveTimeout</code> milliseconds
+ * are closed and at most <code>io.engine.maxIdleConnections</code> are kept
+ * per host. HTTP/2 connections are shared by all requests to a host until
+ * they run out of streams. Like the loop it belongs to, the pool is not
+ * thread safe. Only the counters may be read from other threads.
+ */
+final class HttpConnectionPool {
+	final private static int MAX_IDLE_PER_HOST = Integer.getInteger(
+			"io.engine.maxIdleConnections", 1024);
+	final private static long KEEP_ALIVE_TIMEOUT = Long.getLong(
+			"io.engine.keepAliveTimeout", 30000);
+
+	private final EventLoop loop;
+	/** Idle connections per host, the longest idle first. */
+	private final HashMap<String, ArrayDeque<HttpConnection>> idle = new HashMap<String, ArrayDeque<HttpConnection>>();
+	private final HashMap<String, ArrayList<Http2Connection>> multiplexed = new HashMap<String, ArrayList<Http2Connection>>();
+	private WheelTimer.Timeout evictTimeout = null;
+
+	// written by the loop only
+	private volatile long connectionsOpened = 0;
+	private volatile long requestsServed = 0;
+
+	private final Runnable evictTask = new Runnable() {
+		@Override
+		public void run() {
+			evictTimeout = null;
+			evict();
+		}
+	};
+
+	private final Runnable scheduleEvict = new Runnable() {
+		@Override
+		public void run() {
+			loop.execute(evictTask);
+		}
+	};
+
+	HttpConnectionPool(EventLoop loop) {
+		this.loop = loop;
+	}
+
+	static String key(String host, int port, boolean secure) {
+		return (secure ? "https://" : "http://") + host + ":" + port;
+	}
+
+	/**
+	 * Returns an idle connection to the host or a new one. key has to be
+	 * created by {@link #key(String, int, boolean)}.
+	 */
+	HttpConnection acquire(String key, String host, int port, boolean secure) {
+		ArrayDeque<HttpConnection> connections = idle.get(key);
+		if (connections != null) {
+			HttpConnection connection;
+			while ((connection = connections.pollLast()) != null) {
+				if (connection.isOpen())
+					return connection;
+			}
+		}
+		return new HttpConnection(this, key, host, port, secure);
+	}
+
+	/**
+	 * Returns an HTTP/2 connection to the host able to take another stream.
+	 */
+	Http2Connection acquireMultiplexed(String key, String host, int port,
+			boolean secure) {
+		ArrayList<Http2Connection> connections = multiplexed.get(key);
+		if (connections == null)
+			multiplexed.put(key,
+					connections = new ArrayList<Http2Connection>());
+		for (Iterator<Http2Connection> iterator = connections.iterator(); iterator
+				.hasNext();) {
+			Http2Connection connection = iterator.next();
+			if (connection.hasCapacity())
+				return connection;
+			if (connection.isClosed())
+				iterator.remove();
+		}
+		Http2Connection connection = new Http2Connection(this, key, host,
+				port, secure);
+		connections.add(connection);
+		return connection;
+	}
+
+	/**
+	 * Called when the last stream of an HTTP/2 connection completed.
+	 */
+	void idle(Http2Connection connection) {
+		connection.idleSince = System.nanoTime();
+		scheduleEvict();
+	}
+
+	/**
+	 * Hands a connection back after its request completed.
+	 */
+	void release(HttpConnection connection) {
+		if (!connection.isOpen() || !connection.isIdle())
+			return;
+		ArrayDeque<HttpConnection> connections = idle.get(connection.getKey());
+		if (connections == null)
+			idle.put(connection.getKey(),
+					connections = new ArrayDeque<HttpConnection>());
+		if (connections.size() >= MAX_IDLE_PER_HOST) {
+			connection.close(null);
+			return;
+		}
+		connection.idleSince = System.nanoTime();
+		connections.add(connection);
+		scheduleEvict();
+	}
+
+	private void scheduleEvict() {
+		if (evictTimeout == null)
+			evictTimeout = WheelTimer.shared().schedule(scheduleEvict,
+					KEEP_ALIVE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	private void evict() {
+		long deadline = System.nanoTime()
+				- TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_TIMEOUT);
+		long next = Long.MAX_VALUE;
+		Iterator<ArrayDeque<HttpConnection>> hosts = idle.values().iterator();
+		while (hosts.hasNext()) {
+			ArrayDeque<HttpConnection> connections = hosts.next();
+			HttpConnection connection;
+			while ((connection = connections.peekFirst()) != null
+					&& (!connection.isOpen() || connection.idleSince - deadline <= 0))
+				connections.pollFirst().close(null);
+			if (connection == null)
+				hosts.remove();
+			else
+				next = Math.min(next, connection.idleSince - deadline);
+		}
+		Iterator<ArrayList<Http2Connection>> shared = multiplexed.values()
+				.iterator();
+		while (shared.hasNext()) {
+			ArrayList<Http2Connection> connections = shared.next();
+			Iterator<Http2Connection> iterator = connections.iterator();
+			while (iterator.hasNext()) {
+				Http2Connection connection = iterator.next();
+				if (connection.isClosed()) {
+					iterator.remove();
+				} else if (!connection.isIdle()) {
+					continue;
+				} else if (connection.idleSince - deadline <= 0) {
+					iterator.remove();
+					connection.close(null);
+				} else {
+					next = Math.min(next, connection.idleSince - deadline);
+				}
+			}
+			if (connections.isEmpty())
+				shared.remove();
+		}
+		if (next != Long.MAX_VALUE)
+			evictTimeout = WheelTimer.shared().schedule(scheduleEvict, next,
+					TimeUnit.NANOSECONDS);
+	}
+
+	EventLoop getLoop() {
+		return loop;
+	}
+
+	void connectionOpened() {
+		connectionsOpened++;
+	}
+
+	void requestServed() {
+		requestsServed++;
+	}
+
+	long getConnectionsOpened() {
+		return connectionsOpened;
+	}
+
+	long getRequestsServed() {
+		return requestsServed;
+	}
+}
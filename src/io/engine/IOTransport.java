@@ -1,78 +1,380 @@
 package io.engine;
 
-import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class IOTransport {
 	private EngineIO engine;
-	private boolean connected;
-	private boolean disconnecting = false;
-	private ConcurrentLinkedQueue<String> buffer = new ConcurrentLinkedQueue<String>();
+	private volatile boolean connected;
+	private volatile boolean disconnecting = false;
+	/** Keeps sent packets in the buffer while an upgrade pauses this. */
+	private volatile boolean held = false;
+	/** The transport this one was upgraded to, taking over its buffer. */
+	private volatile IOTransport successor = null;
+	/** The transport handed over to this one, see {@link #handover}. */
+	private volatile IOTransport predecessor = null;
+	/** The buffer, a lane per {@link Packet#priority} drained highest first. */
+	private final PacketQueue[] lanes = { new PacketQueue(), new PacketQueue(),
+			new PacketQueue() };
+	/** Packets forwarded by the predecessor, sent ahead of the own lanes. */
+	private final PacketQueue[] inherited = { new PacketQueue(),
+			new PacketQueue(), new PacketQueue() };
+	private final Gate gate = new Gate();
+	/** Counts the drain requests, the thread raising it from 0 drains. */
+	private final AtomicInteger drainRequests = new AtomicInteger();
+	/** Failed reconnect attempts in a row. */
+	private final AtomicInteger reconnects = new AtomicInteger();
+	private PayloadDecoder decoder;
 
 	abstract String getName();
 
 	protected abstract void open() throws Exception;
 
-	protected abstract void send(Iterator<String> data) throws Exception;
+	protected abstract void send(Iterator<Packet> data) throws Exception;
 
 	protected abstract void close() throws Exception;
 
+	/**
+	 * Stops receiving for an upgrade. Once nothing is in flight anymore the
+	 * transport calls {@link #paused()}. Packets sent meanwhile stay in the
+	 * buffer. By default it is paused at once.
+	 */
+	protected void pause() throws Exception {
+		paused();
+	}
+
+	/**
+	 * Receives again after an upgrade was abandoned.
+	 */
+	protected void resume() throws Exception {
+	}
+
 	protected void failed(String message, Exception exception) {
 		exception.printStackTrace();
 		engine.transportFailed(this, message, exception);
 	}
 
 	final protected void packet(String data) {
-		engine.transportPacket(this, data);
+		if (disconnecting == false)
+			engine.transportPacket(this, data);
+	}
+
+	final void packet(char type, String data) {
+		if (disconnecting == false)
+			engine.transportPacket(this, type, data);
 	}
 
-	final protected void stream(Reader reader) {
+	/**
+	 * Passes a binary packet on, the engine owns data from now on.
+	 */
+	final protected void packet(char type, ByteBuffer data) {
+		if (disconnecting == false)
+			engine.transportPacket(this, type, data);
+	}
+
+	/**
+	 * Passes a large packet on as a view of the receive buffer, the engine
+	 * owns data from now on.
+	 */
+	final protected void packet(char type, CharBuffer data) {
+		if (disconnecting == false)
+			engine.transportPacket(this, type, data);
+	}
+
+	/**
+	 * Decodes a chunk of a payload. Chunks may split packets at any byte.
+	 */
+	final protected void stream(ByteBuffer data) {
+		if (decoder == null)
+			decoder = new PayloadDecoder(new PayloadDecoder.Listener() {
+				@Override
+				public void packet(char type, String data) {
+					IOTransport.this.packet(type, data);
+				}
+
+				@Override
+				public void binary(char type, ByteBuffer data) {
+					IOTransport.this.packet(type, data);
+				}
+
+				@Override
+				public void largePacket(char type, CharBuffer data) {
+					IOTransport.this.packet(type, data);
+				}
+			}, engine.getLargeMessages());
 		try {
-			int c;
-			while ((c = reader.read()) > 0) {
-				StringBuilder sizeBuilder = new StringBuilder(4);
-				do {
-					sizeBuilder.append((char) c);
-				} while ((c = reader.read()) > 0 && ((char) c) != ':');
-
-				int left = Integer.parseInt(sizeBuilder.toString());
-				char[] buffer = new char[left];
-				while (left > 0)
-					left -= reader.read(buffer, buffer.length - left, left);
-				packet(new String(buffer));
-			}
+			decoder.decode(data);
 		} catch (Exception e) {
+			data.position(data.limit());
+			decoder.reset();
 			failed("Garbaged Payload.", e);
 		}
 	}
 
+	/**
+	 * Marks the end of a payload passed to {@link #stream(ByteBuffer)}.
+	 */
+	final protected void endStream() {
+		if (decoder != null && decoder.isIdle() == false) {
+			decoder.reset();
+			failed("Garbaged Payload.", new EngineIOException(
+					"Payload ended within a packet"));
+		}
+	}
+
 	final protected boolean isConnected() {
 		return connected;
 	}
 
 	final protected void setConnected(boolean connected) {
 		this.connected = connected;
-		flush();
+		drain();
+		if (connected)
+			engine.transportConnected(this);
+	}
+
+	/**
+	 * Hands the buffer to the transport. Only one thread drains at a time,
+	 * others calling meanwhile just make it loop once more, so producers
+	 * never wait for each other. Once upgraded the drainer forwards the
+	 * buffer to the successor instead.
+	 */
+	final private void drain() {
+		if (drainRequests.getAndIncrement() != 0)
+			return;
+		int requests = 1;
+		do {
+			IOTransport successor = this.successor;
+			for (int priority = Packet.PRIORITY_CONTROL; priority >= 0; priority--) {
+				if (successor != null) {
+					forward(inherited[priority], successor);
+					forward(lanes[priority], successor);
+				} else if (disconnecting) {
+					drop(inherited[priority]);
+					drop(lanes[priority]);
+				} else if (connected && !held) {
+					try {
+						sendLane(priority);
+					} catch (Exception e) {
+						failed("Flushing buffer failed", e);
+					}
+				}
+			}
+			requests = drainRequests.addAndGet(-requests);
+		} while (requests != 0);
+		// once idle, as the successor holds back its own packets meanwhile
+		IOTransport successor = this.successor;
+		if (successor != null)
+			successor.drain();
+	}
+
+	final private void forward(PacketQueue buffer, IOTransport successor) {
+		// packets link themselves, so the successor gets copies
+		Packet packet;
+		while ((packet = buffer.poll()) != null)
+			successor.inherited[packet.priority].offer(new Packet(packet));
 	}
 
-	final private synchronized void flush() {
-		if (connected && buffer.isEmpty() == false) {
-			try {
+	final private void drop(PacketQueue buffer) {
+		Packet packet;
+		while ((packet = buffer.poll()) != null)
+			dropped(packet, new EngineIOException("Transport is closed"));
+	}
+
+	/**
+	 * Sends the forwarded packets of a lane, then the own ones. A producer
+	 * may still be adding to the predecessor after it switched over, so own
+	 * packets wait while the predecessor drains. The predecessor drains this
+	 * once it is done.
+	 */
+	final private void sendLane(int priority) throws Exception {
+		PacketQueue forwarded = inherited[priority];
+		PacketQueue buffer = lanes[priority];
+		for (;;) {
+			if (forwarded.isEmpty() == false) {
+				send(forwarded.iterator());
+				if (forwarded.isEmpty() == false)
+					return;
+			}
+			if (buffer.isEmpty())
+				return;
+			if (predecessor == null) {
 				send(buffer.iterator());
-			} catch (Exception e) {
-				failed("Flushing buffer failed", e);
+				return;
 			}
+			gate.open(buffer, forwarded);
+			send(gate);
+			// loop only if forwarded packets turned up
+			if (gate.closed == false || forwarded.isEmpty())
+				return;
+		}
+	}
+
+	/**
+	 * Iterates the own packets of a lane while the predecessor is idle and
+	 * has forwarded nothing more. It is checked after seeing a packet, so a
+	 * packet its producer sent to the predecessor before is either
+	 * forwarded already or still being forwarded.
+	 */
+	final private class Gate implements Iterator<Packet> {
+		private Iterator<Packet> packets;
+		private PacketQueue forwarded;
+		private boolean closed;
+
+		void open(PacketQueue buffer, PacketQueue forwarded) {
+			this.packets = buffer.iterator();
+			this.forwarded = forwarded;
+			this.closed = false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (closed || packets.hasNext() == false)
+				return false;
+			IOTransport predecessor = IOTransport.this.predecessor;
+			closed = (predecessor != null && predecessor.drainRequests.get() != 0)
+					|| forwarded.isEmpty() == false;
+			return closed == false;
+		}
+
+		@Override
+		public Packet next() {
+			return packets.next();
+		}
+
+		@Override
+		public void remove() {
+			packets.remove();
 		}
 	}
 
-	final void bufferedSend(String data) throws Exception {
-		buffer.add(data);
-		flush();
+	final void bufferedSend(Packet packet) {
+		lanes[packet.priority].offer(packet);
+		drain();
+	}
+
+	/**
+	 * Keeps sent packets in the buffer until released or handed over.
+	 */
+	final void hold() {
+		held = true;
+	}
+
+	/**
+	 * Holds and pauses the transport for an upgrade, see {@link #pause()}.
+	 */
+	final void pauseForUpgrade() {
+		hold();
+		try {
+			pause();
+		} catch (Exception e) {
+			failed("pause has failed", e);
+		}
+	}
+
+	/**
+	 * Writes the held packets and receives again.
+	 */
+	final void release() {
+		if (!held)
+			return;
+		held = false;
+		try {
+			resume();
+		} catch (Exception e) {
+			failed("resume has failed", e);
+		}
+		drain();
+	}
+
+	/**
+	 * Passes the held packets and everything sent to this transport from now
+	 * on to successor, in order. The successor sends them ahead of what is
+	 * sent to it directly.
+	 */
+	final void handover(IOTransport successor) {
+		successor.predecessor = this;
+		this.successor = successor;
+		drain();
+	}
+
+	/**
+	 * Reports that the transport paused after {@link #pause()}.
+	 */
+	final protected void paused() {
+		engine.transportPaused(this);
+	}
+
+	/**
+	 * Called right before writing a packet taken from {@link #send(Iterator)}.
+	 * Returns the packet to write instead, the latest message for a conflated
+	 * one, or null if the message expired and was dropped.
+	 */
+	final protected Packet writing(Packet packet) {
+		return engine.packetWriting(packet);
+	}
+
+	/**
+	 * Reports a packet taken from {@link #send(Iterator)} as written.
+	 */
+	final protected void written(Packet packet) {
+		engine.packetDone(packet, null);
+	}
+
+	/**
+	 * Reports a packet taken from {@link #send(Iterator)} as lost.
+	 */
+	final protected void dropped(Packet packet, Exception cause) {
+		engine.packetDone(packet, cause);
+	}
+
+	/**
+	 * Reports packets written in one batch.
+	 */
+	final protected void flushed(int packets) {
+		engine.getMetrics().flushed(getName(), packets);
+	}
+
+	/**
+	 * Reports that the transport lost its connection and retries. Returns the
+	 * milliseconds to wait before the attempt, or -1 if the engine gave up
+	 * and the transport has to stop.
+	 */
+	final protected long reconnecting() {
+		engine.getMetrics().reconnecting(getName());
+		long delay = engine.reconnectDelay(reconnects.incrementAndGet());
+		if (delay < 0)
+			engine.transportLost(this);
+		return delay;
+	}
+
+	/**
+	 * Reports that the transport got through to the server again.
+	 */
+	final protected void reconnected() {
+		if (reconnects.getAndSet(0) != 0)
+			engine.transportReconnected(this);
+	}
+
+	final boolean isReconnecting() {
+		return reconnects.get() != 0;
+	}
+
+	/**
+	 * Reports that the server does not know the session, the transport
+	 * handshakes again on its next attempt.
+	 */
+	final protected void sessionLost() {
+		engine.sessionLost(this);
 	}
 
 	final void start(EngineIO engine) {
 		disconnecting = false;
+		successor = null;
+		predecessor = null;
+		reconnects.set(0);
 		this.engine = engine;
 		try {
 			open();
@@ -82,10 +384,15 @@ public abstract class IOTransport {
 	}
 
 	final void shutdown() {
+		if (held) {
+			// write what was held for a failed upgrade, like the close packet
+			held = false;
+			drain();
+		}
 		disconnecting = true;
 		try {
 			close();
-			buffer.clear();
+			drain();
 		} catch (Exception e) {
 			failed("close has failed", e);
 		}
@@ -107,11 +414,50 @@ public abstract class IOTransport {
 		return engine.getPort();
 	}
 	
+	protected boolean isCompression() {
+		return engine.isCompression();
+	}
+
+	protected int getRequestCompression() {
+		return engine.getRequestCompression();
+	}
+
 	protected String getPath() {
 		return engine.getBasePath() + "/" + engine.getResource() + "/";
 	}
 	
+	/**
+	 * Returns true once the handshake assigned a session id.
+	 */
+	protected boolean isHandshaken() {
+		return engine.getSid() != null;
+	}
+
 	protected String getQuery(IOTransport transport) {
 		return engine.genQuery(transport);
 	}
+
+	/**
+	 * Changes whenever {@link #getQuery(IOTransport)} may return something
+	 * new, so transports can cache what they build from it.
+	 */
+	protected int getQueryVersion() {
+		return engine.getQueryVersion();
+	}
+
+	EventLoop getEventLoop() {
+		return engine.getEventLoopGroup().next();
+	}
+
+	/**
+	 * Returns the same loop for the same key, so transports can share
+	 * connections living on that loop.
+	 */
+	EventLoop getEventLoop(String key) {
+		return engine.getEventLoopGroup().next(key);
+	}
+
+	WheelTimer.Timeout schedule(Runnable task, long delay) {
+		return engine.schedule(task, delay);
+	}
 }
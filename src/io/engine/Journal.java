@@ -0,0 +1,184 @@
+/*
+ * engine.io Journal.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.logging.Logger;
+
+/**
+ * Messages spilled to a memory-mapped file while the transport is down, see
+ * {@link EngineIO#journal(File, int, int, int)}. Records are appended and
+ * read in order. The file starts over once everything was read, or moves
+ * the unread records to the front once the end is reached. A header keeps
+ * the positions, so messages left by a previous run are read as well.
+ * Not thread safe.
+ */
+final class Journal {
+	final private static Logger LOGGER = Logger.getLogger("engine.io");
+	final private static Charset UTF8 = Charset.forName("UTF-8");
+	final private static int MAGIC = 0x454a4e31;
+	/** The magic number, the read and the write position. */
+	final private static int HEADER = 12;
+	/** Length and kind of a record. */
+	final private static int RECORD_HEADER = 5;
+	final private static byte TEXT = 0;
+	final private static byte BINARY = 1;
+	final private static int COPY_CHUNK = 64 * 1024;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer map;
+	private final int syncEvery;
+	private int read;
+	private int write;
+	private int unsynced = 0;
+	/** The sequence numbers of the next record read and appended. */
+	private long readSequence = 0;
+	private long writeSequence = 0;
+
+	/**
+	 * Maps capacity bytes of path. With syncEvery > 0 the file is forced to
+	 * disk after that many appends, 0 leaves it to the system.
+	 */
+	Journal(File path, int capacity, int syncEvery) throws IOException {
+		if (capacity < HEADER + RECORD_HEADER || syncEvery < 0)
+			throw new IllegalArgumentException("Invalid journal " + capacity
+					+ ", " + syncEvery);
+		this.syncEvery = syncEvery;
+		file = new RandomAccessFile(path, "rw");
+		boolean existing = file.length() >= HEADER;
+		map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		if (existing && map.getInt(0) == MAGIC && recover())
+			return;
+		if (existing)
+			LOGGER.warning("Journal " + path + " is unusable, starting over");
+		map.putInt(0, MAGIC);
+		read = write = HEADER;
+		map.putInt(4, read);
+		map.putInt(8, write);
+	}
+
+	/**
+	 * Takes the positions of a previous run and counts its records.
+	 */
+	private boolean recover() {
+		read = map.getInt(4);
+		write = map.getInt(8);
+		if (read < HEADER || read > write || write > map.capacity())
+			return false;
+		for (int position = read; position < write; writeSequence++) {
+			int length = map.getInt(position);
+			if (length < 0 || position + RECORD_HEADER + length > write)
+				return false;
+			position += RECORD_HEADER + length;
+		}
+		return true;
+	}
+
+	boolean isEmpty() {
+		return read == write;
+	}
+
+	/**
+	 * The sequence number of the record read next.
+	 */
+	long sequence() {
+		return readSequence;
+	}
+
+	/**
+	 * Appends a message. Returns its sequence number, or -1 if the journal
+	 * is full.
+	 */
+	long append(Packet packet) {
+		byte[] data = packet.binary != null ? packet.binary : packet.data
+				.getBytes(UTF8);
+		int length = RECORD_HEADER + data.length;
+		if (write + length > map.capacity()) {
+			compact();
+			if (write + length > map.capacity())
+				return -1;
+		}
+		map.putInt(write, data.length);
+		map.put(write + 4, packet.binary != null ? BINARY : TEXT);
+		ByteBuffer out = map.duplicate();
+		out.position(write + RECORD_HEADER);
+		out.put(data);
+		write += length;
+		map.putInt(8, write);
+		if (syncEvery > 0 && ++unsynced >= syncEvery) {
+			map.force();
+			unsynced = 0;
+		}
+		return writeSequence++;
+	}
+
+	/**
+	 * Reads the next message, which completes future once written.
+	 */
+	Packet read(SendFuture future) {
+		int length = map.getInt(read);
+		byte kind = map.get(read + 4);
+		byte[] data = new byte[length];
+		ByteBuffer in = map.duplicate();
+		in.position(read + RECORD_HEADER);
+		in.get(data);
+		read += RECORD_HEADER + length;
+		if (read == write) {
+			read = write = HEADER;
+			map.putInt(8, write);
+		}
+		map.putInt(4, read);
+		readSequence++;
+		if (kind == BINARY)
+			return new Packet((char) ('0' + data[0]), ByteBuffer.wrap(data, 1,
+					length - 1), future, Packet.PRIORITY_NORMAL);
+		return new Packet('4', new String(data, UTF8), future,
+				Packet.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Moves the unread records to the front. Copies forward, so a chunk
+	 * never overwrites what is still to be copied.
+	 */
+	private void compact() {
+		if (read == HEADER)
+			return;
+		int pending = write - read;
+		byte[] chunk = new byte[Math.min(Math.max(pending, 1), COPY_CHUNK)];
+		ByteBuffer from = map.duplicate();
+		ByteBuffer to = map.duplicate();
+		from.position(read);
+		to.position(HEADER);
+		for (int done = 0; done < pending;) {
+			int bytes = Math.min(chunk.length, pending - done);
+			from.get(chunk, 0, bytes);
+			to.put(chunk, 0, bytes);
+			done += bytes;
+		}
+		read = HEADER;
+		write = HEADER + pending;
+		map.putInt(4, read);
+		map.putInt(8, write);
+	}
+
+	void close() {
+		map.force();
+		try {
+			file.close();
+		} catch (IOException e) {
+			LOGGER.warning("Closing journal failed: " + e);
+		}
+	}
+}
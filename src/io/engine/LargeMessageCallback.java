@@ -0,0 +1,26 @@
+/*
+ * engine.io LargeMessageCallback.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.nio.CharBuffer;
+
+/**
+ * A callback which takes large messages without copying them into a String,
+ * see {@link EngineIO#largeMessages(int)}. Other callbacks get them passed
+ * to {@link #onMessage(String)}.
+ */
+public interface LargeMessageCallback extends EngineIOCallback {
+	/**
+	 * Called instead of {@link #onMessage(String)} for messages of at least
+	 * the {@link EngineIO#largeMessages(int)} threshold. The buffer is a view
+	 * of the chars the transport received, not copied again, and belongs to
+	 * the callback. It can be parsed in place or read in chunks.
+	 */
+	void onLargeMessage(CharBuffer message);
+}
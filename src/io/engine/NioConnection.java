@@ -0,0 +1,425 @@
+/*
+ * engine.io NioConnection.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * A non blocking client socket living on an {@link EventLoop}, optionally
+ * wrapped in TLS. All methods have to be called from the loop thread.
+ */
+abstract class NioConnection implements EventLoop.Handler {
+	final private static Logger LOGGER = Logger.getLogger("engine.io");
+	final private static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	protected final EventLoop loop;
+	private final String host;
+	private final int port;
+	private final boolean secure;
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private SSLEngine ssl;
+	private ByteBuffer netIn;
+	private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+	private ByteBuffer[] gather = new ByteBuffer[4];
+	private boolean established = false;
+	private boolean open = false;
+	/** Counts the connects, so a late address of an earlier one is ignored. */
+	private int connects = 0;
+
+	NioConnection(EventLoop loop, String host, int port, boolean secure) {
+		this.loop = loop;
+		this.host = host;
+		this.port = port;
+		this.secure = secure;
+	}
+
+	/**
+	 * Called once the connection (and the TLS handshake) is established.
+	 */
+	protected abstract void onConnected();
+
+	/**
+	 * Called with received data. The buffer has to be consumed completely.
+	 */
+	protected abstract void onData(ByteBuffer data);
+
+	/**
+	 * Called once when the connection is gone. cause is null if the connection
+	 * was closed locally.
+	 */
+	protected abstract void onClosed(Exception cause);
+
+	protected void onEof() {
+		close(new EOFException("Connection closed by peer"));
+	}
+
+	/**
+	 * Called once a buffer passed to {@link #write(ByteBuffer...)} was
+	 * written, or encrypted, completely and may be reused.
+	 */
+	protected void onWritten(ByteBuffer buffer) {
+	}
+
+	/**
+	 * Called once the socket took everything written before, so more may be
+	 * written without queueing behind it.
+	 */
+	protected void onDrained() {
+	}
+
+	/**
+	 * Whether written buffers still wait for the socket.
+	 */
+	final boolean isWritePending() {
+		return !writes.isEmpty();
+	}
+
+	/**
+	 * The protocols offered by ALPN during the TLS handshake or null to not
+	 * use ALPN.
+	 */
+	protected String[] getApplicationProtocols() {
+		return null;
+	}
+
+	/**
+	 * The protocol selected by ALPN or null if none was negotiated.
+	 */
+	protected final String getApplicationProtocol() {
+		if (ssl == null)
+			return null;
+		try {
+			String protocol = (String) SSLEngine.class.getMethod(
+					"getApplicationProtocol").invoke(ssl);
+			return protocol == null || protocol.length() == 0 ? null
+					: protocol;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	final boolean isOpen() {
+		return open;
+	}
+
+	final boolean isEstablished() {
+		return established;
+	}
+
+	/**
+	 * Connects once the host is resolved. Data written meanwhile is queued.
+	 */
+	final void connect() {
+		if (open)
+			throw new IllegalStateException("Connection is already open.");
+		open = true;
+		established = false;
+		writes.clear();
+		final int connect = ++connects;
+		loop.resolve(host, port, new EventLoop.Resolved() {
+			@Override
+			public void resolved(InetSocketAddress address) {
+				if (open && connect == connects)
+					connect(address);
+			}
+		});
+	}
+
+	private void connect(InetSocketAddress address) {
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			key = loop.register(channel, 0, this);
+			if (channel.connect(address))
+				connected();
+			else
+				key.interestOps(SelectionKey.OP_CONNECT);
+		} catch (Exception e) {
+			close(e);
+		}
+	}
+
+	@Override
+	public final void ready(SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				if (!channel.finishConnect())
+					return;
+				connected();
+			}
+			if (key.isValid() && key.isReadable())
+				read();
+			if (key.isValid() && key.isWritable())
+				flush();
+		} catch (Exception e) {
+			close(e);
+		}
+	}
+
+	/**
+	 * Queues buffers for writing. The buffers must not be modified until they
+	 * are written.
+	 */
+	protected final void write(ByteBuffer... buffers) {
+		if (!open)
+			return;
+		try {
+			if (ssl != null) {
+				wrap(buffers);
+				for (ByteBuffer buffer : buffers)
+					onWritten(buffer);
+			} else {
+				for (ByteBuffer buffer : buffers) {
+					if (buffer.hasRemaining())
+						writes.add(buffer);
+					else
+						onWritten(buffer);
+				}
+			}
+			flush();
+		} catch (Exception e) {
+			close(e);
+		}
+	}
+
+	final void close(Exception cause) {
+		if (!open)
+			return;
+		open = false;
+		established = false;
+		writes.clear();
+		if (key != null)
+			key.cancel();
+		try {
+			if (ssl != null)
+				ssl.closeOutbound();
+			// null while resolving the host for the first time
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "closing channel failed", e);
+		}
+		ssl = null;
+		onClosed(cause);
+	}
+
+	private void connected() throws IOException {
+		if (secure) {
+			ssl = createEngine();
+			netIn = ByteBuffer.allocate(ssl.getSession().getPacketBufferSize());
+			ssl.beginHandshake();
+			handshake();
+			flush();
+		} else {
+			established();
+		}
+	}
+
+	private void established() {
+		established = true;
+		interest();
+		onConnected();
+	}
+
+	private SSLEngine createEngine() throws IOException {
+		SSLEngine engine;
+		try {
+			engine = SSLContext.getDefault().createSSLEngine(host, port);
+		} catch (Exception e) {
+			throw new SSLException("Cannot create TLS context", e);
+		}
+		engine.setUseClientMode(true);
+		try {
+			// Java 7 and newer are able to verify the host name for us.
+			SSLParameters parameters = engine.getSSLParameters();
+			SSLParameters.class.getMethod("setEndpointIdentificationAlgorithm",
+					String.class).invoke(parameters, "HTTPS");
+			engine.setSSLParameters(parameters);
+		} catch (NoSuchMethodException e) {
+			LOGGER.fine("Host name verification is not supported by this JRE.");
+		} catch (Exception e) {
+			throw new SSLException("Cannot enable host name verification", e);
+		}
+		String[] protocols = getApplicationProtocols();
+		if (protocols != null) {
+			try {
+				// Java 9 and 8u252 or newer
+				SSLParameters parameters = engine.getSSLParameters();
+				SSLParameters.class.getMethod("setApplicationProtocols",
+						String[].class).invoke(parameters, (Object) protocols);
+				engine.setSSLParameters(parameters);
+			} catch (Exception e) {
+				throw new SSLException("ALPN is not supported by this JRE", e);
+			}
+		}
+		return engine;
+	}
+
+	private void read() throws IOException {
+		BufferPool pool = loop.getBufferPool();
+		ByteBuffer appIn = pool.acquire();
+		try {
+			int read = channel.read(ssl == null ? appIn : netIn);
+			if (ssl != null)
+				appIn = unwrap(appIn);
+			deliver(appIn);
+			if (read < 0 && open) {
+				if (ssl != null) {
+					try {
+						ssl.closeInbound();
+					} catch (SSLException e) {
+						LOGGER.log(Level.FINE, "truncated TLS stream", e);
+					}
+				}
+				onEof();
+			}
+		} finally {
+			pool.release(appIn);
+		}
+	}
+
+	private void deliver(ByteBuffer appIn) {
+		if (appIn.position() == 0 || !open)
+			return;
+		appIn.flip();
+		onData(appIn);
+		appIn.clear();
+	}
+
+	private ByteBuffer unwrap(ByteBuffer appIn) throws IOException {
+		boolean grow = false;
+		netIn.flip();
+		try {
+			while (open && ssl != null) {
+				SSLEngineResult result = ssl.unwrap(netIn, appIn);
+				switch (result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					if (appIn.position() == 0)
+						appIn = ByteBuffer.allocate(ssl.getSession()
+								.getApplicationBufferSize());
+					else
+						deliver(appIn);
+					continue;
+				case BUFFER_UNDERFLOW:
+					grow = netIn.limit() == netIn.capacity();
+					return appIn;
+				case CLOSED:
+					deliver(appIn);
+					if (open)
+						onEof();
+					return appIn;
+				default:
+				}
+				handshake();
+				if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+					return appIn;
+			}
+			return appIn;
+		} finally {
+			if (ssl != null) {
+				netIn.compact();
+				if (grow) {
+					ByteBuffer bigger = ByteBuffer.allocate(netIn.capacity()
+							+ ssl.getSession().getPacketBufferSize());
+					netIn.flip();
+					netIn = bigger.put(netIn);
+				}
+				flush();
+			}
+		}
+	}
+
+	private void handshake() throws IOException {
+		for (;;) {
+			HandshakeStatus status = ssl.getHandshakeStatus();
+			if (status == HandshakeStatus.NEED_TASK) {
+				Runnable task;
+				while ((task = ssl.getDelegatedTask()) != null)
+					task.run();
+			} else if (status == HandshakeStatus.NEED_WRAP) {
+				wrap(EMPTY);
+			} else {
+				if (!established && status == HandshakeStatus.NOT_HANDSHAKING)
+					established();
+				return;
+			}
+		}
+	}
+
+	private void wrap(ByteBuffer... buffers) throws IOException {
+		for (;;) {
+			ByteBuffer out = ByteBuffer.allocate(ssl.getSession()
+					.getPacketBufferSize());
+			SSLEngineResult result = ssl.wrap(buffers, out);
+			out.flip();
+			if (out.hasRemaining())
+				writes.add(out);
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+				throw new SSLException("TLS engine has been closed");
+			if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+				handshake();
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+				continue;
+			if (!hasRemaining(buffers)
+					|| (result.bytesConsumed() == 0 && result.bytesProduced() == 0))
+				return;
+		}
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] buffers) {
+		for (ByteBuffer buffer : buffers) {
+			if (buffer.hasRemaining())
+				return true;
+		}
+		return false;
+	}
+
+	private void flush() throws IOException {
+		if (!open || channel == null || !channel.isConnected())
+			return;
+		boolean drained = false;
+		if (!writes.isEmpty()) {
+			gather = writes.toArray(gather);
+			channel.write(gather, 0, writes.size());
+			while (!writes.isEmpty() && !writes.peek().hasRemaining()) {
+				ByteBuffer written = writes.poll();
+				if (ssl == null)
+					onWritten(written);
+			}
+			drained = writes.isEmpty();
+		}
+		interest();
+		if (drained)
+			onDrained();
+	}
+
+	private void interest() {
+		if (key.isValid())
+			key.interestOps(writes.isEmpty() ? SelectionKey.OP_READ
+					: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * engine.io NioWebsocketTransport.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A websocket transport living on a shared {@link EventLoop} like polling,
+ * so thousands of sessions run on a few threads instead of one per
+ * websocket. Packets sent while the loop is busy go out as one batch of
+ * frames. Messages are only framed once the socket took the previous batch,
+ * so control packets never wait behind more than one. Packets count as
+ * written once the socket took their frames. Unless compression is off it
+ * negotiates permessage-deflate.
+ */
+public class NioWebsocketTransport extends IOTransport {
+
+	/** The String to identify this Transport. */
+	public static final String NAME = WebsocketTransport.NAME;
+
+	final private static Charset UTF8 = Charset.forName("UTF-8");
+	final private static String PROBE_PONG = "3probe";
+	/** Waits this long for the server to answer a close frame. */
+	final private static long CLOSE_TIMEOUT = 1000;
+	/** Messages beyond this many bytes wait for the next batch. */
+	final private static int MAX_BATCH_BYTES = 256 * 1024;
+
+	private volatile EventLoop loop = null;
+	private final PacketLanes queue = new PacketLanes();
+	/** Set while a task writing the queue is pending on the loop. */
+	private final AtomicBoolean writing = new AtomicBoolean();
+
+	// The following fields are only accessed from the event loop.
+	private WebsocketConnection connection = null;
+	/** Packets framed and flushed, but not taken by the socket yet. */
+	private final ArrayList<Packet> unwritten = new ArrayList<Packet>();
+	/** Set until the server answered the probe of a resumed session. */
+	private boolean resuming = false;
+	private boolean closing = false;
+
+	private final Runnable writeTask = new Runnable() {
+		@Override
+		public void run() {
+			writing.set(false);
+			writeQueue(false);
+		}
+	};
+
+	private final WebsocketConnection.Listener listener = new WebsocketConnection.Listener() {
+		@Override
+		public void onOpen() {
+			if (resuming) {
+				connection.text('2', "probe");
+				connection.flush();
+			} else {
+				opened();
+			}
+		}
+
+		@Override
+		public void onText(byte[] data, int length) {
+			String text = new String(data, 0, length, UTF8);
+			if (!resuming) {
+				packet(text);
+			} else if (PROBE_PONG.equals(text)) {
+				// the server switches the session over to this websocket
+				resuming = false;
+				connection.text('5', "");
+				opened();
+			}
+		}
+
+		/**
+		 * A binary packet, its first byte is the type.
+		 */
+		@Override
+		public void onBinary(byte[] data, int length) {
+			if (resuming || length == 0)
+				return;
+			packet((char) ('0' + data[0]),
+					ByteBuffer.wrap(Arrays.copyOfRange(data, 1, length)));
+		}
+
+		@Override
+		public void onClose(Exception cause) {
+			if (closing)
+				finish();
+			else
+				lost(cause);
+		}
+
+		@Override
+		public void onDrained() {
+			for (Packet packet : unwritten)
+				written(packet);
+			unwritten.clear();
+			// from the loop, so batches are not written recursively
+			if (!queue.isEmpty())
+				scheduleWrite();
+		}
+	};
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	protected void open() throws Exception {
+		// a previous websocket may have been replaced while open
+		setConnected(false);
+		// or still be closing, like the loser of a race upgraded to later
+		final EventLoop loop = this.loop != null ? this.loop : getEventLoop();
+		this.loop = loop;
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (connection != null) {
+					WebsocketConnection previous = connection;
+					closing = true;
+					connection = null;
+					previous.close(null);
+					previous.dispose();
+					dropUnwritten();
+				}
+				closing = false;
+				// finishing the previous websocket forgot the loop
+				NioWebsocketTransport.this.loop = loop;
+				connection = new WebsocketConnection(loop, getHost(),
+						getPort(), isSecure(), listener);
+				connect(false);
+			}
+		});
+	}
+
+	private void connect(boolean resume) {
+		resuming = resume;
+		connection.open(getPath() + getQuery(this), isCompression());
+	}
+
+	private void opened() {
+		reconnected();
+		setConnected(true);
+		writeQueue(false);
+	}
+
+	private void lost(Exception cause) {
+		dropUnwritten();
+		setConnected(false);
+		if (cause != null)
+			failed("Websocket failed", cause);
+		// a server which cannot be reached may still know the session
+		if (resuming && !(cause instanceof IOException))
+			sessionLost();
+		reconnect();
+	}
+
+	/**
+	 * Connects again after a delay. With a session it probes and upgrades
+	 * like a new transport to resume it.
+	 */
+	private void reconnect() {
+		if (isDisconnecting())
+			return;
+		long delay = reconnecting();
+		if (delay < 0)
+			return;
+		final EventLoop loop = this.loop;
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (connection != null && !closing
+								&& !isDisconnecting())
+							connect(isHandshaken());
+					}
+				});
+			}
+		}, delay);
+	}
+
+	@Override
+	protected void send(Iterator<Packet> data) throws Exception {
+		while (data.hasNext()) {
+			queue.add(data.next());
+			data.remove();
+		}
+		scheduleWrite();
+	}
+
+	private void scheduleWrite() {
+		EventLoop loop = this.loop;
+		if (loop != null && writing.compareAndSet(false, true))
+			loop.execute(writeTask);
+	}
+
+	/**
+	 * Writes the queue as one batch, control packets first. Unless all is set
+	 * messages wait while the socket has not taken the previous batch yet.
+	 * Packets stay queued while the websocket reconnects.
+	 */
+	private void writeQueue(boolean all) {
+		if (connection == null || !connection.isUpgraded() || resuming)
+			return;
+		long bytes = !all && connection.isWritePending() ? MAX_BATCH_BYTES : 0;
+		int packets = 0;
+		Packet packet;
+		while ((packet = queue.peek()) != null) {
+			if (!all && packet.priority != Packet.PRIORITY_CONTROL
+					&& bytes >= MAX_BATCH_BYTES)
+				break;
+			packet = writing(queue.poll());
+			if (packet == null)
+				continue;
+			if (packet.priority != Packet.PRIORITY_CONTROL)
+				bytes += packet.size;
+			if (packet.prepared != null)
+				connection.prepared(packet.prepared);
+			else if (packet.binary != null)
+				connection.binary(packet.binary);
+			else
+				connection.text(packet.type, packet.data);
+			unwritten.add(packet);
+			packets++;
+		}
+		if (packets > 0) {
+			connection.flush();
+			flushed(packets);
+		}
+	}
+
+	/**
+	 * Writes what is queued, like the close packet, before the close frame.
+	 */
+	@Override
+	protected void close() {
+		final EventLoop loop = this.loop;
+		if (loop == null)
+			return;
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (connection == null || closing)
+					return;
+				closing = true;
+				if (!connection.isUpgraded() || resuming) {
+					connection.close(null);
+					finish();
+					return;
+				}
+				writeQueue(true);
+				connection.sendClose();
+				final WebsocketConnection closed = connection;
+				schedule(new Runnable() {
+					@Override
+					public void run() {
+						loop.execute(new Runnable() {
+							@Override
+							public void run() {
+								closed.close(null);
+							}
+						});
+					}
+				}, CLOSE_TIMEOUT);
+			}
+		});
+	}
+
+	private void finish() {
+		if (connection == null)
+			return;
+		connection.dispose();
+		connection = null;
+		dropUnwritten();
+		Packet packet;
+		while ((packet = queue.poll()) != null)
+			dropped(packet, new EngineIOException("Transport is closed"));
+		setConnected(false);
+		loop = null;
+	}
+
+	private void dropUnwritten() {
+		for (Packet packet : unwritten)
+			dropped(packet, new EngineIOException("Websocket closed before writing"));
+		unwritten.clear();
+	}
+}
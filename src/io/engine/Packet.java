@@ -0,0 +1,192 @@
+/*
+ * engine.io Packet.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An engine.io packet waiting in a transport buffer. Type and data are kept
+ * apart so transports can encode them without concatenating first.
+ */
+final class Packet {
+	/** Application messages, the default. */
+	final static int PRIORITY_NORMAL = 0;
+	/** Application messages sent before the normal ones. */
+	final static int PRIORITY_HIGH = 1;
+	/** Control packets like pongs, sent before any message. */
+	final static int PRIORITY_CONTROL = 2;
+
+	final char type;
+	/** The text, null for a binary packet. */
+	final String data;
+	/**
+	 * The websocket frame of a binary packet, the numeric type followed by
+	 * the message, or null.
+	 */
+	final byte[] binary;
+	/**
+	 * The UTF-8 or binary length of the message counted against the send
+	 * buffer, or -1 for control packets which are never held back.
+	 */
+	final int size;
+	/** Completed once the packet is written, may be null. */
+	final SendFuture future;
+	/** Selects the lane of the packet, one of the PRIORITY constants. */
+	final int priority;
+	/**
+	 * Set for the stand-in of a conflated message, which is written as the
+	 * latest message of its key, see {@link EngineIO#sendConflated}.
+	 */
+	final String key;
+	/** Nanoseconds until the unsent message is dropped, 0 for never. */
+	final long ttl;
+	/** System.nanoTime() when a message with a ttl was created. */
+	final long created;
+	/** The shared encodings of a prepared message, or null. */
+	final PreparedMessage prepared;
+	/** The link of the {@link PacketQueue} holding this packet. */
+	volatile Packet next;
+
+	Packet(char type, String data) {
+		this(type, data, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * A control packet.
+	 */
+	Packet(char type, String data, int priority) {
+		this.type = type;
+		this.data = data;
+		this.binary = null;
+		this.size = -1;
+		this.future = null;
+		this.priority = priority;
+		this.key = null;
+		this.ttl = 0;
+		this.created = 0;
+		this.prepared = null;
+	}
+
+	/**
+	 * The stand-in queued for the messages of key.
+	 */
+	Packet(String key) {
+		this.type = '4';
+		this.data = null;
+		this.binary = null;
+		this.size = -1;
+		this.future = null;
+		this.priority = PRIORITY_NORMAL;
+		this.key = key;
+		this.ttl = 0;
+		this.created = 0;
+		this.prepared = null;
+	}
+
+	Packet(char type, String data, SendFuture future, int priority) {
+		this(type, data, future, priority, 0);
+	}
+
+	Packet(char type, String data, SendFuture future, int priority, long ttl) {
+		this.type = type;
+		this.data = data;
+		this.binary = null;
+		this.size = 1 + utf8Length(data);
+		this.future = future;
+		this.priority = priority;
+		this.key = null;
+		this.ttl = ttl;
+		this.created = ttl > 0 ? System.nanoTime() : 0;
+		this.prepared = null;
+	}
+
+	/**
+	 * A binary packet of the bytes remaining in message, which are copied
+	 * once into the frame.
+	 */
+	Packet(char type, ByteBuffer message, SendFuture future, int priority) {
+		this(type, message, future, priority, 0);
+	}
+
+	Packet(char type, ByteBuffer message, SendFuture future, int priority,
+			long ttl) {
+		this.type = type;
+		this.data = null;
+		this.binary = new byte[1 + message.remaining()];
+		binary[0] = (byte) (type - '0');
+		message.duplicate().get(binary, 1, binary.length - 1);
+		this.size = binary.length;
+		this.future = future;
+		this.priority = priority;
+		this.key = null;
+		this.ttl = ttl;
+		this.created = ttl > 0 ? System.nanoTime() : 0;
+		this.prepared = null;
+	}
+
+	/**
+	 * A prepared message, sharing its encodings with the other engines.
+	 */
+	Packet(PreparedMessage message, SendFuture future, int priority) {
+		this.type = '4';
+		this.data = message.data;
+		this.binary = message.binary;
+		this.size = message.size;
+		this.future = future;
+		this.priority = priority;
+		this.key = null;
+		this.ttl = 0;
+		this.created = 0;
+		this.prepared = message;
+	}
+
+	/**
+	 * Copies packet, to move it to another queue.
+	 */
+	Packet(Packet packet) {
+		this.type = packet.type;
+		this.data = packet.data;
+		this.binary = packet.binary;
+		this.size = packet.size;
+		this.future = packet.future;
+		this.priority = packet.priority;
+		this.key = packet.key;
+		this.ttl = packet.ttl;
+		this.created = packet.created;
+		this.prepared = packet.prepared;
+	}
+
+	boolean isExpired(long now) {
+		return ttl > 0 && now - created >= ttl;
+	}
+
+	static int utf8Length(CharSequence data) {
+		int length = data.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			char c = data.charAt(i);
+			if (c >= 0x800)
+				// surrogate pairs take 4 bytes, which is 2 per char as well
+				bytes += c >= 0xd800 && c <= 0xdfff ? 1 : 2;
+			else if (c >= 0x80)
+				bytes++;
+		}
+		return bytes;
+	}
+
+	/**
+	 * The text packet as sent by message based transports.
+	 */
+	@Override
+	public String toString() {
+		if (prepared != null)
+			return prepared.toString();
+		return type + data;
+	}
+}
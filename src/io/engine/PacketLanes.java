@@ -0,0 +1,58 @@
+/*
+ * engine.io PacketLanes.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The queue of a transport with a lane per {@link Packet#priority}. Packets
+ * leave the highest lane first, and in order within a lane.
+ */
+final class PacketLanes {
+	private final ConcurrentLinkedQueue<Packet> control = new ConcurrentLinkedQueue<Packet>();
+	private final ConcurrentLinkedQueue<Packet> high = new ConcurrentLinkedQueue<Packet>();
+	private final ConcurrentLinkedQueue<Packet> normal = new ConcurrentLinkedQueue<Packet>();
+
+	void add(Packet packet) {
+		lane(packet.priority).add(packet);
+	}
+
+	Packet peek() {
+		Packet packet = control.peek();
+		if (packet == null)
+			packet = high.peek();
+		if (packet == null)
+			packet = normal.peek();
+		return packet;
+	}
+
+	Packet poll() {
+		Packet packet = control.poll();
+		if (packet == null)
+			packet = high.poll();
+		if (packet == null)
+			packet = normal.poll();
+		return packet;
+	}
+
+	boolean isEmpty() {
+		return control.isEmpty() && high.isEmpty() && normal.isEmpty();
+	}
+
+	private ConcurrentLinkedQueue<Packet> lane(int priority) {
+		switch (priority) {
+		case Packet.PRIORITY_CONTROL:
+			return control;
+		case Packet.PRIORITY_HIGH:
+			return high;
+		default:
+			return normal;
+		}
+	}
+}
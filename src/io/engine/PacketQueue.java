@@ -0,0 +1,88 @@
+/*
+ * engine.io PacketQueue.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded multi-producer single-consumer queue linking the packets
+ * themselves. Offering is wait-free, a single exchange on the tail. All other
+ * methods may only be called by the one consumer at a time.
+ *
+ * A producer interrupted between linking and publishing hides its packet and
+ * those after it until it continues, so consumers must not take an empty
+ * queue as proof that nothing was offered.
+ */
+final class PacketQueue {
+	/** The last consumed packet, its successor is the first in the queue. */
+	private Packet head;
+	private final AtomicReference<Packet> tail;
+	private final Cursor cursor = new Cursor();
+
+	private final class Cursor implements Iterator<Packet> {
+		private Packet current;
+
+		@Override
+		public boolean hasNext() {
+			return current.next != null;
+		}
+
+		@Override
+		public Packet next() {
+			Packet next = current.next;
+			if (next == null)
+				throw new NoSuchElementException();
+			current = next;
+			return next;
+		}
+
+		/**
+		 * Removes the packet last returned, which has to be the first one.
+		 */
+		@Override
+		public void remove() {
+			if (head.next != current)
+				throw new IllegalStateException(
+						"Packets have to be removed in order");
+			head = current;
+		}
+	}
+
+	PacketQueue() {
+		Packet stub = new Packet('\0', "");
+		head = stub;
+		tail = new AtomicReference<Packet>(stub);
+	}
+
+	void offer(Packet packet) {
+		packet.next = null;
+		tail.getAndSet(packet).next = packet;
+	}
+
+	Packet poll() {
+		Packet next = head.next;
+		if (next != null)
+			head = next;
+		return next;
+	}
+
+	boolean isEmpty() {
+		return head.next == null;
+	}
+
+	/**
+	 * Iterates from the first packet. The iterator is reused by every call.
+	 */
+	Iterator<Packet> iterator() {
+		cursor.current = head;
+		return cursor;
+	}
+}
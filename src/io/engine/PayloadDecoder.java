@@ -0,0 +1,192 @@
+/*
+ * engine.io PayloadDecoder.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Decodes polling payloads (<code>&lt;length&gt;:&lt;packet&gt;...</code>)
+ * straight from UTF-8 encoded buffers. The decoder keeps its state between
+ * calls, so a payload may arrive in arbitrary chunks. Decoding a packet
+ * allocates nothing but the String or bytes handed to the listener. Packets
+ * of at least largePackets chars are handed over as a view of the decode
+ * buffer instead of being copied into a String.
+ */
+final class PayloadDecoder {
+	interface Listener {
+		void packet(char type, String data);
+
+		/**
+		 * A binary packet, decoded from base64. The listener owns data.
+		 */
+		void binary(char type, ByteBuffer data);
+
+		/**
+		 * A packet of at least largePackets chars. data is the decode buffer
+		 * itself, which the listener owns from now on.
+		 */
+		void largePacket(char type, CharBuffer data);
+	}
+
+	final private static char BINARY = 'b';
+
+	final private static int INITIAL_CHARS = 256;
+	final private static int MAX_RETAINED_CHARS = 64 * 1024;
+	final private static int MAX_LENGTH_DIGITS = 9;
+
+	private final Listener listener;
+	private final int largePackets;
+	private char[] chars = new char[INITIAL_CHARS];
+	private boolean inLength = true;
+	private int digits = 0;
+	private int length = 0;
+	private int count = 0;
+	private int codePoint = 0;
+	private int continuation = 0;
+
+	PayloadDecoder(Listener listener) {
+		this(listener, -1);
+	}
+
+	/**
+	 * Decodes for listener, handing over packets of at least largePackets
+	 * chars, excluding the type, -1 never does.
+	 */
+	PayloadDecoder(Listener listener, int largePackets) {
+		this.listener = listener;
+		this.largePackets = largePackets;
+	}
+
+	/**
+	 * Decodes all remaining bytes of data.
+	 */
+	void decode(ByteBuffer data) throws IOException {
+		if (data.hasArray()) {
+			byte[] array = data.array();
+			int offset = data.arrayOffset();
+			int position = decode(array, offset + data.position(),
+					offset + data.limit());
+			data.position(position - offset);
+		} else {
+			byte[] array = new byte[data.remaining()];
+			data.get(array);
+			decode(array, 0, array.length);
+		}
+	}
+
+	/**
+	 * Returns true if the decoder is between two packets.
+	 */
+	boolean isIdle() {
+		return inLength && digits == 0;
+	}
+
+	void reset() {
+		inLength = true;
+		digits = length = count = codePoint = continuation = 0;
+		if (chars.length > MAX_RETAINED_CHARS)
+			chars = new char[INITIAL_CHARS];
+	}
+
+	private int decode(byte[] in, int position, int limit) throws IOException {
+		while (position < limit) {
+			if (inLength) {
+				int b = in[position++];
+				if (b == ':') {
+					if (digits == 0)
+						throw new IOException("Missing packet length");
+					inLength = false;
+					if (length > chars.length)
+						chars = new char[Math.max(length, chars.length * 2)];
+					if (length == 0)
+						emit();
+				} else if (b >= '0' && b <= '9' && digits < MAX_LENGTH_DIGITS) {
+					length = length * 10 + (b - '0');
+					digits++;
+				} else {
+					throw new IOException("Invalid packet length");
+				}
+				continue;
+			}
+			position = body(in, position, limit);
+			if (count == length)
+				emit();
+		}
+		return position;
+	}
+
+	private int body(byte[] in, int position, int limit) throws IOException {
+		char[] chars = this.chars;
+		int count = this.count;
+		int length = this.length;
+		while (position < limit && count < length) {
+			int b = in[position];
+			if (continuation == 0 && b >= 0) {
+				// ASCII fast path
+				chars[count++] = (char) b;
+				position++;
+				continue;
+			}
+			position++;
+			b &= 0xff;
+			if (continuation > 0) {
+				if ((b & 0xc0) != 0x80)
+					throw new IOException("Malformed UTF-8 sequence");
+				codePoint = (codePoint << 6) | (b & 0x3f);
+				if (--continuation > 0)
+					continue;
+				if (codePoint >= 0x10000) {
+					if (count + 2 > length)
+						throw new IOException("Packet length splits a surrogate pair");
+					count += Character.toChars(codePoint, chars, count);
+				} else {
+					chars[count++] = (char) codePoint;
+				}
+			} else if ((b & 0xe0) == 0xc0) {
+				codePoint = b & 0x1f;
+				continuation = 1;
+			} else if ((b & 0xf0) == 0xe0) {
+				codePoint = b & 0x0f;
+				continuation = 2;
+			} else if ((b & 0xf8) == 0xf0) {
+				codePoint = b & 0x07;
+				continuation = 3;
+			} else {
+				throw new IOException("Malformed UTF-8 sequence");
+			}
+		}
+		this.count = count;
+		return position;
+	}
+
+	private void emit() throws IOException {
+		if (length == 0)
+			throw new IOException("Empty packet");
+		char type = chars[0];
+		if (type == BINARY && length > 1) {
+			type = chars[1];
+			byte[] data = Base64Codec.decode(chars, 2, length);
+			reset();
+			listener.binary(type, ByteBuffer.wrap(data));
+			return;
+		}
+		if (largePackets >= 0 && length - 1 >= largePackets) {
+			CharBuffer data = CharBuffer.wrap(chars, 1, length - 1).slice();
+			chars = new char[INITIAL_CHARS];
+			reset();
+			listener.largePacket(type, data);
+			return;
+		}
+		String data = length == 1 ? "" : new String(chars, 1, length - 1);
+		reset();
+		listener.packet(type, data);
+	}
+}
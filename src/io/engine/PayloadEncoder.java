@@ -0,0 +1,135 @@
+/*
+ * engine.io PayloadEncoder.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes packets into a polling payload
+ * (<code>&lt;length&gt;:&lt;type&gt;&lt;data&gt;...</code>). Length prefix,
+ * type and UTF-8 encoded data are written straight into one reusable buffer.
+ * Binary packets are written base64 encoded as
+ * <code>&lt;length&gt;:b&lt;type&gt;&lt;base64&gt;</code>.
+ */
+final class PayloadEncoder {
+	final private static int INITIAL_CAPACITY = 4 * 1024;
+	final private static int MAX_RETAINED_CAPACITY = 256 * 1024;
+	// a length prefix, the colon and the type
+	final private static int MAX_HEADER = 12;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+	/**
+	 * Starts a new payload. The buffer returned by the last {@link #finish()}
+	 * must not be in use anymore.
+	 */
+	void begin() {
+		if (buffer.capacity() > MAX_RETAINED_CAPACITY)
+			buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+		buffer.clear();
+	}
+
+	void append(char type, String data) {
+		int chars = data.length();
+		ensure(MAX_HEADER + chars * 3);
+		byte[] out = buffer.array();
+		int position = buffer.position();
+		position = writeLength(out, position, chars + 1);
+		out[position++] = ':';
+		out[position++] = (byte) type;
+		for (int i = 0; i < chars; i++) {
+			char c = data.charAt(i);
+			if (c < 0x80) {
+				out[position++] = (byte) c;
+			} else if (c < 0x800) {
+				out[position++] = (byte) (0xc0 | (c >> 6));
+				out[position++] = (byte) (0x80 | (c & 0x3f));
+			} else if (c >= 0xd800 && c <= 0xdfff) {
+				if (c <= 0xdbff && i + 1 < chars
+						&& Character.isLowSurrogate(data.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, data.charAt(++i));
+					out[position++] = (byte) (0xf0 | (codePoint >> 18));
+					out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+					out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+					out[position++] = (byte) (0x80 | (codePoint & 0x3f));
+				} else {
+					// lone surrogate, same replacement as String.getBytes()
+					out[position++] = '?';
+				}
+			} else {
+				out[position++] = (byte) (0xe0 | (c >> 12));
+				out[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				out[position++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		buffer.position(position);
+	}
+
+	/**
+	 * Appends a binary packet given as its websocket frame, see
+	 * {@link Packet#binary}.
+	 */
+	void append(byte[] frame) {
+		int encoded = Base64Codec.encodedLength(frame.length - 1);
+		ensure(MAX_HEADER + 1 + encoded);
+		byte[] out = buffer.array();
+		int position = writeLength(out, buffer.position(), encoded + 2);
+		out[position++] = ':';
+		out[position++] = 'b';
+		out[position++] = (byte) ('0' + frame[0]);
+		position = Base64Codec.encode(frame, 1, frame.length - 1, out,
+				position);
+		buffer.position(position);
+	}
+
+	/**
+	 * Appends packet, copying the encoding of a prepared message.
+	 */
+	void append(Packet packet) {
+		if (packet.prepared != null) {
+			byte[] encoded = packet.prepared.payload();
+			ensure(encoded.length);
+			buffer.put(encoded);
+		} else if (packet.binary != null) {
+			append(packet.binary);
+		} else {
+			append(packet.type, packet.data);
+		}
+	}
+
+	/**
+	 * Returns the encoded payload, ready for writing.
+	 */
+	ByteBuffer finish() {
+		ByteBuffer payload = buffer.duplicate();
+		payload.flip();
+		return payload;
+	}
+
+	private void ensure(int bytes) {
+		if (buffer.remaining() >= bytes)
+			return;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+				buffer.position() + bytes));
+		buffer.flip();
+		buffer = bigger.put(buffer);
+	}
+
+	private static int writeLength(byte[] out, int position, int length) {
+		int digits = 1;
+		for (int rest = length / 10; rest > 0; rest /= 10)
+			digits++;
+		int end = position + digits;
+		for (int i = end - 1; i >= position; i--) {
+			out[i] = (byte) ('0' + length % 10);
+			length /= 10;
+		}
+		return end;
+	}
+}
@@ -3,121 +3,488 @@
  *
  * Copyright (c) 2012, Enno Boland
  * socket.io-java-client is a implementation of the socket.io protocol in Java.
- * 
+ *
  * See LICENSE file for more information
  */
 package io.engine;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Iterator;
 
 /**
- * The Class XhrTransport.
+ * The HTTP long-polling transport. Long-polls on a shared {@link EventLoop}
+ * instead of blocking a thread per connection. Posts run on another
+ * connection, so sending never interrupts the pending long-poll. Connections
+ * are borrowed per request from the keep-alive pool of the loop.
  */
-class PollingTransport extends IOTransport implements Runnable {
+public class PollingTransport extends IOTransport {
 
 	/** The String to identify this Transport. */
 	public static final String NAME = "polling";
 
-	private Thread httpThread = null;
+	final private static Charset ASCII = Charset.forName("US-ASCII");
+	final private static int SESSION_UNKNOWN = 400;
+	final private static byte[] HEAD_END = "\r\n\r\n".getBytes(ASCII);
+	/** Messages beyond this many bytes wait for the next POST. */
+	final private static int MAX_POST_BYTES = 256 * 1024;
+
+	private volatile EventLoop loop = null;
+
+	private final PacketLanes queue = new PacketLanes();
+
+	// The following fields are only accessed from the event loop.
+	private final PayloadEncoder encoder = new PayloadEncoder();
+	/** The packets of the pending POST. */
+	private final ArrayList<Packet> posted = new ArrayList<Packet>();
+	/** The packets of a failed POST, posted again before the queue. */
+	private final ArrayList<Packet> retry = new ArrayList<Packet>();
+	/** Set while a reconnect attempt is scheduled. */
+	private boolean retrying = false;
+	/** null while the transport is not open. */
+	private HttpConnectionPool pool = null;
+	private String poolKey;
+	private boolean polling = false;
+	private boolean posting = false;
+	/** Set while an upgrade pauses the transport, no GET is sent. */
+	private boolean paused = false;
+	/** Set until {@link #paused()} was called for the pause. */
+	private boolean pausing = false;
+	private int queryVersion;
+	/** The connection of the pending GET, if any. */
+	private HttpConnection pollConnection = null;
+	// Request heads, rendered again only if the query changed.
+	private final ByteBuffer[] getRequest = new ByteBuffer[1];
+	private final ByteBuffer[] postRequest = new ByteBuffer[2];
+	private byte[] postPrefix;
+	private byte[] gzipPostPrefix;
+	private ByteBuffer postHead;
+	// Created on first use, reused for every request.
+	private ContentDecoder contentDecoder = null;
+	private ContentEncoder contentEncoder = null;
+
+	private final HttpConnection.Listener getListener = new HttpConnection.Listener() {
+		private int status;
+		/** Set while the body is compressed. */
+		private boolean inflating;
+		private IOException error;
+
+		@Override
+		public void onResponse(int status, String contentEncoding) {
+			this.status = status;
+			inflating = false;
+			error = null;
+			if (status != 200 || contentEncoding == null)
+				return;
+			if (ContentDecoder.isSupported(contentEncoding)) {
+				contentDecoder().begin(contentEncoding);
+				inflating = true;
+			} else {
+				error = new IOException("Unsupported Content-Encoding "
+						+ contentEncoding);
+			}
+		}
+
+		@Override
+		public void onBody(ByteBuffer data) {
+			if (status != 200 || error != null) {
+				data.position(data.limit());
+			} else if (inflating) {
+				try {
+					contentDecoder.decode(data);
+				} catch (IOException e) {
+					error = e;
+					data.position(data.limit());
+				}
+			} else {
+				stream(data);
+			}
+		}
+
+		@Override
+		public void onComplete() {
+			polling = false;
+			if (status != 200) {
+				if (status == SESSION_UNKNOWN)
+					sessionLost();
+				onFailure(new IOException("Polling returned HTTP " + status));
+				return;
+			}
+			if (inflating && error == null) {
+				try {
+					contentDecoder.end();
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+			if (error != null) {
+				onFailure(error);
+				return;
+			}
+			reconnected();
+			endStream();
+			receive();
+			sendQueue();
+		}
+
+		@Override
+		public void onFailure(Exception exception) {
+			polling = false;
+			endStream();
+			requestFailed(exception);
+		}
+	};
+
+	private final HttpConnection.Listener postListener = new HttpConnection.Listener() {
+		private int status;
+
+		@Override
+		public void onResponse(int status, String contentEncoding) {
+			this.status = status;
+		}
+
+		@Override
+		public void onBody(ByteBuffer data) {
+			data.position(data.limit());
+		}
 
-	private HttpURLConnection getConnection = null;
+		@Override
+		public void onComplete() {
+			posting = false;
+			if (status != 200) {
+				if (status == SESSION_UNKNOWN)
+					sessionLost();
+				onFailure(new IOException("Posting returned HTTP " + status));
+				return;
+			}
+			reconnected();
+			for (Packet packet : posted)
+				written(packet);
+			posted.clear();
+			sendQueue();
+		}
 
-	private Iterator<String> queue = null;
+		/**
+		 * Keeps the packets to post them again after reconnecting. The server
+		 * may have got them already if only the response was lost.
+		 */
+		@Override
+		public void onFailure(Exception exception) {
+			posting = false;
+			retry.addAll(posted);
+			posted.clear();
+			requestFailed(exception);
+		}
+	};
 
 	@Override
 	protected void open() throws Exception {
-		if(httpThread != null)
+		if (loop != null)
 			throw new RuntimeException("Internal Error!");
-		httpThread = new Thread(this, NAME);
-		httpThread.start();
+		loop = getEventLoop();
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				pool = loop.getConnectionPool();
+				poolKey = HttpConnectionPool.key(getHost(), getPort(),
+						isSecure());
+				queryVersion = getQueryVersion() - 1;
+				receive();
+			}
+		});
 		setConnected(true);
 	}
 
-	private URL getUrl() throws MalformedURLException {
-		String protocol = isSecure() ? "https://" : "http://";
-			return new URL(protocol + getHost() + ":" + getPort() + getPath()
-					+ getQuery(this));
+	@Override
+	protected void send(Iterator<Packet> data) throws Exception {
+		while (data.hasNext()) {
+			queue.add(data.next());
+			data.remove();
+		}
+		final EventLoop loop = this.loop;
+		if (loop == null)
+			return;
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				sendQueue();
+			}
+		});
 	}
 
-	@Override
-	protected synchronized void send(Iterator<String> data) throws Exception {
-		queue = data;
-		interruptConnection();
+	private void receive() {
+		if (polling || paused || pool == null || isDisconnecting())
+			return;
+		polling = true;
+		checkQuery();
+		get(getListener);
 	}
 
-	@Override
-	public void run() {
-		Thread.yield();
-		while (isDisconnecting() == false || queue != null) {
-			try {
-				setConnected(true);
-				if (queue != null) {
-					sendQueue();
-				} else {
-					receive();
+	/**
+	 * Posts the queue. Runs next to the long-poll on its own connection, but
+	 * not before the handshake told us our sid.
+	 */
+	private void sendQueue() {
+		if (posting || pool == null)
+			return;
+		if ((queue.isEmpty() && retry.isEmpty()) || !isHandshaken()) {
+			if (isDisconnecting()) {
+				finish();
+			} else if (pausing && !polling) {
+				pausing = false;
+				paused();
+			}
+			return;
+		}
+		encoder.begin();
+		for (Packet packet : retry)
+			encode(packet);
+		retry.clear();
+		// control packets go first and always fit, so a pong never waits
+		// for more than one POST of messages
+		long bytes = 0;
+		Packet packet;
+		while ((packet = queue.peek()) != null) {
+			if (packet.priority != Packet.PRIORITY_CONTROL
+					&& bytes >= MAX_POST_BYTES)
+				break;
+			packet = writing(queue.poll());
+			if (packet == null)
+				continue;
+			if (packet.priority != Packet.PRIORITY_CONTROL)
+				bytes += packet.size;
+			encode(packet);
+		}
+		if (posted.isEmpty()) {
+			// every message expired
+			sendQueue();
+			return;
+		}
+		flushed(posted.size());
+		ByteBuffer body = encoder.finish();
+		boolean gzipped = false;
+		int threshold = getRequestCompression();
+		if (threshold >= 0 && body.remaining() >= threshold) {
+			if (contentEncoder == null)
+				contentEncoder = new ContentEncoder();
+			ByteBuffer compressed = contentEncoder.encode(body);
+			if (compressed.remaining() < body.remaining()) {
+				body = compressed;
+				gzipped = true;
+			}
+		}
+		posting = true;
+		checkQuery();
+		post(body, gzipped, postListener);
+	}
+
+	private ContentDecoder contentDecoder() {
+		if (contentDecoder == null)
+			contentDecoder = new ContentDecoder(new ContentDecoder.Listener() {
+				@Override
+				public void data(ByteBuffer data) {
+					stream(data);
 				}
-				Thread.yield();
-			} catch (Exception e) {
-				failed("HTTP Thread failed", e);
-				if (!isDisconnecting())
-					try {
-						Thread.sleep(1000);
-					} catch (InterruptedException e1) {
+			});
+		return contentDecoder;
+	}
+
+	private void encode(Packet packet) {
+		encoder.append(packet);
+		posted.add(packet);
+	}
+
+	private void checkQuery() {
+		int version = getQueryVersion();
+		if (version == queryVersion)
+			return;
+		queryVersion = version;
+		render(getPath() + getQuery(this));
+	}
+
+	HttpConnectionPool getConnectionPool() {
+		return pool;
+	}
+
+	String getPoolKey() {
+		return poolKey;
+	}
+
+	/**
+	 * Prepares the requests for a new target. Called on the loop before a
+	 * request is sent whenever the query changed.
+	 */
+	void render(String target) {
+		String host = "Host: " + getHost() + ":" + getPort() + "\r\n";
+		String accept = isCompression() ? "Accept-Encoding: gzip, deflate\r\n"
+				: "";
+		getRequest[0] = ByteBuffer.wrap(("GET " + target + " HTTP/1.1\r\n"
+				+ host + accept + "\r\n").getBytes(ASCII));
+		String post = "POST " + target + " HTTP/1.1\r\n" + host + accept
+				+ "Content-Type: text/plain; charset=UTF-8\r\n";
+		postPrefix = (post + "Content-Length: ").getBytes(ASCII);
+		gzipPostPrefix = (post + "Content-Encoding: gzip\r\nContent-Length: ")
+				.getBytes(ASCII);
+		postHead = ByteBuffer.allocate(gzipPostPrefix.length + 10
+				+ HEAD_END.length);
+	}
+
+	/**
+	 * Sends the long-poll GET. The listener is called on the loop.
+	 */
+	void get(HttpConnection.Listener listener) {
+		pollConnection = pool.acquire(poolKey, getHost(), getPort(),
+				isSecure());
+		pollConnection.request(getRequest, true, listener);
+	}
+
+	/**
+	 * Posts body, which may be gzipped. The listener is called on the loop.
+	 */
+	void post(ByteBuffer body, boolean gzipped,
+			HttpConnection.Listener listener) {
+		postHead.clear();
+		postHead.put(gzipped ? gzipPostPrefix : postPrefix);
+		putDecimal(postHead, body.remaining());
+		postHead.put(HEAD_END);
+		postHead.flip();
+		postRequest[0] = postHead;
+		postRequest[1] = body;
+		// a failed POST is retried by the transport, not the connection
+		pool.acquire(poolKey, getHost(), getPort(), isSecure()).request(
+				postRequest, false, listener);
+	}
+
+	/**
+	 * Drops the pending GET without notifying its listener.
+	 */
+	void abortGet() {
+		pollConnection.abort();
+		pollConnection = null;
+	}
+
+	private static void putDecimal(ByteBuffer buffer, int value) {
+		int divisor = 1;
+		while (divisor <= value / 10)
+			divisor *= 10;
+		for (; divisor > 0; divisor /= 10)
+			buffer.put((byte) ('0' + value / divisor % 10));
+	}
+
+	private void requestFailed(Exception exception) {
+		failed("HTTP request failed", exception);
+		if (isDisconnecting()) {
+			dropQueue(exception);
+			finish();
+			return;
+		}
+		// a failing GET and POST retry together
+		if (retrying)
+			return;
+		setConnected(false);
+		long delay = reconnecting();
+		if (delay < 0)
+			return;
+		retrying = true;
+		final EventLoop loop = this.loop;
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						retrying = false;
+						if (pool == null)
+							return;
+						setConnected(true);
+						receive();
+						sendQueue();
 					}
-			} finally {
-				getConnection = null;
-				setConnected(false);
+				});
 			}
-		}
-		httpThread = null;
+		}, delay);
+	}
+
+	private void dropQueue(Exception cause) {
+		for (Packet packet : retry)
+			dropped(packet, cause);
+		retry.clear();
+		Packet packet;
+		while ((packet = queue.poll()) != null)
+			dropped(packet, cause);
 	}
 
-	private void receive() throws MalformedURLException, IOException {
-		synchronized (this) {
-			getConnection = (HttpURLConnection) getUrl().openConnection();
+	private void finish() {
+		if (posting || pool == null)
+			return;
+		if (polling) {
+			polling = false;
+			abortGet();
 		}
-		if(getConnection != null)
-			stream(new InputStreamReader(getConnection.getInputStream()));
+		dropQueue(new EngineIOException("Transport is closed"));
+		if (contentDecoder != null)
+			contentDecoder.close();
+		if (contentEncoder != null)
+			contentEncoder.close();
+		pool = null;
+		setConnected(false);
+		loop = null;
 	}
 
-	private void sendQueue() throws MalformedURLException, IOException {
-		URLConnection post = getUrl().openConnection();
-		post.setDoOutput(true);
-		post.setDoInput(true);
-		post.addRequestProperty("Content-Encoding", "UTF8");
-		OutputStreamWriter output = new OutputStreamWriter(
-				post.getOutputStream(), "UTF-8");
-		synchronized (this) {
-			while (queue.hasNext()) {
-				String packet = queue.next();
-				output.append(packet.length() + ":" + packet);
-				queue.remove();
-			}
+	/**
+	 * Lets the pending GET and POST complete, the server answers the GET once
+	 * it got the probe.
+	 */
+	@Override
+	protected void pause() {
+		final EventLoop loop = this.loop;
+		if (loop == null) {
+			paused();
+			return;
 		}
-		output.close();
-		queue = null;
-		InputStream input = post.getInputStream();
-		while(input.read() != -1) {}
-		input.close();
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				paused = true;
+				pausing = true;
+				sendQueue();
+			}
+		});
 	}
 
 	@Override
-	protected void close() {
-		interruptConnection();
+	protected void resume() {
+		final EventLoop loop = this.loop;
+		if (loop == null)
+			return;
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				paused = false;
+				pausing = false;
+				receive();
+			}
+		});
 	}
 
-	private synchronized void interruptConnection() {
-		HttpURLConnection getConnection = this.getConnection;
-		if (getConnection != null)
-			getConnection.disconnect();
+	@Override
+	protected void close() {
+		final EventLoop loop = this.loop;
+		if (loop == null)
+			return;
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (polling) {
+					polling = false;
+					abortGet();
+					endStream();
+				}
+				sendQueue();
+			}
+		});
 	}
 
 	@Override
@@ -0,0 +1,110 @@
+/*
+ * engine.io PreparedMessage.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A message encoded once to be sent to many engines, see
+ * {@link EngineIO#prepare(String)}. The encodings of the transports are
+ * made on first use and shared by every engine sending the message, so
+ * fanning out costs a copy per engine instead of encoding. Immutable.
+ */
+public final class PreparedMessage {
+	final private static Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The text, null for a binary message. */
+	final String data;
+	/** The websocket frame of a binary message, see {@link Packet#binary}. */
+	final byte[] binary;
+	/** The size counted against the send buffer, see {@link Packet#size}. */
+	final int size;
+
+	// Made on first use. Racing threads may both encode, with equal results.
+	private volatile String text = null;
+	private volatile byte[] frame = null;
+	private volatile byte[] deflated = null;
+	private volatile byte[] payload = null;
+
+	PreparedMessage(String data) {
+		this.data = data;
+		this.binary = null;
+		this.size = 1 + Packet.utf8Length(data);
+	}
+
+	/**
+	 * A binary message of the bytes remaining in message, copied at once.
+	 */
+	PreparedMessage(ByteBuffer message) {
+		this.data = null;
+		this.binary = new byte[1 + message.remaining()];
+		binary[0] = 4;
+		message.duplicate().get(binary, 1, binary.length - 1);
+		this.size = binary.length;
+	}
+
+	public boolean isBinary() {
+		return binary != null;
+	}
+
+	/**
+	 * The text packet as sent by message based transports.
+	 */
+	@Override
+	public String toString() {
+		String text = this.text;
+		if (text == null)
+			this.text = text = '4' + data;
+		return text;
+	}
+
+	/**
+	 * The payload of the websocket frame, the UTF-8 packet or the binary
+	 * frame.
+	 */
+	byte[] frame() {
+		if (binary != null)
+			return binary;
+		byte[] frame = this.frame;
+		if (frame == null)
+			this.frame = frame = toString().getBytes(UTF8);
+		return frame;
+	}
+
+	/**
+	 * The frame payload deflated for permessage-deflate.
+	 */
+	byte[] deflated() {
+		byte[] deflated = this.deflated;
+		if (deflated == null)
+			this.deflated = deflated = WebsocketConnection.deflate(frame());
+		return deflated;
+	}
+
+	/**
+	 * The packet as encoded into a polling payload.
+	 */
+	byte[] payload() {
+		byte[] payload = this.payload;
+		if (payload == null) {
+			PayloadEncoder encoder = new PayloadEncoder();
+			encoder.begin();
+			if (binary != null)
+				encoder.append(binary);
+			else
+				encoder.append('4', data);
+			ByteBuffer encoded = encoder.finish();
+			payload = new byte[encoded.remaining()];
+			encoded.get(payload);
+			this.payload = payload;
+		}
+		return payload;
+	}
+}
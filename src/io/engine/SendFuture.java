@@ -0,0 +1,132 @@
+/*
+ * engine.io SendFuture.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The result of {@link EngineIO#sendAsync(String)}. It completes once the
+ * message was written by the transport, or fails if the send buffer was full
+ * or the transport closed before. Sends cannot be cancelled.
+ */
+public final class SendFuture implements Future<Void> {
+	final private static Logger LOGGER = Logger.getLogger("engine.io");
+
+	public interface Listener {
+		/**
+		 * Called once the future completed, on the thread completing it or on
+		 * the caller of {@link SendFuture#addListener(Listener)} if it already
+		 * is done.
+		 */
+		void onComplete(SendFuture future);
+	}
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile Exception cause = null;
+	private List<Listener> listeners = null;
+
+	SendFuture() {
+	}
+
+	public SendFuture addListener(Listener listener) {
+		synchronized (this) {
+			if (!isDone()) {
+				if (listeners == null)
+					listeners = new ArrayList<Listener>(1);
+				listeners.add(listener);
+				return this;
+			}
+		}
+		notify(listener);
+		return this;
+	}
+
+	/**
+	 * Completes the future, successfully if cause is null.
+	 */
+	void complete(Exception cause) {
+		List<Listener> listeners;
+		synchronized (this) {
+			if (isDone())
+				return;
+			this.cause = cause;
+			done.countDown();
+			listeners = this.listeners;
+			this.listeners = null;
+		}
+		if (listeners != null)
+			for (Listener listener : listeners)
+				notify(listener);
+	}
+
+	private void notify(Listener listener) {
+		try {
+			listener.onComplete(this);
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "SendFuture listener failed", e);
+		}
+	}
+
+	/**
+	 * Returns true if the message was written.
+	 */
+	public boolean isSuccess() {
+		return isDone() && cause == null;
+	}
+
+	/**
+	 * The reason the send failed or null.
+	 */
+	public Exception getCause() {
+		return cause;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public Void get() throws InterruptedException, ExecutionException {
+		done.await();
+		return result();
+	}
+
+	@Override
+	public Void get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit))
+			throw new TimeoutException();
+		return result();
+	}
+
+	private Void result() throws ExecutionException {
+		if (cause != null)
+			throw new ExecutionException(cause);
+		return null;
+	}
+}
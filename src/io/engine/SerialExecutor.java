@@ -0,0 +1,68 @@
+/*
+ * engine.io SerialExecutor.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks one after another in submission order on another executor.
+ * Tasks queued while a batch runs are picked up by that batch, so a busy
+ * connection takes one thread at a time and never more.
+ */
+final class SerialExecutor implements Executor {
+	final private static Logger LOGGER = Logger.getLogger("engine.io");
+
+	private final Executor executor;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	/** Counts the queued tasks, the one raising it from 0 submits a batch. */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final Runnable batch = new Runnable() {
+		@Override
+		public void run() {
+			int done;
+			do {
+				done = 0;
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (Throwable t) {
+						LOGGER.log(Level.WARNING, "Callback failed", t);
+					}
+					done++;
+				}
+			} while (pending.addAndGet(-done) != 0);
+		}
+	};
+
+	SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (pending.getAndIncrement() != 0)
+			return;
+		try {
+			executor.execute(batch);
+		} catch (RejectedExecutionException e) {
+			LOGGER.log(Level.WARNING, "Callback executor rejected, "
+					+ "running callbacks on the calling thread", e);
+			batch.run();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * engine.io SessionMetrics.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects everything reported to {@link EngineIOMetrics} in counters and
+ * histograms, which may be read at any time. One instance may be shared by
+ * several engines to aggregate them. Bytes are the UTF-8 or binary size of a
+ * packet including its type.
+ */
+public class SessionMetrics implements EngineIOMetrics {
+	// packet types 0 to 6, everything else goes to 7
+	final private static int TYPES = 8;
+
+	private final AtomicLongArray packetsIn = new AtomicLongArray(TYPES);
+	private final AtomicLongArray bytesIn = new AtomicLongArray(TYPES);
+	private final AtomicLongArray packetsOut = new AtomicLongArray(TYPES);
+	private final AtomicLongArray bytesOut = new AtomicLongArray(TYPES);
+	private final Histogram flushBatches = new Histogram();
+	private final Histogram upgrades = new Histogram();
+	private final Histogram upgradePauses = new Histogram();
+	private final AtomicLong failedUpgrades = new AtomicLong();
+	private final Histogram pingRoundTrips = new Histogram();
+	private final AtomicLong reconnects = new AtomicLong();
+
+	private static int index(char type) {
+		int index = type - '0';
+		return index >= 0 && index < TYPES ? index : TYPES - 1;
+	}
+
+	private static long sum(AtomicLongArray counters) {
+		long sum = 0;
+		for (int i = 0; i < TYPES; i++)
+			sum += counters.get(i);
+		return sum;
+	}
+
+	@Override
+	public void packetReceived(char type, CharSequence data) {
+		int index = index(type);
+		packetsIn.incrementAndGet(index);
+		bytesIn.addAndGet(index, 1 + Packet.utf8Length(data));
+	}
+
+	@Override
+	public void packetSent(char type, String data) {
+		int index = index(type);
+		packetsOut.incrementAndGet(index);
+		bytesOut.addAndGet(index, 1 + Packet.utf8Length(data));
+	}
+
+	@Override
+	public void binaryReceived(char type, int length) {
+		int index = index(type);
+		packetsIn.incrementAndGet(index);
+		bytesIn.addAndGet(index, 1 + length);
+	}
+
+	@Override
+	public void binarySent(char type, int length) {
+		int index = index(type);
+		packetsOut.incrementAndGet(index);
+		bytesOut.addAndGet(index, 1 + length);
+	}
+
+	@Override
+	public void flushed(String transport, int packets) {
+		flushBatches.record(packets);
+	}
+
+	@Override
+	public void upgraded(String transport, long nanos) {
+		upgrades.record(nanos);
+	}
+
+	@Override
+	public void upgradePaused(String transport, long nanos) {
+		upgradePauses.record(nanos);
+	}
+
+	@Override
+	public void upgradeFailed(String transport) {
+		failedUpgrades.incrementAndGet();
+	}
+
+	@Override
+	public void reconnecting(String transport) {
+		reconnects.incrementAndGet();
+	}
+
+	@Override
+	public void pingRoundTrip(long nanos) {
+		pingRoundTrips.record(nanos);
+	}
+
+	public long getPacketsReceived(char type) {
+		return packetsIn.get(index(type));
+	}
+
+	public long getBytesReceived(char type) {
+		return bytesIn.get(index(type));
+	}
+
+	public long getPacketsSent(char type) {
+		return packetsOut.get(index(type));
+	}
+
+	public long getBytesSent(char type) {
+		return bytesOut.get(index(type));
+	}
+
+	public long getPacketsReceived() {
+		return sum(packetsIn);
+	}
+
+	public long getBytesReceived() {
+		return sum(bytesIn);
+	}
+
+	public long getPacketsSent() {
+		return sum(packetsOut);
+	}
+
+	public long getBytesSent() {
+		return sum(bytesOut);
+	}
+
+	/**
+	 * Packets per written batch.
+	 */
+	public Histogram getFlushBatches() {
+		return flushBatches;
+	}
+
+	/**
+	 * Nanoseconds from starting an upgrade probe to the upgrade.
+	 */
+	public Histogram getUpgrades() {
+		return upgrades;
+	}
+
+	/**
+	 * Nanoseconds messages were held while the old transport paused for an
+	 * upgrade.
+	 */
+	public Histogram getUpgradePauses() {
+		return upgradePauses;
+	}
+
+	public long getFailedUpgrades() {
+		return failedUpgrades.get();
+	}
+
+	/**
+	 * Nanoseconds from sending a ping to its pong.
+	 */
+	public Histogram getPingRoundTrips() {
+		return pingRoundTrips;
+	}
+
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	@Override
+	public String toString() {
+		return "in " + getPacketsReceived() + " packets/" + getBytesReceived()
+				+ " bytes, out " + getPacketsSent() + " packets/"
+				+ getBytesSent() + " bytes, flush batches " + flushBatches
+				+ ", reconnects " + reconnects + ", ping rtt "
+				+ pingRoundTrips;
+	}
+}
@@ -0,0 +1,708 @@
+/*
+ * engine.io WebsocketConnection.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A non blocking websocket client connection (RFC 6455) on an
+ * {@link EventLoop}. Outgoing frames are collected into pooled direct buffers
+ * and masked in place, {@link #flush()} writes them with one gathering write.
+ * Negotiates permessage-deflate (RFC 7692) if asked to. The connection may be
+ * opened again once closed. All methods have to be called from the loop
+ * thread.
+ */
+final class WebsocketConnection extends NioConnection {
+	interface Listener {
+		void onOpen();
+
+		/**
+		 * A text message of length UTF-8 encoded bytes. data is reused
+		 * afterwards.
+		 */
+		void onText(byte[] data, int length);
+
+		/**
+		 * A binary message of length bytes. data is reused afterwards.
+		 */
+		void onBinary(byte[] data, int length);
+
+		/**
+		 * Called once the connection is gone. cause is null after a close
+		 * handshake.
+		 */
+		void onClose(Exception cause);
+
+		/**
+		 * Called once the socket took all frames flushed before, the close
+		 * frame included.
+		 */
+		void onDrained();
+	}
+
+	final private static Charset ASCII = Charset.forName("US-ASCII");
+	final private static Charset UTF8 = Charset.forName("UTF-8");
+	final private static String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	final private static String DEFLATE = "permessage-deflate";
+	final private static byte[] DEFLATE_TAIL = { 0, 0, (byte) 0xff,
+			(byte) 0xff };
+	// two bytes, eight for the length and the mask
+	final private static int MAX_HEADER = 14;
+	final private static int INITIAL_MESSAGE = 4 * 1024;
+	final private static int MAX_RETAINED_MESSAGE = 256 * 1024;
+	/** Smaller messages are not worth deflating. */
+	final private static int DEFLATE_THRESHOLD = 256;
+	final private static int NORMAL_CLOSURE = 1000;
+
+	final private static int CONTINUATION = 0;
+	final private static int TEXT = 1;
+	final private static int BINARY = 2;
+	final private static int CLOSE = 8;
+	final private static int PING = 9;
+	final private static int PONG = 10;
+
+	final private static int HANDSHAKE = 0;
+	final private static int FRAME_HEADER = 1;
+	final private static int PAYLOAD = 2;
+	final private static int CLOSED = 3;
+
+	private final Listener listener;
+	private final String host;
+	private final BufferPool pool;
+	/** Masks need not be unpredictable for a client which is no browser. */
+	private final Random random = new Random();
+	private int state = CLOSED;
+	private String target;
+	private boolean offerDeflate;
+	private boolean deflate;
+	private String expectedAccept;
+	private boolean closeSent;
+
+	// handshake response
+	private final StringBuilder line = new StringBuilder();
+	private int status;
+	private boolean upgrade;
+	private String accept;
+	private String extensions;
+
+	// incoming frames
+	private final byte[] header = new byte[10];
+	private int headerLength;
+	private int headerNeeded;
+	private int opcode;
+	private boolean fin;
+	private long left;
+	private final byte[] control = new byte[125];
+	private int controlLength;
+	/** The opcode of the message being received, -1 between messages. */
+	private int messageOpcode = -1;
+	private boolean messageDeflated;
+	private byte[] message = new byte[INITIAL_MESSAGE];
+	private int messageLength;
+	private Inflater inflater = null;
+	private byte[] inflated = null;
+
+	// outgoing frames
+	private final ArrayList<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+	private ByteBuffer current = null;
+	private int mask;
+	private Deflater deflater = null;
+	private ByteBuffer scratch = null;
+	private byte[] deflated = null;
+
+	WebsocketConnection(EventLoop loop, String host, int port, boolean secure,
+			Listener listener) {
+		super(loop, host, port, secure);
+		this.listener = listener;
+		this.host = host + ":" + port;
+		this.pool = loop.getFrameBufferPool();
+	}
+
+	/**
+	 * Connects and upgrades a request for target, which includes the query.
+	 */
+	void open(String target, boolean offerDeflate) {
+		this.target = target;
+		this.offerDeflate = offerDeflate;
+		state = HANDSHAKE;
+		line.setLength(0);
+		status = 0;
+		upgrade = false;
+		accept = extensions = null;
+		deflate = closeSent = false;
+		messageOpcode = -1;
+		messageLength = 0;
+		batch.clear();
+		current = null;
+		connect();
+	}
+
+	/**
+	 * Returns true once frames can be sent, until the close frame was sent.
+	 */
+	boolean isUpgraded() {
+		return state != HANDSHAKE && state != CLOSED && !closeSent;
+	}
+
+	boolean isDeflate() {
+		return deflate;
+	}
+
+	/**
+	 * Adds a text frame of type followed by data to the batch.
+	 */
+	void text(char type, String data) {
+		int length = 1 + utf8Length(data);
+		if (deflate && length >= DEFLATE_THRESHOLD) {
+			if (scratch == null || scratch.capacity() < length)
+				scratch = ByteBuffer.allocate(Math.max(length, INITIAL_MESSAGE));
+			scratch.clear();
+			scratch.put((byte) type);
+			putUtf8(scratch, data);
+			deflated(TEXT, scratch.array(), scratch.position());
+			if (scratch.capacity() > MAX_RETAINED_MESSAGE)
+				scratch = null;
+			return;
+		}
+		ByteBuffer out = frame(TEXT, false, length);
+		int start = out.position();
+		out.put((byte) type);
+		putUtf8(out, data);
+		mask(out, start);
+	}
+
+	/**
+	 * Adds a binary frame holding payload to the batch.
+	 */
+	void binary(byte[] payload) {
+		if (deflate && payload.length >= DEFLATE_THRESHOLD) {
+			deflated(BINARY, payload, payload.length);
+			return;
+		}
+		ByteBuffer out = frame(BINARY, false, payload.length);
+		int start = out.position();
+		out.put(payload);
+		mask(out, start);
+	}
+
+	/**
+	 * Adds the frame of a prepared message. Its payload, deflated or not, is
+	 * shared with other connections and only masked here.
+	 */
+	void prepared(PreparedMessage message) {
+		byte[] payload = message.frame();
+		boolean compressed = deflate && payload.length >= DEFLATE_THRESHOLD;
+		if (compressed)
+			payload = message.deflated();
+		ByteBuffer out = frame(message.isBinary() ? BINARY : TEXT, compressed,
+				payload.length);
+		int start = out.position();
+		out.put(payload);
+		mask(out, start);
+	}
+
+	/**
+	 * Writes the frames added since the last flush.
+	 */
+	void flush() {
+		if (current != null) {
+			current.flip();
+			batch.add(current);
+			current = null;
+		}
+		if (batch.isEmpty())
+			return;
+		ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+		batch.clear();
+		write(buffers);
+	}
+
+	/**
+	 * Starts the close handshake after writing the batch. The connection
+	 * closes once the server answered.
+	 */
+	void sendClose() {
+		if (!isUpgraded())
+			return;
+		closeFrame(NORMAL_CLOSURE);
+	}
+
+	/**
+	 * Frees the deflate state. The connection may be opened again.
+	 */
+	void dispose() {
+		if (inflater != null)
+			inflater.end();
+		if (deflater != null)
+			deflater.end();
+		inflater = null;
+		deflater = null;
+		inflated = deflated = null;
+		scratch = null;
+	}
+
+	@Override
+	protected void onConnected() {
+		byte[] nonce = new byte[16];
+		random.nextBytes(nonce);
+		byte[] encoded = new byte[Base64Codec.encodedLength(nonce.length)];
+		Base64Codec.encode(nonce, 0, nonce.length, encoded, 0);
+		String key = new String(encoded, ASCII);
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+					(key + GUID).getBytes(ASCII));
+			byte[] expected = new byte[Base64Codec.encodedLength(digest.length)];
+			Base64Codec.encode(digest, 0, digest.length, expected, 0);
+			expectedAccept = new String(expected, ASCII);
+		} catch (NoSuchAlgorithmException e) {
+			close(e);
+			return;
+		}
+		write(ByteBuffer.wrap(("GET " + target + " HTTP/1.1\r\nHost: " + host
+				+ "\r\nUpgrade: websocket\r\nConnection: Upgrade"
+				+ "\r\nSec-WebSocket-Key: " + key
+				+ "\r\nSec-WebSocket-Version: 13"
+				+ (offerDeflate ? "\r\nSec-WebSocket-Extensions: " + DEFLATE
+						: "") + "\r\n\r\n").getBytes(ASCII)));
+	}
+
+	@Override
+	protected void onData(ByteBuffer data) {
+		try {
+			while (data.hasRemaining() && state != CLOSED) {
+				switch (state) {
+				case HANDSHAKE:
+					if (readLine(data))
+						handshakeLine();
+					break;
+				case FRAME_HEADER:
+					if (readHeader(data))
+						frameHeader();
+					break;
+				case PAYLOAD:
+					int length = (int) Math.min(left, data.remaining());
+					if (opcode >= CLOSE) {
+						data.get(control, controlLength, length);
+						controlLength += length;
+					} else {
+						ensureMessage(length);
+						data.get(message, messageLength, length);
+						messageLength += length;
+					}
+					left -= length;
+					if (left == 0)
+						frameDone();
+					break;
+				}
+			}
+		} catch (Exception e) {
+			close(e);
+		}
+		data.position(data.limit());
+	}
+
+	@Override
+	protected void onWritten(ByteBuffer buffer) {
+		pool.release(buffer);
+	}
+
+	@Override
+	protected void onDrained() {
+		if (state != HANDSHAKE)
+			listener.onDrained();
+	}
+
+	@Override
+	protected void onClosed(Exception cause) {
+		state = CLOSED;
+		batch.clear();
+		current = null;
+		if (messageLength > MAX_RETAINED_MESSAGE)
+			message = new byte[INITIAL_MESSAGE];
+		listener.onClose(cause);
+	}
+
+	private boolean readLine(ByteBuffer data) {
+		while (data.hasRemaining()) {
+			char c = (char) (data.get() & 0xff);
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r')
+					line.setLength(length - 1);
+				return true;
+			}
+			line.append(c);
+		}
+		return false;
+	}
+
+	private void handshakeLine() throws Exception {
+		String current = line.toString();
+		line.setLength(0);
+		if (status == 0) {
+			String[] parts = current.split(" ", 3);
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+				throw new IOException("Malformed status line: " + current);
+			status = Integer.parseInt(parts[1]);
+			return;
+		}
+		if (current.length() > 0) {
+			int colon = current.indexOf(':');
+			if (colon < 0)
+				return;
+			String name = current.substring(0, colon).trim();
+			String value = current.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Upgrade"))
+				upgrade = value.equalsIgnoreCase("websocket");
+			else if (name.equalsIgnoreCase("Sec-WebSocket-Accept"))
+				accept = value;
+			else if (name.equalsIgnoreCase("Sec-WebSocket-Extensions"))
+				extensions = extensions == null ? value : extensions + ","
+						+ value;
+			return;
+		}
+		// the server refused, which is no network failure
+		if (status != 101)
+			throw new EngineIOException("Websocket handshake returned HTTP "
+					+ status);
+		if (!upgrade || !expectedAccept.equals(accept))
+			throw new EngineIOException("Invalid websocket handshake");
+		if (extensions != null) {
+			if (!offerDeflate || !extensions.trim().startsWith(DEFLATE)
+					|| extensions.indexOf(',') >= 0
+					|| extensions.indexOf("client_max_window_bits") >= 0)
+				throw new EngineIOException("Unexpected websocket extensions "
+						+ extensions);
+			deflate = true;
+			if (inflater != null)
+				inflater.reset();
+		}
+		state = FRAME_HEADER;
+		headerLength = 0;
+		headerNeeded = 2;
+		listener.onOpen();
+	}
+
+	private boolean readHeader(ByteBuffer data) {
+		while (data.hasRemaining() && headerLength < headerNeeded) {
+			header[headerLength++] = data.get();
+			if (headerLength == 2) {
+				int length = header[1] & 0x7f;
+				headerNeeded = length == 126 ? 4 : length == 127 ? 10 : 2;
+			}
+		}
+		return headerLength == headerNeeded;
+	}
+
+	private void frameHeader() throws IOException {
+		fin = (header[0] & 0x80) != 0;
+		boolean compressed = (header[0] & 0x40) != 0;
+		opcode = header[0] & 0x0f;
+		if ((header[0] & 0x30) != 0 || (header[1] & 0x80) != 0)
+			throw new IOException("Invalid websocket frame header");
+		int length = header[1] & 0x7f;
+		if (length == 126) {
+			left = (header[2] & 0xff) << 8 | (header[3] & 0xff);
+		} else if (length == 127) {
+			left = 0;
+			for (int i = 2; i < 10; i++)
+				left = left << 8 | (header[i] & 0xff);
+		} else {
+			left = length;
+		}
+		if (opcode >= CLOSE) {
+			if (!fin || compressed || left > control.length)
+				throw new IOException("Invalid websocket control frame");
+			controlLength = 0;
+		} else if (opcode == CONTINUATION) {
+			if (messageOpcode < 0 || compressed)
+				throw new IOException("Unexpected continuation frame");
+		} else if (opcode == TEXT || opcode == BINARY) {
+			if (messageOpcode >= 0 || (compressed && !deflate))
+				throw new IOException("Unexpected websocket frame");
+			messageOpcode = opcode;
+			messageDeflated = compressed;
+			messageLength = 0;
+		} else {
+			throw new IOException("Unknown websocket opcode " + opcode);
+		}
+		if (left > Integer.MAX_VALUE - 8 - messageLength)
+			throw new IOException("Websocket message too large");
+		state = PAYLOAD;
+		if (left == 0)
+			frameDone();
+	}
+
+	private void frameDone() throws IOException {
+		state = FRAME_HEADER;
+		headerLength = 0;
+		headerNeeded = 2;
+		switch (opcode) {
+		case CLOSE:
+			if (!closeSent)
+				closeFrame(controlLength >= 2 ? (control[0] & 0xff) << 8
+						| (control[1] & 0xff) : NORMAL_CLOSURE);
+			close(null);
+			return;
+		case PING:
+			ByteBuffer out = frame(PONG, false, controlLength);
+			int start = out.position();
+			out.put(control, 0, controlLength);
+			mask(out, start);
+			flush();
+			return;
+		case PONG:
+			return;
+		}
+		if (!fin)
+			return;
+		int type = messageOpcode;
+		messageOpcode = -1;
+		byte[] data = message;
+		int length = messageLength;
+		if (messageDeflated) {
+			length = inflate();
+			data = inflated;
+		}
+		if (type == TEXT)
+			listener.onText(data, length);
+		else
+			listener.onBinary(data, length);
+		messageLength = 0;
+		if (message.length > MAX_RETAINED_MESSAGE)
+			message = new byte[INITIAL_MESSAGE];
+		if (inflated != null && inflated.length > MAX_RETAINED_MESSAGE)
+			inflated = null;
+	}
+
+	private void ensureMessage(int length) {
+		if (message.length - messageLength < length)
+			message = Arrays.copyOf(message, Math.max(message.length * 2,
+					messageLength + length));
+	}
+
+	/**
+	 * Inflates the message into inflated, returns its length.
+	 */
+	private int inflate() throws IOException {
+		ensureMessage(DEFLATE_TAIL.length);
+		System.arraycopy(DEFLATE_TAIL, 0, message, messageLength,
+				DEFLATE_TAIL.length);
+		if (inflater == null)
+			inflater = new Inflater(true);
+		if (inflated == null)
+			inflated = new byte[INITIAL_MESSAGE];
+		inflater.setInput(message, 0, messageLength + DEFLATE_TAIL.length);
+		int length = 0;
+		try {
+			for (;;) {
+				if (length == inflated.length)
+					inflated = Arrays.copyOf(inflated, length * 2);
+				int read = inflater.inflate(inflated, length, inflated.length
+						- length);
+				length += read;
+				if (read > 0)
+					continue;
+				if (inflater.finished()) {
+					// the server ended its deflate stream, a new one follows
+					inflater.reset();
+					break;
+				}
+				if (inflater.needsInput())
+					break;
+				throw new IOException("Malformed compressed message");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Malformed compressed message", e);
+		}
+		return length;
+	}
+
+	/**
+	 * Adds a frame of the first length bytes of payload deflated. Every
+	 * message ends its own deflate stream, which lets the server inflate it
+	 * without us flushing the deflater, a Java 7 feature.
+	 */
+	private void deflated(int opcode, byte[] payload, int length) {
+		if (deflater == null)
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		if (deflated == null)
+			deflated = new byte[INITIAL_MESSAGE];
+		deflater.reset();
+		deflater.setInput(payload, 0, length);
+		deflater.finish();
+		int size = 0;
+		while (!deflater.finished()) {
+			if (size == deflated.length)
+				deflated = Arrays.copyOf(deflated, size * 2);
+			size += deflater.deflate(deflated, size, deflated.length - size);
+		}
+		ByteBuffer out = frame(opcode, true, size);
+		int start = out.position();
+		out.put(deflated, 0, size);
+		mask(out, start);
+		if (deflated.length > MAX_RETAINED_MESSAGE)
+			deflated = null;
+	}
+
+	/**
+	 * Deflates payload as a message of its own, like
+	 * {@link #deflated(int, byte[], int)} does.
+	 */
+	static byte[] deflate(byte[] payload) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(payload);
+			deflater.finish();
+			byte[] out = new byte[Math.max(64, payload.length / 2)];
+			int size = 0;
+			while (!deflater.finished()) {
+				if (size == out.length)
+					out = Arrays.copyOf(out, size * 2);
+				size += deflater.deflate(out, size, out.length - size);
+			}
+			return Arrays.copyOf(out, size);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private void closeFrame(int code) {
+		closeSent = true;
+		ByteBuffer out = frame(CLOSE, false, 2);
+		int start = out.position();
+		out.putShort((short) code);
+		mask(out, start);
+		flush();
+	}
+
+	/**
+	 * Writes the header of a frame of length bytes and returns the buffer to
+	 * write the payload to, followed by {@link #mask(ByteBuffer, int)}.
+	 */
+	private ByteBuffer frame(int opcode, boolean compressed, int length) {
+		int size = MAX_HEADER + length;
+		ByteBuffer out;
+		if (size > pool.getSize()) {
+			// too large for a pooled buffer, gets one of its own
+			flushCurrent();
+			out = ByteBuffer.allocate(size);
+			batch.add(out);
+		} else {
+			if (current != null && current.remaining() < size)
+				flushCurrent();
+			if (current == null)
+				current = pool.acquire();
+			out = current;
+		}
+		out.put((byte) (0x80 | (compressed ? 0x40 : 0) | opcode));
+		if (length < 126) {
+			out.put((byte) (0x80 | length));
+		} else if (length < 65536) {
+			out.put((byte) (0x80 | 126));
+			out.putShort((short) length);
+		} else {
+			out.put((byte) (0x80 | 127));
+			out.putLong(length);
+		}
+		mask = random.nextInt();
+		out.putInt(mask);
+		return out;
+	}
+
+	private void flushCurrent() {
+		if (current == null)
+			return;
+		current.flip();
+		batch.add(current);
+		current = null;
+	}
+
+	/**
+	 * Masks the payload written to out since start in place.
+	 */
+	private void mask(ByteBuffer out, int start) {
+		int end = out.position();
+		int i = start;
+		for (; i + 4 <= end; i += 4)
+			out.putInt(i, out.getInt(i) ^ mask);
+		for (int shift = 24; i < end; i++, shift -= 8)
+			out.put(i, (byte) (out.get(i) ^ (mask >>> shift)));
+		if (out != current)
+			out.flip();
+	}
+
+	/**
+	 * The number of bytes {@link #putUtf8(ByteBuffer, String)} writes.
+	 */
+	private static int utf8Length(String data) {
+		int chars = data.length();
+		int bytes = chars;
+		for (int i = 0; i < chars; i++) {
+			char c = data.charAt(i);
+			if (c < 0x80)
+				continue;
+			if (c < 0x800) {
+				bytes++;
+			} else if (c >= 0xd800 && c <= 0xdfff) {
+				if (c <= 0xdbff && i + 1 < chars
+						&& Character.isLowSurrogate(data.charAt(i + 1))) {
+					// four bytes for two chars
+					bytes += 2;
+					i++;
+				}
+			} else {
+				bytes += 2;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes data UTF-8 encoded like {@link String#getBytes(Charset)} does.
+	 */
+	private static void putUtf8(ByteBuffer out, String data) {
+		int chars = data.length();
+		for (int i = 0; i < chars; i++) {
+			char c = data.charAt(i);
+			if (c < 0x80) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xc0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3f)));
+			} else if (c >= 0xd800 && c <= 0xdfff) {
+				if (c <= 0xdbff && i + 1 < chars
+						&& Character.isLowSurrogate(data.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, data.charAt(++i));
+					out.put((byte) (0xf0 | (codePoint >> 18)));
+					out.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+					out.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+					out.put((byte) (0x80 | (codePoint & 0x3f)));
+				} else {
+					// lone surrogate
+					out.put((byte) '?');
+				}
+			} else {
+				out.put((byte) (0xe0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				out.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+	}
+}
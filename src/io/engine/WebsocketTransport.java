@@ -8,66 +8,125 @@
  */
 package io.engine;
 
+import java.io.IOException;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.java_websocket.WebSocket;
 import org.java_websocket.WebSocketClient;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ServerHandshake;
 
 /**
  * The Class WebsocketTransport.
  */
-class WebsocketTransport extends IOTransport {
+public class WebsocketTransport extends IOTransport {
 
 	private class Websocket extends WebSocketClient {
-		public Websocket(URI serverURI) {
+		/** Set until the server answered the probe of a resumed session. */
+		private boolean resuming;
+		/** Set once the loss of the connection was handled. */
+		private final AtomicBoolean lost = new AtomicBoolean();
+
+		public Websocket(URI serverURI, boolean resuming) {
 			super(serverURI);
+			this.resuming = resuming;
+		}
+
+		/**
+		 * Returns false for a websocket replaced after a restart, which may
+		 * still be closing.
+		 */
+		private boolean isCurrent() {
+			return websocket == this;
 		}
 
 		@Override
 		public void onOpen(ServerHandshake handshakedata) {
-			setConnected(true);
+			if (!isCurrent())
+				return;
+			if (resuming)
+				resume(PROBE_PING);
+			else
+				opened();
 		}
 
 		@Override
 		public void onMessage(String message) {
-			packet(message);
+			if (!isCurrent())
+				return;
+			if (!resuming) {
+				packet(message);
+			} else if (PROBE_PONG.equals(message)) {
+				// the server switches the session over to this websocket
+				resuming = false;
+				resume(UPGRADE);
+				opened();
+			}
+		}
+
+		/**
+		 * A binary packet, its first byte is the type.
+		 */
+		@Override
+		public void onMessage(byte[] frame) {
+			if (!isCurrent() || resuming || frame.length == 0)
+				return;
+			packet((char) ('0' + frame[0]),
+					ByteBuffer.wrap(frame, 1, frame.length - 1).slice());
 		}
 
 		@Override
 		public void onClose(int code, String reason, boolean remote) {
-			setConnected(false);
-			if (isDisconnecting() == false) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-				}
-				init();
-			}
+			if (isCurrent())
+				lost(null);
 		}
 
 		@Override
 		public void onError(Exception ex) {
+			if (!isCurrent()) {
+				this.close();
+				return;
+			}
 			failed("Websocket called onError", ex);
-			setConnected(false);
 			this.close();
-			if (isDisconnecting() == false) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-				}
-				init();
+			lost(ex);
+		}
+
+		private void resume(String frame) {
+			try {
+				send(frame);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
 		}
+
+		private void opened() {
+			reconnected();
+			setConnected(true);
+		}
+
+		private void lost(Exception cause) {
+			if (!lost.compareAndSet(false, true))
+				return;
+			setConnected(false);
+			// a server which cannot be reached may still know the session
+			if (resuming && !(cause instanceof IOException))
+				sessionLost();
+			reconnect();
+		}
 	}
 
-	Websocket websocket;
+	volatile Websocket websocket;
 
 	/** The String to identify this Transport */
 	public static final String NAME = "websocket";
 
-	URI uri;
+	final private static String PROBE_PING = "2probe";
+	final private static String PROBE_PONG = "3probe";
+	final private static String UPGRADE = "5";
 
 	@Override
 	public String getName() {
@@ -75,16 +134,37 @@ class WebsocketTransport extends IOTransport {
 	}
 
 	@Override
-	public void open() throws URISyntaxException {
-		String protocol = isSecure() ? "wss://" : "ws://";
-		uri = new URI(protocol + getHost() + ":" + getPort() + getPath()
-				+ getQuery(this));
-		init();
+	public void open() {
+		// a previous websocket may have been replaced while open
+		setConnected(false);
+		init(false);
+	}
+
+	/**
+	 * Connects again after a delay. With a session it probes and upgrades
+	 * like a new transport to resume it.
+	 */
+	private void reconnect() {
+		if (isDisconnecting())
+			return;
+		long delay = reconnecting();
+		if (delay < 0)
+			return;
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (isDisconnecting() == false)
+					init(isHandshaken());
+			}
+		}, delay);
 	}
 
-	private void init() {
+	private void init(boolean resume) {
 		try {
-			websocket = new Websocket(uri);
+			String protocol = isSecure() ? "wss://" : "ws://";
+			URI uri = new URI(protocol + getHost() + ":" + getPort()
+					+ getPath() + getQuery(this));
+			websocket = new Websocket(uri, resume);
 			websocket.connect();
 		} catch (Exception e) {
 			failed("Error while init websocket", e);
@@ -92,14 +172,36 @@ class WebsocketTransport extends IOTransport {
 	}
 
 	@Override
-	public void send(Iterator<String> data) throws Exception {
+	public void send(Iterator<Packet> data) throws Exception {
+		int packets = 0;
 		while (data.hasNext()) {
-			websocket.send(data.next());
+			Packet packet = writing(data.next());
+			if (packet == null) {
+				data.remove();
+				continue;
+			}
+			if (packet.binary != null)
+				websocket.send(packet.binary);
+			else
+				websocket.send(packet.toString());
+			data.remove();
+			written(packet);
+			packets++;
 		}
+		if (packets > 0)
+			flushed(packets);
 	}
 
 	@Override
 	public void close() throws Exception {
-		websocket.close();
+		if (websocket == null)
+			return;
+		WebSocket connection = websocket.getConnection();
+		// WebSocketClient.close() interrupts the client before it wrote what
+		// is queued, like the close packet. A close handshake keeps the order.
+		if (connection != null)
+			connection.close(CloseFrame.NORMAL);
+		else
+			websocket.close();
 	}
 }
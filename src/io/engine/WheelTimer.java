@@ -0,0 +1,189 @@
+/*
+ * engine.io WheelTimer.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel shared by all {@link EngineIO} instances. Scheduling
+ * and cancelling are cheap and lock free, timeouts are only as precise as the
+ * tick duration. Tasks run on the timer thread and must not block.
+ */
+final class WheelTimer implements Runnable {
+	final private static Logger LOGGER = Logger.getLogger("engine.io");
+	final private static long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+	final private static int WHEEL_SIZE = 512;
+	final private static int MAX_TRANSFERS = 100000;
+
+	private static WheelTimer shared;
+
+	final private static int PENDING = 0;
+	final private static int CANCELLED = 1;
+	final private static int EXPIRED = 2;
+
+	final private static AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+			.newUpdater(Timeout.class, "state");
+
+	final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private long rounds;
+		private Timeout prev;
+		private Timeout next;
+		private Bucket bucket;
+		volatile int state = PENDING;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		boolean cancel() {
+			if (!STATE.compareAndSet(this, PENDING, CANCELLED))
+				return false;
+			cancelled.add(this);
+			return true;
+		}
+
+		boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		private void expire() {
+			if (!STATE.compareAndSet(this, PENDING, EXPIRED))
+				return;
+			try {
+				task.run();
+			} catch (Throwable t) {
+				LOGGER.log(Level.WARNING, "Timer task failed", t);
+			}
+		}
+	}
+
+	private final static class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		Timeout remove(Timeout timeout) {
+			Timeout next = timeout.next;
+			if (timeout.prev != null)
+				timeout.prev.next = next;
+			if (next != null)
+				next.prev = timeout.prev;
+			if (timeout == head)
+				head = next;
+			if (timeout == tail)
+				tail = timeout.prev;
+			timeout.prev = timeout.next = null;
+			timeout.bucket = null;
+			return next;
+		}
+
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+					Timeout next = remove(timeout);
+					timeout.expire();
+					timeout = next;
+				} else if (timeout.isCancelled()) {
+					timeout = remove(timeout);
+				} else {
+					timeout.rounds--;
+					timeout = timeout.next;
+				}
+			}
+		}
+	}
+
+	private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	private final long startTime = System.nanoTime();
+	private long tick = 0;
+
+	static synchronized WheelTimer shared() {
+		if (shared == null)
+			shared = new WheelTimer();
+		return shared;
+	}
+
+	private WheelTimer() {
+		for (int i = 0; i < wheel.length; i++)
+			wheel[i] = new Bucket();
+		Thread thread = new Thread(this, "engine.io-timer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime()
+				+ unit.toNanos(Math.max(0, delay)) - startTime);
+		pending.add(timeout);
+		return timeout;
+	}
+
+	@Override
+	public void run() {
+		for (;;) {
+			long deadline = waitForNextTick();
+			Timeout timeout;
+			while ((timeout = cancelled.poll()) != null) {
+				if (timeout.bucket != null)
+					timeout.bucket.remove(timeout);
+			}
+			transferPending();
+			wheel[(int) (tick % WHEEL_SIZE)].expire(deadline);
+			tick++;
+		}
+	}
+
+	private void transferPending() {
+		for (int i = 0; i < MAX_TRANSFERS; i++) {
+			Timeout timeout = pending.poll();
+			if (timeout == null)
+				return;
+			if (timeout.isCancelled())
+				continue;
+			long ticks = timeout.deadline / TICK;
+			timeout.rounds = (ticks - tick) / WHEEL_SIZE;
+			wheel[(int) (Math.max(ticks, tick) % WHEEL_SIZE)].add(timeout);
+		}
+	}
+
+	private long waitForNextTick() {
+		long deadline = TICK * (tick + 1);
+		for (;;) {
+			long sleep = deadline - (System.nanoTime() - startTime);
+			if (sleep <= 0)
+				return deadline;
+			try {
+				Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleep) + 1);
+			} catch (InterruptedException e) {
+				// the timer thread never stops.
+			}
+		}
+	}
+}
@@ -0,0 +1,22 @@
+/*
+ * engine.io WritabilityCallback.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * Engine.io client
+ *
+ * See LICENSE file for more information
+ */
+package io.engine;
+
+/**
+ * A callback which is told when the send buffer of its engine fills up and
+ * drains, see {@link EngineIO#sendBufferWatermarks(int, int)}.
+ */
+public interface WritabilityCallback extends EngineIOCallback {
+	/**
+	 * Called when the send buffer filled up to its high watermark and when
+	 * it drained to its low watermark again. Producers should pause while
+	 * it is not writable, further messages are rejected.
+	 */
+	void onWritabilityChanged(boolean writable);
+}
@@ -0,0 +1,135 @@
+package io.engine;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ContentDecoderUnit implements ContentDecoder.Listener {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+	private final ContentDecoder decoder = new ContentDecoder(this);
+	private final ContentEncoder encoder = new ContentEncoder();
+
+	@Override
+	public void data(ByteBuffer data) {
+		while (data.hasRemaining())
+			decoded.write(data.get());
+	}
+
+	@After
+	public void close() {
+		decoder.close();
+		encoder.close();
+	}
+
+	private static String text(int repeat) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < repeat; i++)
+			builder.append(i % 7).append(":4").append(EngineIOBaseTest.DATA);
+		return builder.toString();
+	}
+
+	private static byte[] array(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void testGzipWithNameSplitEverywhere() throws IOException {
+		String text = text(500);
+		byte[] gzip = array(encoder.encode(ByteBuffer.wrap(text.getBytes(UTF8))));
+		// announce a file name after the fixed header
+		byte[] named = new byte[gzip.length + 4];
+		System.arraycopy(gzip, 0, named, 0, 10);
+		named[3] = 8;
+		named[10] = 'a';
+		named[11] = '.';
+		named[12] = 'z';
+		named[13] = 0;
+		System.arraycopy(gzip, 10, named, 14, gzip.length - 10);
+		decoder.begin("gzip");
+		for (byte b : named)
+			decoder.decode(ByteBuffer.wrap(new byte[] { b }));
+		decoder.end();
+		assertEquals("Should decode the body", text, decoded.toString("UTF-8"));
+	}
+
+	@Test
+	public void testDeflateTwice() throws IOException {
+		String text = text(100);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DeflaterOutputStream deflate = new DeflaterOutputStream(out);
+		deflate.write(text.getBytes(UTF8));
+		deflate.close();
+		for (int i = 0; i < 2; i++) {
+			decoded.reset();
+			ByteBuffer direct = ByteBuffer.allocateDirect(out.size());
+			direct.put(out.toByteArray()).flip();
+			decoder.begin("deflate");
+			decoder.decode(direct);
+			decoder.end();
+			assertEquals("Should decode the body", text, decoded.toString("UTF-8"));
+		}
+	}
+
+	@Test
+	public void testTruncated() throws IOException {
+		byte[] gzip = array(encoder.encode(ByteBuffer.wrap(text(50).getBytes(UTF8))));
+		decoder.begin("x-gzip");
+		decoder.decode(ByteBuffer.wrap(gzip, 0, gzip.length - 3));
+		try {
+			decoder.end();
+			fail("Should reject a truncated body");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testCorruptCrc() throws IOException {
+		byte[] gzip = array(encoder.encode(ByteBuffer.wrap(text(50).getBytes(UTF8))));
+		gzip[gzip.length - 8] ^= 1;
+		decoder.begin("gzip");
+		try {
+			decoder.decode(ByteBuffer.wrap(gzip));
+			fail("Should reject a wrong checksum");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testSupported() {
+		assertTrue(ContentDecoder.isSupported("GZIP"));
+		assertTrue(ContentDecoder.isSupported("deflate"));
+		assertFalse(ContentDecoder.isSupported("br"));
+	}
+
+	@Test
+	public void testEncoderRoundTrip() throws IOException {
+		// grows beyond the initial buffer, then gets reused for a small body
+		String[] texts = { text(2000), "4hello" };
+		for (String text : texts) {
+			byte[] body = ("xx" + text).getBytes(UTF8);
+			ByteBuffer buffer = ByteBuffer.wrap(body);
+			buffer.position(2);
+			byte[] gzip = array(encoder.encode(buffer));
+			assertEquals("Should not move the body", 2, buffer.position());
+			InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			int read;
+			while ((read = in.read()) >= 0)
+				out.write(read);
+			assertEquals("Should gunzip to the body", text, out.toString("UTF-8"));
+		}
+	}
+}
@@ -2,6 +2,9 @@ package io.engine;
 
 import static org.junit.Assert.assertEquals;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
@@ -15,6 +18,10 @@ public abstract class EngineIOBaseTest extends EngineIO {
 	public static final String ERROR = "ERROR";
 	public static final String PING = "PING";
 	public static final String UPGRADE = "UPGRADE";
+	public static final String WRITABLE = "WRITABLE";
+	public static final String UNWRITABLE = "UNWRITABLE";
+	public static final String BINARY = "BINARY ";
+	public static final String LARGE = "LARGE ";
 	public static final String DATA = "\u263A DATA \" { ]";
 	public static final Logger LOGGER = Logger.getLogger("EngineIOBaseTest");
 	
@@ -30,6 +37,18 @@ public abstract class EngineIOBaseTest extends EngineIO {
 		gotEvent(message);
 	}
 
+	@Override
+	public void onLargeMessage(CharBuffer message) {
+		gotEvent(LARGE + message);
+	}
+
+	@Override
+	public void onBinaryMessage(ByteBuffer message) {
+		byte[] bytes = new byte[message.remaining()];
+		message.get(bytes);
+		gotEvent(BINARY + Arrays.toString(bytes));
+	}
+
 	@Override
 	public void onClose() {
 		gotEvent(CLOSE);
@@ -40,6 +59,11 @@ public abstract class EngineIOBaseTest extends EngineIO {
 		gotEvent(ERROR);
 	}
 
+	@Override
+	public void onWritabilityChanged(boolean writable) {
+		gotEvent(writable ? WRITABLE : UNWRITABLE);
+	}
+
 	private void gotEvent(String event) {
 		events.offer(event);
 		LOGGER.info("Client: " + event);
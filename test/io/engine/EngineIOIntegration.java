@@ -2,62 +2,36 @@ package io.engine;
 
 import static org.junit.Assert.*;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 public class EngineIOIntegration extends EngineIOBaseTest {
-	private final static String NODE = "node";
-	private Process node;
-	private BufferedReader stdout;
-	private final Thread SHUTDOWN_HOOK = new Thread() {
-		@Override
-		public void run() {
-			try {
-				node.destroy();
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-	};
+	private LoopbackServer server;
 
 	@Before
 	public void setUp() throws Exception {
-		port((int) (Math.random() * 32000) + 1200);
-		ProcessBuilder pBuilder = new ProcessBuilder(NODE,
-				"./test/io/engine/engine.js", "" + getPort(),
-				"polling,websocket");
-		node = pBuilder.start();
-		stdout = new BufferedReader(
-				new InputStreamReader(node.getInputStream(), "UTF-8"));
-
-		new Thread() {
-			public void run() {
-				BufferedReader err = new BufferedReader(new InputStreamReader(node.getErrorStream()));
-				try {
-					String l;
-					while ((l = err.readLine()) != null) {
-						System.err.println(l);
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			};
-		}.start();
-		Runtime.getRuntime().addShutdownHook(SHUTDOWN_HOOK);
-		assertEquals("Server is ready", "OK", pollServer());
-		Thread.sleep(1000);
+		server = new LoopbackServer().start();
+		host("127.0.0.1").port(server.getPort());
+	}
+
+	protected String pollServer() throws Exception {
+		String event = server.poll();
+		LOGGER.info("Server: " + event);
+		return event;
 	}
 
-	protected String pollServer() throws IOException {
-		String line = stdout.readLine();
-		LOGGER.info("Server: " + line);
-		return line;
+	private void awaitUpgrade() throws InterruptedException {
+		for (int i = 0; i < 100 && !WebsocketTransport.NAME.equals(getCurrentTransport()); i++)
+			Thread.sleep(20);
+		assertEquals("Should upgrade", WebsocketTransport.NAME, getCurrentTransport());
 	}
-	
+
 	@Test
 	public void testSend() throws Exception {
 		this.open();
@@ -70,10 +44,442 @@ public class EngineIOIntegration extends EngineIOBaseTest {
 		assertEquals("Server should got open", CLOSE, pollServer());
 	}
 
+	@Test
+	public void testUpgrade() throws Exception {
+		server.pingInterval(50);
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		awaitUpgrade();
+		this.send(DATA);
+		assertEquals("Server Should receive data over websocket", DATA, pollServer());
+		server.send(DATA);
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+		Thread.sleep(200);
+		this.send(DATA);
+		assertEquals("Server Should receive data after pings", DATA, pollServer());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testUpgradeWithoutLoss() throws Exception {
+		final int senders = 4;
+		final int messages = 500;
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[senders];
+		for (int i = 0; i < senders; i++) {
+			final int sender = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < messages; j++) {
+							send(sender + ":" + j);
+							if (j % 20 == 0)
+								Thread.sleep(1);
+						}
+					} catch (InterruptedException e) {
+					}
+				}
+			};
+			threads[i].start();
+		}
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		start.countDown();
+		int[] next = new int[senders];
+		for (int i = 0; i < senders * messages; i++) {
+			String event = pollServer();
+			assertNotNull("Server should receive every message", event);
+			int colon = event.indexOf(':');
+			int sender = Integer.parseInt(event.substring(0, colon));
+			assertEquals("Messages of a sender should arrive in order",
+					next[sender]++, Integer.parseInt(event.substring(colon + 1)));
+		}
+		for (Thread thread : threads)
+			thread.join();
+		awaitUpgrade();
+		assertEquals("Nothing should be left in the buffer", 0, getBufferedPackets());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testRace() throws Exception {
+		race(true);
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		this.send(DATA);
+		assertEquals("Server Should receive data", DATA, pollServerSkippingOpen());
+		server.send(DATA);
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServerSkippingOpen());
+	}
+
+	/**
+	 * The losing transport of a race may open a session as well.
+	 */
+	private String pollServerSkippingOpen() throws Exception {
+		String event;
+		while (OPEN.equals(event = pollServer()))
+			;
+		return event;
+	}
+
+	@Test
+	public void testWebsocketOnly() throws Exception {
+		transports(new WebsocketTransport());
+		testWebsocket();
+	}
+
+	@Test
+	public void testNioWebsocketOnly() throws Exception {
+		transports(new NioWebsocketTransport());
+		testWebsocket();
+	}
+
+	private void testWebsocket() throws Exception {
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		this.send(DATA);
+		assertEquals("Server Should receive data", DATA, pollServer());
+		server.send(DATA);
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testPollingBinary() throws Exception {
+		transports(new PollingTransport());
+		testBinary();
+	}
+
+	@Test
+	public void testWebsocketBinary() throws Exception {
+		transports(new WebsocketTransport());
+		testBinary();
+	}
+
+	@Test
+	public void testNioWebsocketBinary() throws Exception {
+		transports(new NioWebsocketTransport());
+		testBinary();
+	}
+
+	private void testBinary() throws Exception {
+		byte[] bytes = { 0, 1, (byte) 0xfe, (byte) 0xff, 42 };
+		server.echo(true);
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		this.send(bytes);
+		assertEquals("Server should receive binary", "b4AAH+/yo=", pollServer());
+		assertEquals("Should call onBinaryMessage() with the echo", BINARY
+				+ Arrays.toString(bytes), pollEvent());
+		this.send(DATA);
+		assertEquals("Server should receive text", DATA, pollServer());
+		assertEquals("Should call onMessage() with the echo", DATA, pollEvent());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testPollingLargeMessage() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 20000; i++)
+			builder.append(DATA);
+		String message = builder.toString();
+		server.echo(true);
+		transports(new PollingTransport());
+		largeMessages(1000);
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		this.send(DATA);
+		assertEquals("Server should receive data", DATA, pollServer());
+		assertEquals("Should call onMessage() for a small one", DATA,
+				pollEvent());
+		this.send(message);
+		assertEquals("Server should receive the message", message, pollServer());
+		assertEquals("Should call onLargeMessage()", LARGE + message,
+				pollEvent());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testNioWebsocketLargeMessage() throws Exception {
+		transports(new NioWebsocketTransport()).compression(false);
+		testEcho(70000);
+		assertEquals("Should not compress", 0, server.getCompressedRequests());
+	}
+
+	@Test
+	public void testNioWebsocketCompression() throws Exception {
+		server.compression(0);
+		transports(new NioWebsocketTransport());
+		testEcho(70000);
+		assertTrue("Should compress messages",
+				server.getCompressedRequests() > 0);
+		assertTrue("Should inflate messages",
+				server.getCompressedResponses() > 0);
+	}
+
+	@Test
+	public void testNioWebsocketBacklog() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; builder.length() < 100000; i++)
+			builder.append(DATA).append(i);
+		String message = builder.toString();
+		transports(new NioWebsocketTransport()).compression(false);
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		SendFuture[] futures = new SendFuture[40];
+		for (int i = 0; i < 40; i++)
+			futures[i] = this.sendAsync(message);
+		this.send(DATA, PRIORITY_HIGH);
+		boolean urgent = false;
+		for (int i = 0; i < 41; i++) {
+			String event = pollServer();
+			if (DATA.equals(event))
+				urgent = true;
+			else
+				assertEquals("Server should receive every message", message, event);
+		}
+		assertTrue("Server should receive the high priority message", urgent);
+		for (SendFuture future : futures) {
+			future.get(1, TimeUnit.SECONDS);
+			assertTrue("Should complete once written", future.isSuccess());
+		}
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testPollingPrepared() throws Exception {
+		transports(new PollingTransport());
+		testPrepared();
+	}
+
+	@Test
+	public void testNioWebsocketPrepared() throws Exception {
+		server.compression(0);
+		transports(new NioWebsocketTransport());
+		testPrepared();
+		assertTrue("Should send the message deflated",
+				server.getCompressedRequests() > 0);
+	}
+
+	private void testPrepared() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; builder.length() < 10000; i++)
+			builder.append(DATA).append(i);
+		String message = builder.toString();
+		byte[] bytes = { 0, 1, (byte) 0xfe, (byte) 0xff, 42 };
+		PreparedMessage prepared = prepare(message);
+		server.echo(true);
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		this.send(prepared);
+		assertEquals("Server should receive the message", message, pollServer());
+		assertEquals("Should call onMessage() with the echo", message,
+				pollEvent());
+		this.send(prepared);
+		assertEquals("Should send it again", message, pollServer());
+		assertEquals("Should call onMessage() with the echo", message,
+				pollEvent());
+		this.send(prepare(bytes));
+		assertEquals("Server should receive binary", "b4AAH+/yo=", pollServer());
+		assertEquals("Should call onBinaryMessage() with the echo", BINARY
+				+ Arrays.toString(bytes), pollEvent());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	/**
+	 * Sends a message of at least length chars and a small one and awaits
+	 * both echoes.
+	 */
+	private void testEcho(int length) throws Exception {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; builder.length() < length; i++)
+			builder.append(DATA).append(i);
+		String message = builder.toString();
+		server.echo(true);
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		this.send(message);
+		this.send(DATA);
+		assertEquals("Server should receive the message", message, pollServer());
+		assertEquals("Server should receive data", DATA, pollServer());
+		assertEquals("Should call onMessage() with the echo", message,
+				pollEvent());
+		assertEquals("Should call onMessage() with the echo", DATA,
+				pollEvent());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testPollingCompression() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			builder.append(DATA).append(i);
+		String message = builder.toString();
+		server.compression(0).echo(true);
+		transports(new PollingTransport());
+		requestCompression(0);
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		this.send(message);
+		assertEquals("Server should receive the message", message, pollServer());
+		assertEquals("Should call onMessage() with the echo", message,
+				pollEvent());
+		assertTrue("Should compress requests",
+				server.getCompressedRequests() > 0);
+		assertTrue("Should decompress responses",
+				server.getCompressedResponses() > 0);
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testPollingConflation() throws Exception {
+		transports(new PollingTransport());
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		for (int i = 0; i < 1000; i++)
+			sendConflated("key", Integer.toString(i));
+		int last = -1;
+		while (last < 999) {
+			String event = pollServer();
+			assertNotNull("Server should receive the latest message", event);
+			int value = Integer.parseInt(event);
+			assertTrue("Messages should arrive in order", value > last);
+			last = value;
+		}
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testPollingResumesSession() throws Exception {
+		transports(new PollingTransport()).reconnectDelay(50, 200);
+		testResumesSession();
+	}
+
+	@Test
+	public void testWebsocketResumesSession() throws Exception {
+		transports(new WebsocketTransport()).reconnectDelay(50, 200);
+		testResumesSession();
+	}
+
+	@Test
+	public void testNioWebsocketResumesSession() throws Exception {
+		transports(new NioWebsocketTransport()).reconnectDelay(50, 200);
+		testResumesSession();
+	}
+
+	private void testResumesSession() throws Exception {
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		server.disconnect();
+		Thread.sleep(100);
+		this.send(DATA);
+		assertEquals("Server Should receive data sent while reconnecting",
+				DATA, pollServer());
+		server.send(DATA);
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testNioWebsocketJournal() throws Exception {
+		File file = File.createTempFile("journal", ".bin");
+		file.deleteOnExit();
+		transports(new NioWebsocketTransport()).reconnectDelay(200, 400)
+				.journal(file, 0, 1 << 20, 0);
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		server.disconnect();
+		Thread.sleep(50);
+		for (int i = 0; i < 100; i++)
+			this.send(Integer.toString(i));
+		for (int i = 0; i < 100; i++)
+			assertEquals("Server should receive journaled messages in order",
+					Integer.toString(i), pollServer());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+		file.delete();
+	}
+
+	@Test
+	public void testPollingOpensNewSession() throws Exception {
+		transports(new PollingTransport()).reconnectDelay(50, 200);
+		testOpensNewSession();
+	}
+
+	@Test
+	public void testWebsocketOpensNewSession() throws Exception {
+		transports(new WebsocketTransport()).reconnectDelay(50, 200);
+		testOpensNewSession();
+	}
+
+	@Test
+	public void testNioWebsocketOpensNewSession() throws Exception {
+		transports(new NioWebsocketTransport()).reconnectDelay(50, 200);
+		testOpensNewSession();
+	}
+
+	private void testOpensNewSession() throws Exception {
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		String sid = getSid();
+		server.forget();
+		Thread.sleep(100);
+		this.send(DATA);
+		assertEquals("Server should open a new session", OPEN, pollServer());
+		assertEquals("Should call onOpen() again", OPEN, pollEvent());
+		assertFalse("Should get a new sid", sid.equals(getSid()));
+		assertEquals("Server Should receive data sent while reconnecting",
+				DATA, pollServer());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
 	@After
 	public void tearDown() throws Exception {
-		node.destroy();
-		node.waitFor();
 		super.tearDown();
+		server.stop();
 	}
 }
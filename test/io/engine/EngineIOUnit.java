@@ -2,6 +2,13 @@ package io.engine;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -10,6 +17,7 @@ public class EngineIOUnit extends EngineIOBaseTest {
 	private static final String CLOSE = "CLOSE";
 	private static final String ERROR = "ERROR";
 	TestTransport transport = new TestTransport("TEST");
+	private volatile String errorThread = null;
 
 	protected String pollServer() {
 		return transport.output.poll();
@@ -22,6 +30,12 @@ public class EngineIOUnit extends EngineIOBaseTest {
 	}
 	
 
+	@Override
+	public void onError(EngineIOException exception) {
+		errorThread = Thread.currentThread().getName();
+		super.onError(exception);
+	}
+
 	@Before
 	public void setUp() throws Exception {
 		this.transports(transport);
@@ -59,6 +73,8 @@ public class EngineIOUnit extends EngineIOBaseTest {
 		this.open();
 		assertEquals("timeout should cause onError()", ERROR, pollEvent());
 		assertEquals("transport should be closed", CLOSE, pollServer());
+		assertFalse("Should not call back on the shared timer thread",
+				"engine.io-timer".equals(errorThread));
 	}
 	
 	@Test
@@ -84,6 +100,297 @@ public class EngineIOUnit extends EngineIOBaseTest {
 		assertEquals("Should call onClose()", CLOSE, pollEvent());
 	}
 
+	@Test
+	public void testReconnectBackoff() {
+		reconnectDelay(100, 400).reconnectAttempts(4);
+		open();
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		long delay = transport.reconnect();
+		assertTrue("First delay should be up to 100", delay >= 0 && delay <= 100);
+		delay = transport.reconnect();
+		assertTrue("Delay should double", delay >= 0 && delay <= 200);
+		transport.finishReconnect();
+		delay = transport.reconnect();
+		assertTrue("Success should reset the delay", delay >= 0 && delay <= 100);
+		transport.reconnect();
+		delay = transport.reconnect();
+		assertTrue("Delay should double", delay >= 0 && delay <= 400);
+		delay = transport.reconnect();
+		assertTrue("Delay should stop at max", delay >= 0 && delay <= 400);
+		assertEquals("Should give up after the attempts", -1, transport.reconnect());
+		assertEquals("Giving up should cause onError()", ERROR, pollEvent());
+		assertEquals("transport should be closed", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testSendBinary() {
+		open();
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		ByteBuffer data = ByteBuffer.wrap(new byte[] { 9, 1, 2, 3 });
+		data.position(1);
+		transport.allowSend(true);
+		send(data);
+		assertEquals("Should not move the position", 1, data.position());
+		data.put(1, (byte) 7);
+		assertEquals("Transport should send a copy", BINARY + "[1, 2, 3]",
+				pollServer());
+		assertEquals("Should call onBinaryMessage()", BINARY + "[1, 2, 3]",
+				pollEvent());
+		this.close();
+		assertEquals("Transport should send close packet", CLOSE, pollServer());
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+	}
+
+	@Test
+	public void testBinaryMessageDropped() {
+		callback(basicCallback());
+		open();
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		transport.allowSend(true);
+		send(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+		assertEquals("Transport should send", BINARY + "[1, 2, 3]",
+				pollServer());
+		this.close();
+		assertEquals("Transport should send close packet", CLOSE, pollServer());
+		assertEquals("Should drop the binary message", CLOSE, pollEvent());
+	}
+
+	@Test
+	public void testLargeMessage() {
+		largeMessages(5);
+		open();
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		transport.inject("4hi");
+		assertEquals("Should call onMessage()", "hi", pollEvent());
+		transport.inject("4hello");
+		assertEquals("Should call onLargeMessage()", LARGE + "hello",
+				pollEvent());
+		this.close();
+		assertEquals("Transport should send close packet", CLOSE, pollServer());
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+	}
+
+	@Test
+	public void testLargeMessageFallback() {
+		largeMessages(5);
+		callback(basicCallback());
+		open();
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		transport.inject("4hello");
+		assertEquals("Should pass large messages to onMessage()", "hello",
+				pollEvent());
+		this.close();
+		assertEquals("Transport should send close packet", CLOSE, pollServer());
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+	}
+
+	@Test
+	public void testWritabilityNotCalledBack() throws Exception {
+		sendBufferWatermarks(0, 1);
+		callback(basicCallback());
+		open();
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		transport.allowSend(false);
+		sendAsync(DATA);
+		assertFalse("Should turn unwritable", isWritable());
+		transport.allowSend(true);
+		assertTrue("Should turn writable", isWritable());
+		assertEquals("Transport should send", DATA, pollServer());
+		assertEquals("Should only call onMessage()", DATA, pollEvent());
+	}
+
+	@Test
+	public void testBackpressure() throws Exception {
+		sendBufferWatermarks(1, 3);
+		open();
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		transport.allowSend(false);
+		SendFuture first = sendAsync(DATA);
+		sendAsync(DATA);
+		assertTrue("Should be writable below high watermark", isWritable());
+		sendAsync(DATA);
+		assertEquals("Should call onWritabilityChanged()", UNWRITABLE, pollEvent());
+		assertEquals("Should buffer messages", 3, getBufferedPackets());
+		SendFuture rejected = sendAsync(DATA);
+		assertTrue("Should reject when full", rejected.isDone() && !rejected.isSuccess());
+		assertFalse("Should not complete before written", first.isDone());
+		transport.allowSend(true);
+		assertTrue("Should complete once written", first.isSuccess());
+		assertEquals("Transport should send", DATA, pollServer());
+		assertEquals("Transport should send", DATA, pollServer());
+		assertEquals("Transport should send", DATA, pollServer());
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+		assertEquals("Should call onWritabilityChanged()", WRITABLE, pollEvent());
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+		assertEquals("Should drain buffer", 0, getBufferedBytes());
+	}
+
+	@Test
+	public void testPriority() throws Exception {
+		open();
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		transport.allowSend(false);
+		sendAsync(DATA);
+		sendAsync("urgent", PRIORITY_HIGH);
+		transport.inject("2");
+		transport.allowSend(true);
+		assertEquals("Pong should jump the queue, then the high priority message",
+				"344", transport.sentTypes.toString());
+		assertEquals("Transport should send", "urgent", pollServer());
+		assertEquals("Transport should send", DATA, pollServer());
+		assertEquals("Should call onMessage()", "urgent", pollEvent());
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownPriority() {
+		sendAsync(DATA, 7);
+	}
+
+	@Test
+	public void testConflation() throws Exception {
+		open();
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		transport.allowSend(false);
+		SendFuture replaced = sendConflated("a", "a1");
+		sendConflated("b", "b1");
+		SendFuture latest = sendConflated("a", "a2");
+		assertTrue("Should fail the replaced message", replaced.isDone() && !replaced.isSuccess());
+		assertEquals("Should buffer one message per key", 2, getBufferedPackets());
+		transport.allowSend(true);
+		assertTrue("Should write the latest message", latest.isSuccess());
+		assertEquals("Latest message should keep the place of the first", "a2", pollServer());
+		assertEquals("Transport should send", "b1", pollServer());
+		assertEquals("Should call onMessage()", "a2", pollEvent());
+		assertEquals("Should call onMessage()", "b1", pollEvent());
+		sendConflated("a", "a3");
+		assertEquals("Should send again once written", "a3", pollServer());
+		assertEquals("Should call onMessage()", "a3", pollEvent());
+		assertEquals("Should drain buffer", 0, getBufferedBytes());
+	}
+
+	@Test
+	public void testConflationExpiry() throws Exception {
+		open();
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		transport.allowSend(false);
+		SendFuture expired = sendConflated("a", DATA, 1, TimeUnit.MILLISECONDS);
+		SendFuture kept = sendConflated("b", DATA, 1, TimeUnit.MINUTES);
+		Thread.sleep(20);
+		transport.allowSend(true);
+		assertTrue("Should drop the expired message", expired.isDone() && !expired.isSuccess());
+		assertTrue("Should write the other message", kept.isSuccess());
+		assertEquals("Transport should send", DATA, pollServer());
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+		assertEquals("Should drain buffer", 0, getBufferedPackets());
+	}
+
+	@Test
+	public void testJournal() throws Exception {
+		File file = File.createTempFile("journal", ".bin");
+		file.deleteOnExit();
+		journal(file, 1, 4096, 0);
+		open();
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		transport.allowSend(false);
+		sendAsync("1");
+		SendFuture spilled = sendAsync("2");
+		sendAsync("3");
+		assertEquals("Should keep the window in memory", 1, getBufferedPackets());
+		transport.allowSend(true);
+		assertTrue("Should complete once replayed", spilled.isSuccess());
+		assertEquals("Transport should send", "1", pollServer());
+		assertEquals("Should replay in order", "2", pollServer());
+		assertEquals("Should replay in order", "3", pollServer());
+		assertEquals("Should call onMessage()", "1", pollEvent());
+		assertEquals("Should call onMessage()", "2", pollEvent());
+		assertEquals("Should call onMessage()", "3", pollEvent());
+		assertEquals("Should drain buffer", 0, getBufferedPackets());
+		file.delete();
+	}
+
+	@Test
+	public void testJournalClosed() throws Exception {
+		File file = File.createTempFile("journal", ".bin");
+		file.deleteOnExit();
+		journal(file, 1, 4096, 0);
+		open();
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		transport.allowSend(false);
+		sendAsync("1");
+		SendFuture spilled = sendAsync("2");
+		close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+		assertTrue("Should fail journaled messages", spilled.isDone()
+				&& !spilled.isSuccess());
+		Journal reopened = new Journal(file, 4096, 0);
+		assertEquals("Should keep journaled messages", "2", reopened.read(null).data);
+		reopened.close();
+		file.delete();
+	}
+
+	@Test
+	public void testCallbackExecutor() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		callbackExecutor(executor);
+		open();
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		for (int i = 0; i < 100; i++)
+			send(DATA + i);
+		for (int i = 0; i < 100; i++) {
+			assertEquals("Transport should send", DATA + i, pollServer());
+			assertEquals("Should call onMessage() in order", DATA + i, pollEvent());
+		}
+		this.close();
+		assertEquals("Transport should send close packet", CLOSE, pollServer());
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		executor.shutdown();
+	}
+
+	@Test
+	public void testMetrics() {
+		SessionMetrics metrics = new SessionMetrics();
+		metrics(metrics);
+		TestTransport upgradeTransport = new TestTransport("upgrade");
+		transport.setConfiguration("{\"sid\":\"ASID\", pingTimeout: 100000, \"upgrades\": [ \"upgrade\" ]}");
+		transports(transport, upgradeTransport);
+		this.open();
+		upgradeTransport.allowSend(true);
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		assertEquals("Upgrading transport should receive a ping probe", PING, upgradeTransport.output.poll());
+		send(DATA);
+		assertEquals("Transport should send", DATA, pollServer());
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+		assertEquals("Should count open", 1, metrics.getPacketsReceived('0'));
+		assertEquals("Should count sent message", 1, metrics.getPacketsSent('4'));
+		assertEquals("Should count received message", 1, metrics.getPacketsReceived('4'));
+		assertEquals("Should count UTF-8 bytes", 1 + DATA.getBytes(Charset.forName("UTF-8")).length,
+				metrics.getBytesSent('4'));
+		assertEquals("Should count probe", 1, metrics.getPacketsSent('2'));
+		upgradeTransport.inject("3probe");
+		assertEquals("Upgrading transport should send upgrade packet", UPGRADE, upgradeTransport.output.poll());
+		assertEquals("Should measure the probe", 1, metrics.getPingRoundTrips().getCount());
+		assertEquals("Should measure the upgrade", 1, metrics.getUpgrades().getCount());
+		assertEquals("Should count upgrade packet", 1, metrics.getPacketsSent('5'));
+		assertEquals("Old transport should be closed", CLOSE, pollServer());
+	}
+
 	@Test
 	public void testUpgrade() {
 		TestTransport upgradeTransport = new TestTransport("upgrade");
@@ -101,8 +408,118 @@ public class EngineIOUnit extends EngineIOBaseTest {
 		assertEquals("Upgrading transport should send upgrade packet", UPGRADE, upgradeTransport.output.poll());
 		send(DATA);
 		assertEquals("Upgrading transport should handle messages now", DATA, upgradeTransport.output.poll());
+		assertEquals("Old transport should be closed", CLOSE, pollServer());
 		assertEquals("transport should not send anything else", null, pollServer());
 		assertEquals("Should call onMessage()", DATA, pollEvent());
 	}
 
+	@Test
+	public void testRace() {
+		TestTransport racer = new TestTransport("racer");
+		transport.setConfiguration(null);
+		transports(transport, racer).race(true);
+		this.open();
+		racer.allowSend(true);
+		send("early");
+		assertEquals("Racing transports should hold messages", null, pollServer());
+		assertEquals("Racing transports should hold messages", null, racer.output.poll());
+		racer.inject("0{\"sid\":\"ASID\", pingTimeout: 100000}");
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Winner should get the held messages", "early", racer.output.poll());
+		assertEquals("Loser should be closed", CLOSE, pollServer());
+		assertEquals("Should keep the winner", "racer", getCurrentTransport());
+		transport.inject("0{\"sid\":\"BSID\", pingTimeout: 100000}");
+		assertEquals("Should ignore the loser's handshake", "ASID", getSid());
+		send(DATA);
+		assertEquals("Winner should send", DATA, racer.output.poll());
+		assertEquals("Loser should not send", null, pollServer());
+		assertEquals("Should call onMessage()", "early", pollEvent());
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+	}
+
+	@Test
+	public void testUpgradeHoldsMessages() {
+		TestTransport upgradeTransport = new TestTransport("upgrade");
+		SessionMetrics metrics = new SessionMetrics();
+		transport.setConfiguration("{\"sid\":\"ASID\", pingTimeout: 100000, \"upgrades\": [ \"upgrade\" ]}");
+		transport.pauseLater(true);
+		transports(transport, upgradeTransport).metrics(metrics);
+		this.open();
+		upgradeTransport.allowSend(true);
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		assertEquals("Upgrading transport should receive a ping probe", PING, upgradeTransport.output.poll());
+		upgradeTransport.inject("3probe");
+		send("first");
+		send("second");
+		assertEquals("Pausing transport should hold messages", null, pollServer());
+		assertEquals("Upgrading transport should wait for the pause", null, upgradeTransport.output.poll());
+		assertEquals("Messages should wait in the buffer", 2, getBufferedPackets());
+		transport.finishPause();
+		assertEquals("Upgrade packet should come first", UPGRADE, upgradeTransport.output.poll());
+		assertEquals("Held messages should follow in order", "first", upgradeTransport.output.poll());
+		assertEquals("Held messages should follow in order", "second", upgradeTransport.output.poll());
+		assertEquals("Old transport should be closed", CLOSE, pollServer());
+		send(DATA);
+		assertEquals("New messages should use the new transport", DATA, upgradeTransport.output.poll());
+		assertEquals("Old transport should not send anything", null, pollServer());
+		assertEquals("Should switch transports", "upgrade", getCurrentTransport());
+		assertEquals("Should measure the pause", 1, metrics.getUpgradePauses().getCount());
+		assertEquals("Should measure the upgrade", 1, metrics.getUpgrades().getCount());
+		assertEquals("Nothing should be left in the buffer", 0, getBufferedPackets());
+		assertEquals("Should call onMessage()", "first", pollEvent());
+		assertEquals("Should call onMessage()", "second", pollEvent());
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+	}
+
+	@Test
+	public void testUpgradeForwardsLateMessages() {
+		TestTransport upgradeTransport = new TestTransport("upgrade");
+		transport.setConfiguration("{\"sid\":\"ASID\", pingTimeout: 100000, \"upgrades\": [ \"upgrade\" ]}");
+		transports(transport, upgradeTransport);
+		this.open();
+		upgradeTransport.allowSend(true);
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		assertEquals("Server should have a new connection", OPEN, pollServer());
+		assertEquals("Upgrading transport should receive a ping probe", PING, upgradeTransport.output.poll());
+		upgradeTransport.inject("3probe");
+		assertEquals("Upgrading transport should send upgrade packet", UPGRADE, upgradeTransport.output.poll());
+		assertEquals("Old transport should be closed", CLOSE, pollServer());
+		// a sender still holding the old transport
+		transport.bufferedSend(new Packet('4', "late", null, Packet.PRIORITY_NORMAL));
+		send(DATA);
+		assertEquals("Late messages should be forwarded first", "late", upgradeTransport.output.poll());
+		assertEquals("New messages should follow", DATA, upgradeTransport.output.poll());
+		assertEquals("Old transport should not send anything", null, pollServer());
+		assertEquals("Should call onMessage()", "late", pollEvent());
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+	}
+
+	/**
+	 * A callback implementing none of the optional callbacks, which passes
+	 * its events on to this test.
+	 */
+	private EngineIOCallback basicCallback() {
+		return new EngineIOCallback() {
+			@Override
+			public void onOpen() {
+				EngineIOUnit.this.onOpen();
+			}
+
+			@Override
+			public void onMessage(String message) {
+				EngineIOUnit.this.onMessage(message);
+			}
+
+			@Override
+			public void onClose() {
+				EngineIOUnit.this.onClose();
+			}
+
+			@Override
+			public void onError(EngineIOException exception) {
+				EngineIOUnit.this.onError(exception);
+			}
+		};
+	}
 }
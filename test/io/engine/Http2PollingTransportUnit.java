@@ -0,0 +1,60 @@
+package io.engine;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class Http2PollingTransportUnit extends PollingTransportBaseTest {
+	@Override
+	protected IOTransport createTransport() {
+		return new Http2PollingTransport();
+	}
+
+	@Test
+	public void testMultiplex() throws Exception {
+		server.record(false);
+		EventLoopGroup group = new EventLoopGroup(2);
+		int count = 20;
+		final CountDownLatch opened = new CountDownLatch(count);
+		final CountDownLatch closed = new CountDownLatch(count);
+		List<EngineIO> sessions = new ArrayList<EngineIO>();
+		for (int i = 0; i < count; i++) {
+			EngineIO engine = new EngineIO() {
+				@Override
+				public void onOpen() {
+					opened.countDown();
+				}
+
+				@Override
+				public void onMessage(String message) {
+				}
+
+				@Override
+				public void onClose() {
+					closed.countDown();
+				}
+			};
+			engine.host("127.0.0.1").port(server.getPort()).upgrade(false)
+					.eventLoopGroup(group)
+					.transports(new Http2PollingTransport()).open();
+			sessions.add(engine);
+		}
+		assertTrue("Sessions should open", opened.await(5, TimeUnit.SECONDS));
+		assertEquals("Server should have all sessions", count,
+				server.getSessions());
+		for (EngineIO engine : sessions)
+			engine.send(DATA);
+		Thread.sleep(100);
+		assertEquals("Sessions should share one connection", 1,
+				server.getConnections());
+		for (EngineIO engine : sessions)
+			engine.close();
+		assertTrue("Sessions should close", closed.await(5, TimeUnit.SECONDS));
+		group.shutdown();
+	}
+}
@@ -0,0 +1,86 @@
+package io.engine;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JournalUnit {
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("journal", ".bin");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private static Packet message(String data) {
+		return new Packet('4', data, null, Packet.PRIORITY_NORMAL);
+	}
+
+	@Test
+	public void testOrder() throws IOException {
+		Journal journal = new Journal(file, 4096, 0);
+		assertTrue("Should start empty", journal.isEmpty());
+		assertEquals(0, journal.append(message("a")));
+		assertEquals(1, journal.append(message(EngineIOBaseTest.DATA)));
+		assertEquals(2, journal.append(new Packet('4', ByteBuffer.wrap(new byte[] {
+				1, 2, 3 }), null, Packet.PRIORITY_NORMAL)));
+		assertEquals(0, journal.sequence());
+		assertEquals("Should read in order", "a", journal.read(null).data);
+		assertEquals(EngineIOBaseTest.DATA, journal.read(null).data);
+		Packet binary = journal.read(null);
+		assertEquals('4', binary.type);
+		assertEquals("Should keep binary messages", "[4, 1, 2, 3]",
+				Arrays.toString(binary.binary));
+		assertEquals(3, journal.sequence());
+		assertTrue("Should be empty", journal.isEmpty());
+		journal.close();
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		Journal journal = new Journal(file, 4096, 1);
+		journal.append(message("a"));
+		journal.append(message("b"));
+		journal.append(message("c"));
+		journal.read(null);
+		journal.close();
+		journal = new Journal(file, 4096, 1);
+		assertEquals("Should keep unread messages", "b", journal.read(null).data);
+		assertEquals("Should count the unread messages of the previous run", 2,
+				journal.append(message("d")));
+		assertEquals("c", journal.read(null).data);
+		assertEquals("d", journal.read(null).data);
+		assertTrue("Should be empty", journal.isEmpty());
+		journal.close();
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		Journal journal = new Journal(file, 12 + 3 * 15, 0);
+		assertEquals(0, journal.append(message("0123456789")));
+		assertEquals(1, journal.append(message("0123456789")));
+		assertEquals(2, journal.append(message("0123456789")));
+		assertEquals("Should reject when full", -1, journal.append(message("x")));
+		journal.read(null);
+		assertEquals("Should move unread messages to the front", 3,
+				journal.append(message("abcdefghij")));
+		assertEquals("0123456789", journal.read(null).data);
+		assertEquals("0123456789", journal.read(null).data);
+		assertEquals("abcdefghij", journal.read(null).data);
+		assertTrue("Should be empty", journal.isEmpty());
+		journal.close();
+	}
+}
@@ -0,0 +1,1083 @@
+package io.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import org.java_websocket.util.Base64;
+
+/**
+ * A small engine.io server on a loopback port, standing in for a real one in
+ * tests and benchmarks. It speaks the polling and the websocket transport,
+ * including the handshake, pings and upgrades from polling to websocket.
+ * Connections starting with the HTTP/2 preface are served as HTTP/2 with
+ * prior knowledge. Everything runs on a single selector thread, so it can
+ * hold tens of thousands of sessions. Events (OPEN, CLOSE and the
+ * messages received) are recorded for {@link #poll()}.
+ */
+public class LoopbackServer implements Runnable {
+	public static final String OPEN = EngineIOBaseTest.OPEN;
+	public static final String CLOSE = EngineIOBaseTest.CLOSE;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+			.getBytes(ASCII);
+	private static final long PROBE_CHECK_INTERVAL = 100;
+	private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final Thread thread;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<String>();
+	private final Map<String, Session> sessions = new HashMap<String, Session>();
+	private final AtomicInteger sessionCounter = new AtomicInteger();
+	private final AtomicInteger requestCounter = new AtomicInteger();
+	private final AtomicInteger connectionCounter = new AtomicInteger();
+	private final AtomicInteger compressedRequestCounter = new AtomicInteger();
+	private final AtomicInteger compressedResponseCounter = new AtomicInteger();
+	private volatile boolean running = true;
+	private volatile boolean echo = false;
+	private volatile boolean record = true;
+	private volatile int pingInterval = 5000;
+	private volatile int pingTimeout = 60000;
+	private volatile boolean upgrades = true;
+	private volatile int latency = 0;
+	private volatile int compression = -1;
+	private final AtomicInteger lostResponses = new AtomicInteger();
+	/** Requests and frames waiting for the latency, in arrival order. */
+	private final ArrayDeque<Delayed> delayed = new ArrayDeque<Delayed>();
+
+	private interface Task {
+		void run() throws IOException;
+	}
+
+	private static class Delayed {
+		final long due;
+		final Connection connection;
+		final Task task;
+
+		Delayed(long due, Connection connection, Task task) {
+			this.due = due;
+			this.connection = connection;
+			this.task = task;
+		}
+	}
+
+	private class Session {
+		final String sid;
+		final ArrayDeque<String> packets = new ArrayDeque<String>();
+		Exchange poll;
+		long pollSince;
+		/** The websocket once upgraded. */
+		Connection websocket;
+		long pingSince;
+		/** Set once a websocket probed, polls are answered with noops. */
+		boolean probed;
+
+		Session(String sid) {
+			this.sid = sid;
+		}
+
+		void add(String packet) {
+			if (websocket != null) {
+				websocket.sendPacket(packet);
+				return;
+			}
+			packets.add(packet);
+			flush();
+		}
+
+		/**
+		 * Answers the held poll with a noop.
+		 */
+		void noop() {
+			if (poll == null)
+				return;
+			Exchange poll = this.poll;
+			this.poll = null;
+			poll.respond(200, "1:6");
+		}
+
+		void flush() {
+			if (poll == null || packets.isEmpty())
+				return;
+			StringBuilder payload = new StringBuilder();
+			String packet;
+			while ((packet = packets.poll()) != null)
+				payload.append(packet.length()).append(':').append(packet);
+			Exchange poll = this.poll;
+			this.poll = null;
+			poll.respond(200, payload.toString());
+		}
+	}
+
+	/**
+	 * A request waiting for its response.
+	 */
+	private abstract class Exchange {
+		Session held;
+
+		abstract void respond(int status, String body);
+
+		void release() {
+			if (held != null && held.poll == this)
+				held.poll = null;
+		}
+	}
+
+	/**
+	 * A stream of an HTTP/2 connection. The server ignores the flow control
+	 * windows of the client as responses are small.
+	 */
+	private class Stream extends Exchange {
+		final Connection connection;
+		final int id;
+		String method;
+		String path;
+		final StringBuilder body = new StringBuilder();
+
+		Stream(Connection connection, int id) {
+			this.connection = connection;
+			this.id = id;
+		}
+
+		@Override
+		void respond(int status, String body) {
+			requestCounter.incrementAndGet();
+			connection.streams.remove(id);
+			byte[] content = body.getBytes(UTF8);
+			ByteBuffer headers = ByteBuffer.allocate(64);
+			if (status == 200)
+				Hpack.putIndexed(headers, 8);
+			else
+				Hpack.putLiteral(headers, 8, status);
+			Hpack.putLiteral(headers, 31, "text/plain; charset=UTF-8");
+			headers.flip();
+			connection.frame(1, 0x4, id, headers);
+			int offset = 0;
+			do {
+				int length = Math.min(content.length - offset, 16384);
+				connection.frame(0, offset + length == content.length ? 0x1 : 0,
+						id, ByteBuffer.wrap(content, offset, length));
+				offset += length;
+			} while (offset < content.length);
+			connection.flush();
+		}
+	}
+
+	private class Connection extends Exchange {
+		final SocketChannel channel;
+		final SelectionKey key;
+		ByteBuffer in = ByteBuffer.allocate(4096);
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+		boolean http2 = false;
+		Hpack.Decoder decoder;
+		final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+		ByteBuffer headerBlock = ByteBuffer.allocate(16384);
+		int headerStream;
+		int headerFlags;
+		/** The session of a websocket, null for HTTP. */
+		Session session;
+		StringBuilder fragments;
+		/** Whether the pending HTTP/1.1 request accepts gzip. */
+		boolean acceptsGzip;
+		/** Set if the websocket negotiated permessage-deflate. */
+		Inflater inflater;
+		Deflater deflater;
+
+		Connection(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		}
+
+		void read() throws IOException {
+			if (!in.hasRemaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+				in.flip();
+				in = bigger.put(in);
+			}
+			if (channel.read(in) < 0) {
+				close();
+				return;
+			}
+			while (key.isValid()
+					&& (http2 ? parseFrame() : session != null ? parseWebsocket()
+							: parse()))
+				;
+		}
+
+		boolean parse() throws IOException {
+			byte[] data = in.array();
+			if (in.position() >= PREFACE.length
+					&& new String(data, 0, PREFACE.length, ASCII).equals(
+							new String(PREFACE, ASCII))) {
+				http2 = true;
+				decoder = new Hpack.Decoder();
+				consume(PREFACE.length);
+				frame(4, 0, 0, ByteBuffer.allocate(0));
+				flush();
+				return true;
+			}
+			int end = -1;
+			for (int i = 3; i < in.position(); i++) {
+				if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n'
+						&& data[i - 3] == '\r') {
+					end = i + 1;
+					break;
+				}
+			}
+			if (end < 0)
+				return false;
+			String head = new String(data, 0, end, ASCII);
+			int length = 0;
+			String websocketKey = null;
+			String extensions = "";
+			boolean gzipped = false;
+			boolean accepts = false;
+			for (String line : head.split("\r\n")) {
+				String lower = line.toLowerCase();
+				if (lower.startsWith("content-length:"))
+					length = Integer.parseInt(line.substring(15).trim());
+				else if (lower.startsWith("sec-websocket-key:"))
+					websocketKey = line.substring(18).trim();
+				else if (lower.startsWith("sec-websocket-extensions:"))
+					extensions = lower.substring(25).trim();
+				else if (lower.startsWith("content-encoding:"))
+					gzipped = lower.substring(17).trim().equals("gzip");
+				else if (lower.startsWith("accept-encoding:"))
+					accepts = lower.contains("gzip");
+			}
+			if (in.position() < end + length)
+				return false;
+			acceptsGzip = accepts;
+			String body;
+			if (gzipped) {
+				compressedRequestCounter.incrementAndGet();
+				body = new String(gunzip(data, end, length), UTF8);
+			} else {
+				body = new String(data, end, length, UTF8);
+			}
+			in.flip();
+			in.position(end + length);
+			in.compact();
+			final String[] requestLine = head.substring(0, head.indexOf("\r\n")).split(" ");
+			final String key = websocketKey;
+			final boolean deflate = extensions.startsWith("permessage-deflate");
+			final String content = body;
+			later(this, new Task() {
+				@Override
+				public void run() throws IOException {
+					if (key != null)
+						upgrade(Connection.this, requestLine[1], key, deflate);
+					else
+						handle(Connection.this, requestLine[0], requestLine[1],
+								content);
+				}
+			});
+			return true;
+		}
+
+		/**
+		 * Parses a frame of a client, which always masks them.
+		 */
+		boolean parseWebsocket() throws IOException {
+			if (in.position() < 2)
+				return false;
+			byte[] data = in.array();
+			int opcode = data[0] & 0x0f;
+			boolean fin = (data[0] & 0x80) != 0;
+			long length = data[1] & 0x7f;
+			int offset = 2;
+			if (length == 126) {
+				if (in.position() < 4)
+					return false;
+				length = (data[2] & 0xff) << 8 | (data[3] & 0xff);
+				offset = 4;
+			} else if (length == 127) {
+				if (in.position() < 10)
+					return false;
+				length = ByteBuffer.wrap(data, 2, 8).getLong();
+				offset = 10;
+			}
+			if (in.position() < offset + 4 + length)
+				return false;
+			boolean compressed = (data[0] & 0x40) != 0;
+			byte[] payload = new byte[(int) length];
+			for (int i = 0; i < length; i++)
+				payload[i] = (byte) (data[offset + 4 + i] ^ data[offset + (i & 3)]);
+			consume(offset + 4 + (int) length);
+			if (compressed) {
+				compressedRequestCounter.incrementAndGet();
+				payload = inflate(payload);
+			}
+			switch (opcode) {
+			case 0: // continuation
+			case 1: // text
+				if (fragments == null)
+					fragments = new StringBuilder();
+				fragments.append(new String(payload, UTF8));
+				if (fin) {
+					final String packet = fragments.toString();
+					fragments = null;
+					later(this, new Task() {
+						@Override
+						public void run() {
+							websocketPacket(Connection.this, packet);
+						}
+					});
+				}
+				break;
+			case 2: // binary, as a polling packet
+				final String binary = "b" + (char) ('0' + payload[0])
+						+ Base64.encodeBytes(payload, 1, payload.length - 1);
+				later(this, new Task() {
+					@Override
+					public void run() {
+						websocketPacket(Connection.this, binary);
+					}
+				});
+				break;
+			case 8: // close
+				websocketFrame(8, payload);
+				if (session.websocket == this)
+					session.websocket = null;
+				close();
+				break;
+			case 9: // ping
+				websocketFrame(10, payload);
+				break;
+			}
+			return true;
+		}
+
+		void sendText(String packet) {
+			websocketFrame(1, packet.getBytes(UTF8));
+		}
+
+		/**
+		 * Sends a packet in polling format, binary ones in a binary frame.
+		 */
+		void sendPacket(String packet) {
+			if (packet.charAt(0) != 'b') {
+				sendText(packet);
+				return;
+			}
+			byte[] message;
+			try {
+				message = Base64.decode(packet.substring(2));
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Invalid binary packet", e);
+			}
+			byte[] frame = new byte[1 + message.length];
+			frame[0] = (byte) (packet.charAt(1) - '0');
+			System.arraycopy(message, 0, frame, 1, message.length);
+			websocketFrame(2, frame);
+		}
+
+		/**
+		 * Inflates an unfragmented message, the deflate stream spans all
+		 * messages unless the client ends it.
+		 */
+		byte[] inflate(byte[] payload) throws IOException {
+			inflater.setInput(payload);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			try {
+				int read;
+				while ((read = inflater.inflate(buffer)) > 0)
+					out.write(buffer, 0, read);
+				if (inflater.finished()) {
+					inflater.reset();
+				} else {
+					inflater.setInput(new byte[] { 0, 0, (byte) 0xff,
+							(byte) 0xff });
+					while ((read = inflater.inflate(buffer)) > 0)
+						out.write(buffer, 0, read);
+				}
+			} catch (DataFormatException e) {
+				throw new IOException(e.toString());
+			}
+			return out.toByteArray();
+		}
+
+		void websocketFrame(int opcode, byte[] payload) {
+			boolean compressed = false;
+			int threshold = compression;
+			if (deflater != null && opcode < 8 && threshold >= 0
+					&& payload.length >= threshold) {
+				compressedResponseCounter.incrementAndGet();
+				deflater.setInput(payload);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				int written;
+				do {
+					written = deflater.deflate(buffer, 0, buffer.length,
+							Deflater.SYNC_FLUSH);
+					out.write(buffer, 0, written);
+				} while (written == buffer.length);
+				byte[] deflated = out.toByteArray();
+				// without the empty block ending the flush
+				payload = Arrays.copyOf(deflated, deflated.length - 4);
+				compressed = true;
+			}
+			ByteBuffer header = ByteBuffer.allocate(10);
+			header.put((byte) (0x80 | (compressed ? 0x40 : 0) | opcode));
+			if (payload.length < 126)
+				header.put((byte) payload.length);
+			else if (payload.length < 65536)
+				header.put((byte) 126).putShort((short) payload.length);
+			else
+				header.put((byte) 127).putLong(payload.length);
+			header.flip();
+			out.add(header);
+			out.add(ByteBuffer.wrap(payload));
+			flush();
+		}
+
+		void consume(int length) {
+			in.flip();
+			in.position(length);
+			in.compact();
+		}
+
+		boolean parseFrame() throws IOException {
+			if (in.position() < 9)
+				return false;
+			ByteBuffer frame = in.duplicate();
+			frame.flip();
+			int length = (frame.get() & 0xff) << 16 | (frame.get() & 0xff) << 8
+					| (frame.get() & 0xff);
+			if (in.position() < 9 + length)
+				return false;
+			int type = frame.get() & 0xff;
+			int flags = frame.get() & 0xff;
+			int id = frame.getInt() & 0x7fffffff;
+			frame.limit(9 + length);
+			ByteBuffer payload = ByteBuffer.allocate(length).put(frame);
+			payload.flip();
+			consume(9 + length);
+			if ((type == 0 || type == 1) && (flags & 0x8) != 0) {
+				int padding = payload.get() & 0xff;
+				payload.limit(payload.limit() - padding);
+			}
+			switch (type) {
+			case 0: // DATA
+				Stream stream = streams.get(id);
+				if (length > 0) {
+					windowUpdate(0, length);
+					if ((flags & 0x1) == 0)
+						windowUpdate(id, length);
+					flush();
+				}
+				if (stream != null) {
+					stream.body.append(UTF8.decode(payload));
+					if ((flags & 0x1) != 0)
+						handleLater(stream);
+				}
+				break;
+			case 1: // HEADERS
+				if ((flags & 0x20) != 0)
+					payload.position(payload.position() + 5);
+				headerStream = id;
+				headerFlags = flags;
+				headerBlock.clear();
+				headerFragment(payload, flags);
+				break;
+			case 9: // CONTINUATION
+				headerFragment(payload, flags);
+				break;
+			case 3: // RST_STREAM
+				Stream reset = streams.remove(id);
+				if (reset != null)
+					reset.release();
+				break;
+			case 4: // SETTINGS
+				if ((flags & 0x1) == 0) {
+					frame(4, 0x1, 0, ByteBuffer.allocate(0));
+					flush();
+				}
+				break;
+			case 6: // PING
+				if ((flags & 0x1) == 0) {
+					frame(6, 0x1, 0, payload);
+					flush();
+				}
+				break;
+			case 7: // GOAWAY
+				close();
+				break;
+			}
+			return true;
+		}
+
+		private void headerFragment(ByteBuffer payload, int flags)
+				throws IOException {
+			headerBlock.put(payload);
+			if ((flags & 0x4) != 0)
+				headers();
+		}
+
+		private void headers() throws IOException {
+			headerBlock.flip();
+			final Stream stream = new Stream(this, headerStream);
+			decoder.decode(headerBlock, new Hpack.Decoder.Listener() {
+				@Override
+				public void header(String name, String value) {
+					if (name.equals(":method"))
+						stream.method = value;
+					else if (name.equals(":path"))
+						stream.path = value;
+				}
+			});
+			streams.put(stream.id, stream);
+			if ((headerFlags & 0x1) != 0)
+				handleLater(stream);
+		}
+
+		private void handleLater(final Stream stream) throws IOException {
+			later(this, new Task() {
+				@Override
+				public void run() throws IOException {
+					handle(stream, stream.method, stream.path,
+							stream.body.toString());
+				}
+			});
+		}
+
+		void frame(int type, int flags, int id, ByteBuffer payload) {
+			ByteBuffer header = ByteBuffer.allocate(9);
+			int length = payload.remaining();
+			header.put((byte) (length >>> 16)).put((byte) (length >>> 8))
+					.put((byte) length).put((byte) type).put((byte) flags)
+					.putInt(id).flip();
+			out.add(header);
+			out.add(payload);
+		}
+
+		void windowUpdate(int id, int increment) {
+			ByteBuffer payload = ByteBuffer.allocate(4);
+			payload.putInt(increment).flip();
+			frame(8, 0, id, payload);
+		}
+
+		void flush() {
+			try {
+				write();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		@Override
+		void respond(int status, String body) {
+			requestCounter.incrementAndGet();
+			byte[] content = body.getBytes(UTF8);
+			String encoding = "";
+			int threshold = compression;
+			if (acceptsGzip && threshold >= 0 && content.length >= threshold) {
+				compressedResponseCounter.incrementAndGet();
+				content = gzip(content);
+				encoding = "\r\nContent-Encoding: gzip";
+			}
+			String head = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Error")
+					+ "\r\nContent-Type: text/plain; charset=UTF-8" + encoding
+					+ "\r\nContent-Length: " + content.length + "\r\n\r\n";
+			out.add(ByteBuffer.wrap(head.getBytes(ASCII)));
+			out.add(ByteBuffer.wrap(content));
+			try {
+				write();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		void write() throws IOException {
+			while (!out.isEmpty()) {
+				if (!out.peek().hasRemaining()) {
+					out.poll();
+					continue;
+				}
+				channel.write(out.peek());
+				if (out.peek().hasRemaining())
+					break;
+				out.poll();
+			}
+			if (key.isValid())
+				key.interestOps(out.isEmpty() ? SelectionKey.OP_READ
+						: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		void close() {
+			if (session != null && session.websocket == this)
+				session.websocket = null;
+			release();
+			for (Stream stream : streams.values())
+				stream.release();
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	public LoopbackServer() throws IOException {
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		thread = new Thread(this, "LoopbackServer");
+		thread.setDaemon(true);
+	}
+
+	public LoopbackServer start() {
+		thread.start();
+		return this;
+	}
+
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	public LoopbackServer echo(boolean echo) {
+		this.echo = echo;
+		return this;
+	}
+
+	public LoopbackServer record(boolean record) {
+		this.record = record;
+		return this;
+	}
+
+	public LoopbackServer pingInterval(int pingInterval) {
+		this.pingInterval = pingInterval;
+		return this;
+	}
+
+	public LoopbackServer pingTimeout(int pingTimeout) {
+		this.pingTimeout = pingTimeout;
+		return this;
+	}
+
+	/**
+	 * Whether the handshake offers polling sessions to upgrade to websocket.
+	 */
+	/**
+	 * Handles requests and websocket frames only after latency milliseconds,
+	 * as if they travelled a network.
+	 */
+	public LoopbackServer latency(int latency) {
+		this.latency = latency;
+		return this;
+	}
+
+	public LoopbackServer upgrades(boolean upgrades) {
+		this.upgrades = upgrades;
+		return this;
+	}
+
+	/**
+	 * Gzips HTTP/1.1 responses of at least threshold bytes to clients
+	 * accepting it and deflates websocket messages that large if the client
+	 * offers permessage-deflate, -1 never does.
+	 */
+	public LoopbackServer compression(int threshold) {
+		this.compression = threshold;
+		return this;
+	}
+
+	/**
+	 * Closes the HTTP/1.1 connection instead of answering the next count
+	 * POSTs it handled, as if the responses got lost.
+	 */
+	public LoopbackServer loseResponses(int count) {
+		lostResponses.set(count);
+		return this;
+	}
+
+	public int getRequests() {
+		return requestCounter.get();
+	}
+
+	public int getCompressedRequests() {
+		return compressedRequestCounter.get();
+	}
+
+	public int getCompressedResponses() {
+		return compressedResponseCounter.get();
+	}
+
+	/**
+	 * The number of accepted TCP connections.
+	 */
+	public int getConnections() {
+		return connectionCounter.get();
+	}
+
+	public int getSessions() {
+		return sessionCounter.get();
+	}
+
+	public String poll() throws InterruptedException {
+		return events.poll(1000, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends a message to all open sessions.
+	 */
+	public void send(final String data) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Session session : sessions.values())
+					session.add("4" + data);
+			}
+		});
+	}
+
+	/**
+	 * Drops all connections but keeps the sessions, like a network outage.
+	 */
+	public void disconnect() {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				closeConnections();
+			}
+		});
+	}
+
+	/**
+	 * Drops all connections and sessions, like a restarted server.
+	 */
+	public void forget() {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				sessions.clear();
+				closeConnections();
+			}
+		});
+	}
+
+	private void closeConnections() {
+		for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys()))
+			if (key.attachment() instanceof Connection)
+				((Connection) key.attachment()).close();
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs task on behalf of connection once the latency passed.
+	 */
+	private void later(Connection connection, Task task) throws IOException {
+		if (latency == 0 && delayed.isEmpty())
+			task.run();
+		else
+			delayed.add(new Delayed(System.currentTimeMillis() + latency,
+					connection, task));
+	}
+
+	private long runDelayed() {
+		long now = System.currentTimeMillis();
+		Delayed next;
+		while ((next = delayed.peek()) != null && next.due <= now) {
+			delayed.poll();
+			try {
+				next.task.run();
+			} catch (IOException e) {
+				next.connection.close();
+			}
+		}
+		return next == null ? 100 : Math.max(1, Math.min(100, next.due - now));
+	}
+
+	private void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	private void event(String event) {
+		if (record)
+			events.add(event);
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select(runDelayed());
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						SocketChannel channel;
+						while ((channel = server.accept()) != null) {
+							connectionCounter.incrementAndGet();
+							new Connection(channel);
+						}
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable())
+							connection.read();
+						if (key.isValid() && key.isWritable())
+							connection.write();
+					} catch (IOException e) {
+						connection.close();
+					}
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					task.run();
+				ping();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		try {
+			for (SelectionKey key : selector.keys())
+				key.channel().close();
+			selector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private void ping() {
+		long now = System.currentTimeMillis();
+		for (Session session : sessions.values()) {
+			// like engine.io, lets a client pausing for an upgrade finish its
+			// poll when the probe did not find one waiting
+			if (session.probed && session.websocket == null
+					&& session.poll != null
+					&& now - session.pollSince >= PROBE_CHECK_INTERVAL)
+				session.noop();
+			if (session.websocket != null ? now - session.pingSince >= pingInterval
+					: session.poll != null && now - session.pollSince >= pingInterval) {
+				session.pingSince = now;
+				session.add("2");
+			}
+		}
+	}
+
+	private String handshake(Session session, boolean upgrades) {
+		return "0{\"sid\":\"" + session.sid + "\",\"upgrades\":"
+				+ (upgrades ? "[\"websocket\"]" : "[]") + ",\"pingTimeout\":"
+				+ pingTimeout + "}";
+	}
+
+	private Session open() {
+		String sid = "S" + sessionCounter.incrementAndGet();
+		Session session = new Session(sid);
+		sessions.put(sid, session);
+		event(OPEN);
+		return session;
+	}
+
+	private static byte[] gzip(byte[] data) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(out);
+			gzip.write(data);
+			gzip.close();
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] gunzip(byte[] data, int offset, int length)
+			throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(data,
+				offset, length));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+			out.write(buffer, 0, read);
+		return out.toByteArray();
+	}
+
+	private static Map<String, String> query(String uri)
+			throws UnsupportedEncodingException {
+		Map<String, String> query = new HashMap<String, String>();
+		int start = uri.indexOf('?');
+		if (start >= 0) {
+			for (String pair : uri.substring(start + 1).split("&")) {
+				int eq = pair.indexOf('=');
+				if (eq > 0)
+					query.put(pair.substring(0, eq),
+							URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return query;
+	}
+
+	/**
+	 * Accepts a websocket. Without sid it opens a websocket only session,
+	 * otherwise it probes the session for an upgrade.
+	 */
+	private void upgrade(Connection connection, String uri, String key,
+			boolean deflate) throws IOException {
+		String sid = query(uri).get("sid");
+		Session session = sid == null ? open() : sessions.get(sid);
+		if (session == null) {
+			connection.respond(400, "unknown sid");
+			return;
+		}
+		String accept;
+		try {
+			accept = Base64.encodeBytes(MessageDigest.getInstance("SHA-1")
+					.digest((key + WEBSOCKET_GUID).getBytes(ASCII)));
+		} catch (Exception e) {
+			throw new IOException(e.toString());
+		}
+		requestCounter.incrementAndGet();
+		String extensions = "";
+		if (deflate && compression >= 0) {
+			connection.inflater = new Inflater(true);
+			connection.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION,
+					true);
+			extensions = "\r\nSec-WebSocket-Extensions: permessage-deflate";
+		}
+		connection.out.add(ByteBuffer.wrap(("HTTP/1.1 101 Switching Protocols"
+				+ "\r\nUpgrade: websocket\r\nConnection: Upgrade"
+				+ "\r\nSec-WebSocket-Accept: " + accept + extensions
+				+ "\r\n\r\n").getBytes(ASCII)));
+		connection.session = session;
+		if (sid == null) {
+			session.websocket = connection;
+			session.pingSince = System.currentTimeMillis();
+			connection.sendText(handshake(session, false));
+		} else {
+			connection.flush();
+		}
+	}
+
+	private void websocketPacket(Connection connection, String packet) {
+		Session session = connection.session;
+		if (session.websocket != connection) {
+			// probing an upgrade
+			if (packet.equals("2probe")) {
+				connection.sendText("3probe");
+				// lets the client pause polling
+				session.probed = true;
+				session.noop();
+			} else if (packet.equals("5")) {
+				session.websocket = connection;
+				session.pingSince = System.currentTimeMillis();
+				session.noop();
+				String pending;
+				while ((pending = session.packets.poll()) != null)
+					connection.sendPacket(pending);
+			}
+			return;
+		}
+		receive(session, packet);
+	}
+
+	private void handle(Exchange connection, String method, String uri,
+			String body) throws IOException {
+		String sid = query(uri).get("sid");
+		if (sid == null) {
+			String open = handshake(open(), upgrades);
+			connection.respond(200, open.length() + ":" + open);
+			return;
+		}
+		Session session = sessions.get(sid);
+		if (session == null) {
+			connection.respond(400, "unknown sid");
+		} else if (method.equals("GET")) {
+			session.noop();
+			session.poll = connection;
+			session.pollSince = System.currentTimeMillis();
+			connection.held = session;
+			session.flush();
+		} else {
+			int i = 0;
+			while (i < body.length()) {
+				int colon = body.indexOf(':', i);
+				int length = Integer.parseInt(body.substring(i, colon));
+				String packet = body.substring(colon + 1, colon + 1 + length);
+				i = colon + 1 + length;
+				if (!receive(session, packet))
+					break;
+			}
+			if (connection instanceof Connection
+					&& lostResponses.getAndDecrement() > 0)
+				((Connection) connection).close();
+			else
+				connection.respond(200, "ok");
+		}
+	}
+
+	/**
+	 * Handles a packet of a client. Returns false once the session closed.
+	 */
+	private boolean receive(Session session, String packet) {
+		switch (packet.charAt(0)) {
+		case '1':
+			// a client closing during an upgrade closes on both transports
+			if (sessions.remove(session.sid) == null)
+				return false;
+			if (session.poll != null)
+				session.poll.respond(200, "1:1");
+			event(CLOSE);
+			return false;
+		case '2':
+			session.add("3" + packet.substring(1));
+			break;
+		case '4':
+			event(packet.substring(1));
+			if (echo)
+				session.add(packet);
+			break;
+		case 'b':
+			event(packet);
+			if (echo)
+				session.add(packet);
+			break;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,72 @@
+package io.engine;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+
+public class PacketQueueUnit {
+	private final PacketQueue queue = new PacketQueue();
+
+	@Test
+	public void testOrder() {
+		queue.offer(new Packet('4', "a"));
+		queue.offer(new Packet('4', "b"));
+		queue.offer(new Packet('4', "c"));
+		Iterator<Packet> iterator = queue.iterator();
+		assertEquals("Should iterate in order", "a", iterator.next().data);
+		iterator.remove();
+		assertEquals("Should iterate in order", "b", iterator.next().data);
+		assertEquals("Should keep unremoved packets", "b", queue.poll().data);
+		assertEquals("Should keep unremoved packets", "c", queue.poll().data);
+		assertNull("Should be empty", queue.poll());
+		assertTrue("Should be empty", queue.isEmpty());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRemoveOutOfOrder() {
+		queue.offer(new Packet('4', "a"));
+		queue.offer(new Packet('4', "b"));
+		Iterator<Packet> iterator = queue.iterator();
+		iterator.next();
+		iterator.next();
+		iterator.remove();
+	}
+
+	@Test
+	public void testConcurrentProducers() throws Exception {
+		final int producers = 8;
+		final int packets = 100000;
+		Thread[] threads = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			final char id = (char) ('0' + i);
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < packets; j++)
+						queue.offer(new Packet(id, Integer.toString(j)));
+				}
+			};
+			threads[i].start();
+		}
+		int[] next = new int[producers];
+		int received = 0;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (received < producers * packets
+				&& System.currentTimeMillis() < deadline) {
+			Packet packet = queue.poll();
+			if (packet == null)
+				continue;
+			int producer = packet.type - '0';
+			assertEquals("Should keep the order of each producer",
+					next[producer]++, Integer.parseInt(packet.data));
+			received++;
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals("Should receive every packet", producers * packets,
+				received);
+		assertTrue("Should be empty", queue.isEmpty());
+	}
+}
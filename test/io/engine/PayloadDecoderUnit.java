@@ -0,0 +1,142 @@
+package io.engine;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PayloadDecoderUnit implements PayloadDecoder.Listener {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private final List<String> packets = new ArrayList<String>();
+	private final PayloadDecoder decoder = new PayloadDecoder(this);
+
+	@Override
+	public void packet(char type, String data) {
+		packets.add(type + data);
+	}
+
+	@Override
+	public void binary(char type, ByteBuffer data) {
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		packets.add("b" + type + Arrays.toString(bytes));
+	}
+
+	@Override
+	public void largePacket(char type, CharBuffer data) {
+		packets.add("L" + type + data);
+	}
+
+	private static String payload(String... packets) {
+		StringBuilder builder = new StringBuilder();
+		for (String packet : packets)
+			builder.append(packet.length()).append(':').append(packet);
+		return builder.toString();
+	}
+
+	@Test
+	public void testSinglePacket() throws IOException {
+		decoder.decode(ByteBuffer.wrap(payload("4hello").getBytes(UTF8)));
+		assertEquals("Should decode one packet", 1, packets.size());
+		assertEquals("4hello", packets.get(0));
+		assertTrue("Decoder should be idle", decoder.isIdle());
+	}
+
+	@Test
+	public void testTypeOnlyPacket() throws IOException {
+		decoder.decode(ByteBuffer.wrap(payload("2", "6").getBytes(UTF8)));
+		assertEquals("2", packets.get(0));
+		assertEquals("6", packets.get(1));
+	}
+
+	@Test
+	public void testSplitEverywhere() throws IOException {
+		String data = "4" + EngineIOBaseTest.DATA + "\uD83D\uDE00 \u00E4";
+		byte[] payload = payload(data, "3probe", data).getBytes(UTF8);
+		for (byte b : payload)
+			decoder.decode(ByteBuffer.wrap(new byte[] { b }));
+		assertEquals("Should decode all packets", 3, packets.size());
+		assertEquals(data, packets.get(0));
+		assertEquals("3probe", packets.get(1));
+		assertEquals(data, packets.get(2));
+		assertTrue("Decoder should be idle", decoder.isIdle());
+	}
+
+	@Test
+	public void testLargePacket() throws IOException {
+		StringBuilder builder = new StringBuilder("4");
+		for (int i = 0; i < 100000; i++)
+			builder.append((char) ('a' + i % 26));
+		decoder.decode(ByteBuffer.wrap(payload(builder.toString()).getBytes(UTF8)));
+		assertEquals(builder.toString(), packets.get(0));
+	}
+
+	@Test
+	public void testLargePacketView() throws IOException {
+		PayloadDecoder decoder = new PayloadDecoder(this, 5);
+		decoder.decode(ByteBuffer.wrap(payload("4hi", "4hello \u263A",
+				"4hello").getBytes(UTF8)));
+		assertEquals("4hi", packets.get(0));
+		assertEquals("L4hello \u263A", packets.get(1));
+		assertEquals("L4hello", packets.get(2));
+		assertTrue("Decoder should be idle", decoder.isIdle());
+	}
+
+	@Test
+	public void testLargePacketHandedOver() throws IOException {
+		final List<CharBuffer> views = new ArrayList<CharBuffer>();
+		PayloadDecoder decoder = new PayloadDecoder(new PayloadDecoder.Listener() {
+			@Override
+			public void packet(char type, String data) {
+			}
+
+			@Override
+			public void binary(char type, ByteBuffer data) {
+			}
+
+			@Override
+			public void largePacket(char type, CharBuffer data) {
+				views.add(data);
+			}
+		}, 3);
+		decoder.decode(ByteBuffer.wrap(payload("4first", "4other").getBytes(UTF8)));
+		assertEquals("Should not reuse a handed over buffer", "first",
+				views.get(0).toString());
+		assertEquals("other", views.get(1).toString());
+	}
+
+	@Test
+	public void testPartialPayload() throws IOException {
+		decoder.decode(ByteBuffer.wrap("6:4he".getBytes(UTF8)));
+		assertEquals("Nothing should be decoded yet", 0, packets.size());
+		assertFalse("Decoder should be within a packet", decoder.isIdle());
+	}
+
+	@Test
+	public void testBinary() throws IOException {
+		byte[] payload = "6:b4AQID10:b4AAH+/yo=6:b4+/8=2:b4".getBytes(UTF8);
+		for (byte b : payload)
+			decoder.decode(ByteBuffer.wrap(new byte[] { b }));
+		assertEquals("b4[1, 2, 3]", packets.get(0));
+		assertEquals("b4[0, 1, -2, -1, 42]", packets.get(1));
+		assertEquals("b4[-5, -1]", packets.get(2));
+		assertEquals("b4[]", packets.get(3));
+	}
+
+	@Test(expected = IOException.class)
+	public void testGarbageBase64() throws IOException {
+		decoder.decode(ByteBuffer.wrap("6:b4A!ID".getBytes(UTF8)));
+	}
+
+	@Test(expected = IOException.class)
+	public void testGarbage() throws IOException {
+		decoder.decode(ByteBuffer.wrap("garbage".getBytes(UTF8)));
+	}
+}
@@ -0,0 +1,86 @@
+package io.engine;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class PayloadEncoderUnit {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private final PayloadEncoder encoder = new PayloadEncoder();
+
+	private static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void testEncode() {
+		String[] datas = { "", EngineIOBaseTest.DATA, "\uD83D\uDE00 \u00E4",
+				"lone \uD83D surrogate" };
+		StringBuilder expected = new StringBuilder();
+		encoder.begin();
+		for (String data : datas) {
+			encoder.append('4', data);
+			expected.append(data.length() + 1).append(":4").append(data);
+		}
+		assertArrayEquals("Should match String based encoding", expected
+				.toString().getBytes(UTF8), bytes(encoder.finish()));
+	}
+
+	@Test
+	public void testPrepared() {
+		PreparedMessage text = EngineIO.prepare(EngineIOBaseTest.DATA);
+		PreparedMessage binary = EngineIO.prepare(new byte[] { 0, 1,
+				(byte) 0xfe, (byte) 0xff, 42 });
+		encoder.begin();
+		encoder.append('4', EngineIOBaseTest.DATA);
+		encoder.append(binary.binary);
+		byte[] expected = bytes(encoder.finish());
+		encoder.begin();
+		encoder.append(new Packet(text, null, Packet.PRIORITY_NORMAL));
+		encoder.append(new Packet(binary, null, Packet.PRIORITY_NORMAL));
+		assertArrayEquals("Should copy the same encoding", expected,
+				bytes(encoder.finish()));
+		assertSame("Should encode once", text.payload(), text.payload());
+	}
+
+	@Test
+	public void testGrow() {
+		StringBuilder data = new StringBuilder();
+		for (int i = 0; i < 10000; i++)
+			data.append("\u263A");
+		encoder.begin();
+		encoder.append('4', data.toString());
+		encoder.append('2', "");
+		String expected = "10001:4" + data + "1:2";
+		assertArrayEquals("Should grow the buffer", expected.getBytes(UTF8),
+				bytes(encoder.finish()));
+	}
+
+	@Test
+	public void testBinary() {
+		encoder.begin();
+		encoder.append(new byte[] { 4, 1, 2, 3 });
+		encoder.append(new byte[] { 4, 0, 1, (byte) 0xfe, (byte) 0xff, 42 });
+		encoder.append(new byte[] { 4, (byte) 0xfb, (byte) 0xff });
+		encoder.append(new byte[] { 4 });
+		assertArrayEquals("Should encode base64 with padding",
+				"6:b4AQID10:b4AAH+/yo=6:b4+/8=2:b4".getBytes(UTF8),
+				bytes(encoder.finish()));
+	}
+
+	@Test
+	public void testReuse() {
+		encoder.begin();
+		encoder.append('4', "first");
+		encoder.finish();
+		encoder.begin();
+		encoder.append('4', "second");
+		assertArrayEquals("Should start a new payload", "7:4second"
+				.getBytes(UTF8), bytes(encoder.finish()));
+	}
+}
@@ -0,0 +1,74 @@
+package io.engine;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The tests every polling transport passes against the {@link LoopbackServer}.
+ */
+public abstract class PollingTransportBaseTest extends EngineIOBaseTest {
+	protected LoopbackServer server;
+
+	/**
+	 * Creates the polling transport under test.
+	 */
+	protected abstract IOTransport createTransport();
+
+	@Before
+	public void setUp() throws Exception {
+		server = new LoopbackServer().start();
+		host("127.0.0.1").port(server.getPort()).upgrade(false);
+		transports(createTransport());
+	}
+
+	protected String pollServer() throws Exception {
+		return server.poll();
+	}
+
+	@Test
+	public void testSend() throws Exception {
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		this.send(DATA);
+		assertEquals("Server Should receive data", DATA, pollServer());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testReceive() throws Exception {
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		server.send(DATA);
+		assertEquals("Should call onMessage()", DATA, pollEvent());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testPing() throws Exception {
+		server.pingInterval(50);
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		Thread.sleep(300);
+		this.send(DATA);
+		assertEquals("Server Should receive data after pings", DATA, pollServer());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		super.tearDown();
+		server.stop();
+	}
+}
@@ -0,0 +1,51 @@
+package io.engine;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PollingTransportUnit extends PollingTransportBaseTest {
+	@Override
+	protected IOTransport createTransport() {
+		return new PollingTransport();
+	}
+
+	@Test
+	public void testKeepAlive() throws Exception {
+		server.pingInterval(20);
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		for (int i = 0; i < 5; i++) {
+			this.send(DATA);
+			assertEquals("Server Should receive data", DATA, pollServer());
+			Thread.sleep(50);
+		}
+		assertTrue("Should have polled several times", server.getRequests() > 10);
+		assertTrue("Should reuse connections", server.getConnections() <= 2);
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		assertEquals("Server should got close", CLOSE, pollServer());
+	}
+
+	@Test
+	public void testLostResponse() throws Exception {
+		// the reconnect delay is random below this, so far beyond the test
+		reconnectDelay(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		this.open();
+		assertEquals("Server should got open", OPEN, pollServer());
+		assertEquals("Should call onOpen()", OPEN, pollEvent());
+		this.send(DATA);
+		assertEquals("Server Should receive data", DATA, pollServer());
+		// the next POST reuses the connection of the first
+		Thread.sleep(50);
+		server.loseResponses(1);
+		this.send(DATA);
+		assertEquals("Server Should receive data", DATA, pollServer());
+		assertEquals("Should not post again right away", null, pollServer());
+		this.close();
+		assertEquals("Should call onClose()", CLOSE, pollEvent());
+		// still reconnecting, only the kept packets are posted
+		assertEquals("Server should receive data again", DATA, pollServer());
+	}
+}
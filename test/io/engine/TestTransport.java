@@ -1,5 +1,7 @@
 package io.engine;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Timer;
@@ -26,6 +28,7 @@ public class TestTransport extends IOTransport {
 
 	private String configuration;
 	private int pingInterval = 0;
+	private boolean pauseLater = false;
 
 	Timer timer = new Timer("TestKeepAlive");
 	private int pingCounter = 0;
@@ -33,6 +36,8 @@ public class TestTransport extends IOTransport {
 	private KeepAlive keepAliveTask;
 
 	LinkedList<String> output = new LinkedList<String>();
+	/** The types of all packets sent, in order. */
+	StringBuilder sentTypes = new StringBuilder();
 	private String name;
 
 	public TestTransport(String name) {
@@ -68,16 +73,50 @@ public class TestTransport extends IOTransport {
 		}
 	}
 
+	/**
+	 * Makes an upgrade wait for {@link #finishPause()}.
+	 */
+	public TestTransport pauseLater(boolean pauseLater) {
+		this.pauseLater = pauseLater;
+		return this;
+	}
+
+	public void finishPause() {
+		paused();
+	}
+
+	@Override
+	protected void pause() throws Exception {
+		if (!pauseLater)
+			paused();
+	}
+
+	/**
+	 * Loses the connection, see {@link IOTransport#reconnecting()}.
+	 */
+	public long reconnect() {
+		return reconnecting();
+	}
+
+	public void finishReconnect() {
+		reconnected();
+	}
+
 	public void allowSend(boolean allow) {
 		setConnected(allow);
 	}
 	
 	@Override
-	protected void send(Iterator<String> datas) throws Exception {
-		String data;
+	protected void send(Iterator<Packet> datas) throws Exception {
+		Packet data;
 		while (datas.hasNext()) {
-			data = datas.next();
-			switch (data.charAt(0)) {
+			data = writing(datas.next());
+			if (data == null) {
+				datas.remove();
+				continue;
+			}
+			sentTypes.append(data.type);
+			switch (data.type) {
 			case '1':
 				// CLOSE: Nothing
 				break;
@@ -88,17 +127,32 @@ public class TestTransport extends IOTransport {
 				pongCounter++;
 				break;
 			case '4':
-				output.add(data.substring(1));
-				inject(data);
+				if (data.binary != null) {
+					ByteBuffer message = ByteBuffer.wrap(data.binary, 1,
+							data.binary.length - 1).slice();
+					output.add(EngineIOBaseTest.BINARY
+							+ Arrays.toString(bytes(message)));
+					packet(data.type, message);
+					break;
+				}
+				output.add(data.data);
+				inject(data.toString());
 				break;
 			case '5':
 				output.add(EngineIOBaseTest.UPGRADE);
 				break;
 			}
 			datas.remove();
+			written(data);
 		}
 	}
 
+	private static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
 	@Override
 	protected void close() throws Exception {
 		if (keepAliveTask != null) {